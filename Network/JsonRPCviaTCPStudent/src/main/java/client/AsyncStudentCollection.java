@@ -0,0 +1,24 @@
+package client;
+
+import server.Student;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Purpose: the operations of StudentCollection for clients that do not wait
+ * for the server. Every method sends its call and returns at once, the
+ * future completes with the result when the response arrives, or
+ * exceptionally when the call fails or is not answered in time. Cancelling
+ * a future abandons its call, it is not sent if it has not been sent yet.
+ *
+ * The futures complete on a shared pool thread, a stage that blocks should
+ * run on its own executor (thenApplyAsync and the like).
+ */
+public interface AsyncStudentCollection {
+   public CompletableFuture<Boolean> saveToJsonFile();
+   public CompletableFuture<Boolean> resetFromJsonFile();
+   public CompletableFuture<Boolean> add(Student stud);
+   public CompletableFuture<Boolean> remove(String aName);
+   public CompletableFuture<Student> get(String aName);
+   public CompletableFuture<String> getNameById(int id);
+   public CompletableFuture<String[]> getNames();
+}
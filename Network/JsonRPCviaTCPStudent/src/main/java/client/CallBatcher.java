@@ -0,0 +1,105 @@
+package client;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Collects the calls made within a short time window and sends them as one
+ * JsonRPC batch, so calls from many threads that come in at about the same
+ * time share one message and one trip to the server. The first call of a
+ * window starts it, the batch is sent when the window ends or when it holds
+ * maxCalls calls, whichever is first. A batch of one call is sent as a plain
+ * call.
+ */
+class CallBatcher extends Object {
+
+   /**
+    * Where a batch is sent, the proxy's next connection
+    */
+   interface Connections {
+      MultiplexedConnection next() throws IOException;
+   }
+
+   private static final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "student-proxy-batcher");
+         thread.setDaemon(true);
+         return thread;
+      });
+   private final long windowMillis;
+   private final int maxCalls;
+   private final Connections connections;
+   // the calls of the current window, null when no window is open
+   private Map<Integer, CompletableFuture<String>> calls = null;
+   private JSONArray batch = null;
+
+   CallBatcher(long windowMillis, int maxCalls, Connections connections) {
+      this.windowMillis = windowMillis;
+      this.maxCalls = maxCalls;
+      this.connections = connections;
+   }
+
+   /**
+    * Adds a call to the current window
+    * @return the call's response once the batch is answered
+    */
+   CompletableFuture<String> submit(int id, JSONObject call) {
+      CompletableFuture<String> response = new CompletableFuture<String>();
+      Map<Integer, CompletableFuture<String>> full = null;
+      JSONArray fullBatch = null;
+      synchronized (this) {
+         if (calls == null) {
+            calls = new LinkedHashMap<Integer, CompletableFuture<String>>();
+            batch = new JSONArray();
+            Map<Integer, CompletableFuture<String>> window = calls;
+            timer.schedule(() -> flush(window), windowMillis, TimeUnit.MILLISECONDS);
+         }
+         calls.put(id, response);
+         batch.put(call);
+         if (calls.size() >= maxCalls) {
+            full = calls;
+            fullBatch = batch;
+            calls = null;
+            batch = null;
+         }
+      }
+      if (full != null) {
+         send(full, fullBatch);
+      }
+      return response;
+   }
+
+   /**
+    * Sends the calls of a window when it ends, unless they were sent when it filled up
+    */
+   private void flush(Map<Integer, CompletableFuture<String>> window) {
+      JSONArray windowBatch;
+      synchronized (this) {
+         if (calls != window) {
+            return;
+         }
+         windowBatch = batch;
+         calls = null;
+         batch = null;
+      }
+      send(window, windowBatch);
+   }
+
+   private void send(Map<Integer, CompletableFuture<String>> sent, JSONArray sentBatch) {
+      try {
+         String message = sentBatch.length() == 1 ? sentBatch.getJSONObject(0).toString() : sentBatch.toString();
+         connections.next().send(sent, message);
+      } catch (IOException e) {
+         for (CompletableFuture<String> response : sent.values()) {
+            response.completeExceptionally(e);
+         }
+      }
+   }
+}
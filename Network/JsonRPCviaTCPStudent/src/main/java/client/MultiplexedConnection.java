@@ -0,0 +1,164 @@
+package client;
+
+import server.MessageFramer;
+import java.net.*;
+import java.io.*;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * One TCP connection to the student server that stays open for many calls.
+ * Any number of threads may send calls on it at the same time: each call is
+ * written as soon as it is made and waits for the response with its id, a
+ * reader thread takes the responses off the connection in whatever order the
+ * server sends them and hands each one to the call with the same id. A batch
+ * of calls is sent as one message and its array of responses is handed out
+ * the same way, one response per call.
+ *
+ * When the connection fails or the server closes it, every call still
+ * waiting gets the exception and the connection is not used again, the
+ * proxy opens a new one for the next call.
+ */
+class MultiplexedConnection extends Object {
+
+   private static final boolean debugOn = false;
+   private final Socket sock;
+   private final MessageFramer framer;
+   // calls sent and not answered yet by id
+   private final Map<Integer, CompletableFuture<String>> pending =
+      new ConcurrentHashMap<Integer, CompletableFuture<String>>();
+   private volatile boolean closed = false;
+
+   MultiplexedConnection(String host, int port) throws IOException {
+      sock = new Socket(host, port);
+      // calls are small and written at once, do not wait for more to send
+      sock.setTcpNoDelay(true);
+      framer = new MessageFramer(sock.getInputStream(), sock.getOutputStream());
+      Thread reader = new Thread(this::readResponses, "student-proxy-reader-" + port);
+      // the connections must not keep a client from exiting
+      reader.setDaemon(true);
+      reader.start();
+   }
+
+   private void debug(String message) {
+      if (debugOn)
+         System.out.println("debug: "+message);
+   }
+
+   boolean isClosed() {
+      return closed;
+   }
+
+   /**
+    * Sends a call, it is answered when the response with the same id arrives.
+    * Cancelling the returned future, e.g. after a timeout, forgets the call,
+    * a response that still comes is dropped.
+    * @param id the id of the call, unique among the calls waiting on this connection
+    * @param call the JsonRPC request
+    */
+   CompletableFuture<String> send(int id, String call) {
+      CompletableFuture<String> response = new CompletableFuture<String>();
+      send(Collections.singletonMap(id, response), call);
+      return response;
+   }
+
+   /**
+    * Sends a message with one or more calls, a batch is answered call by call
+    * @param calls the future of every call in the message by its id
+    * @param message a JsonRPC request or batch
+    */
+   void send(Map<Integer, CompletableFuture<String>> calls, String message) {
+      for (Map.Entry<Integer, CompletableFuture<String>> call : calls.entrySet()) {
+         Integer id = call.getKey();
+         CompletableFuture<String> response = call.getValue();
+         pending.put(id, response);
+         // however the call ends, answered, failed or cancelled, it is not waiting any more
+         response.whenComplete((result, failure) -> pending.remove(id, response));
+      }
+      // checked after the put, the reader fails all pending calls after it sets closed
+      if (closed) {
+         fail(calls, new IOException("connection to the student server is closed"));
+         return;
+      }
+      try {
+         synchronized (framer) {
+            framer.write(message);
+         }
+      } catch (IOException e) {
+         fail(calls, e);
+         close();
+      }
+   }
+
+   private static void fail(Map<Integer, CompletableFuture<String>> calls, IOException failure) {
+      for (CompletableFuture<String> response : calls.values()) {
+         response.completeExceptionally(failure);
+      }
+   }
+
+   void close() {
+      closed = true;
+      try {
+         sock.close();
+      } catch (IOException ignored) {
+      }
+   }
+
+   private void answer(JSONObject res, String response) {
+      if (res.isNull("id") && res.has("error")) {
+         // the server could not read the id of a call, so it is not known which one this is,
+         // the other calls on the connection go on and that one times out
+         System.out.println("error from the student server for an unreadable call: "
+                            +res.getJSONObject("error").optString("message"));
+         return;
+      }
+      CompletableFuture<String> call = res.isNull("id") ? null : pending.remove(res.optInt("id", -1));
+      if (call != null) {
+         call.complete(response);
+      } else {
+         debug("response without a waiting call: "+response);
+      }
+   }
+
+   /**
+    * Fails every call that was sent and is not answered yet
+    */
+   private void failPending(IOException failure) {
+      for (Integer id : pending.keySet()) {
+         CompletableFuture<String> call = pending.remove(id);
+         if (call != null) {
+            call.completeExceptionally(failure);
+         }
+      }
+   }
+
+   private void readResponses() {
+      IOException failure = new EOFException("the student server closed the connection");
+      try {
+         String response;
+         while ((response = framer.read()) != null) {
+            if (response.startsWith("[")) {
+               JSONArray responses = new JSONArray(response);
+               for (int i=0; i<responses.length(); i++){
+                  JSONObject res = responses.getJSONObject(i);
+                  answer(res, res.toString());
+               }
+            } else {
+               answer(new JSONObject(response), response);
+            }
+         }
+      } catch (IOException e) {
+         failure = e;
+      } catch (Exception e) {
+         failure = new IOException("unreadable response from the student server: "+e.getMessage(), e);
+      } finally {
+         close();
+         failPending(failure);
+         framer.release();
+      }
+   }
+}
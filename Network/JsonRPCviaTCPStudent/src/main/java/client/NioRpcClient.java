@@ -0,0 +1,349 @@
+package client;
+
+import server.MessageFramer;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A JsonRPC client on one non-blocking connection to the student server.
+ * A single selector thread does all the I/O: it writes the calls that were
+ * queued since it last ran, as many frames per write as fit, and cuts the
+ * bytes it reads into the response messages (see MessageFramer for the
+ * framing). Sending a call only queues it, so any number of calls can be
+ * on the way from one thread without a thread waiting for each of them.
+ * The responses are matched to their calls by id on a pool thread, which
+ * also completes the futures.
+ *
+ * Every call has a timeout after which its future fails with a
+ * TimeoutException. A call whose future is done before it was written,
+ * timed out or cancelled, is not sent at all. When the connection fails
+ * every call fails with the exception, the next call opens a new one.
+ */
+class NioRpcClient extends Object implements AutoCloseable {
+
+   private static final boolean debugOn = false;
+   // frames are collected into writes of about this size
+   private static final int writeBufferSize = 64 * 1024;
+   private static final int initialReadBufferSize = 64 * 1024;
+   private static final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "student-nio-timeouts");
+         thread.setDaemon(true);
+         return thread;
+      });
+   // parses the responses and completes the futures, so the selector thread only moves bytes
+   private static final Executor callbacks = ForkJoinPool.commonPool();
+
+   private static class Call {
+      final int id;
+      final byte[] frame;
+      final CompletableFuture<String> response;
+
+      Call(int id, byte[] frame, CompletableFuture<String> response) {
+         this.id = id;
+         this.frame = frame;
+         this.response = response;
+      }
+   }
+
+   private final InetSocketAddress address;
+   private final Selector selector;
+   private final AtomicInteger nextId = new AtomicInteger();
+   // calls not written yet
+   private final ConcurrentLinkedQueue<Call> outgoing = new ConcurrentLinkedQueue<Call>();
+   // calls written or being written, not answered yet
+   private final Map<Integer, CompletableFuture<String>> pending =
+      new ConcurrentHashMap<Integer, CompletableFuture<String>>();
+   private final AtomicBoolean wakeupPending = new AtomicBoolean();
+   private volatile boolean closed = false;
+
+   // only used by the selector thread
+   private SocketChannel channel = null;
+   private boolean connected = false;
+   private ByteBuffer writing = null;
+   private ByteBuffer in = ByteBuffer.allocate(initialReadBufferSize);
+
+   NioRpcClient(String host, int port) throws IOException {
+      address = new InetSocketAddress(host, port);
+      selector = Selector.open();
+      Thread loop = new Thread(this::run, "student-nio-" + port);
+      // the connection must not keep a client from exiting
+      loop.setDaemon(true);
+      loop.start();
+   }
+
+   private void debug(String message) {
+      if (debugOn)
+         System.out.println("debug: "+message);
+   }
+
+   /**
+    * Queues a call
+    * @param timeoutMillis how long the call may take until it is answered
+    * @return the response, fails with a TimeoutException after timeoutMillis
+    */
+   CompletableFuture<String> call(String method, Object[] params, long timeoutMillis) {
+      CompletableFuture<String> response = new CompletableFuture<String>();
+      if (closed) {
+         response.completeExceptionally(new IOException("the client is closed"));
+         return response;
+      }
+      int id = nextId.getAndIncrement();
+      JSONObject theCall = new JSONObject();
+      theCall.put("method",method);
+      theCall.put("id",id);
+      theCall.put("jsonrpc","2.0");
+      JSONArray paramsJson = new JSONArray();
+      for (int i=0; i<params.length; i++){
+         paramsJson.put(params[i]);
+      }
+      theCall.put("params",paramsJson);
+      byte[] message = theCall.toString().getBytes(StandardCharsets.UTF_8);
+      if (message.length > MessageFramer.maxFrameSize) {
+         response.completeExceptionally(new MessageFramer.FrameTooLargeException(message.length));
+         return response;
+      }
+      byte[] frame = new byte[4 + message.length];
+      ByteBuffer.wrap(frame).putInt(message.length).put(message);
+
+      ScheduledFuture<?> timeout = timer.schedule(() -> response.completeExceptionally(
+            new TimeoutException(method+" not answered within "+timeoutMillis+" ms")),
+         timeoutMillis, TimeUnit.MILLISECONDS);
+      response.whenComplete((result, failure) -> {
+         timeout.cancel(false);
+         pending.remove(id, response);
+      });
+      outgoing.add(new Call(id, frame, response));
+      // one wakeup for all the calls queued until the selector thread runs
+      if (wakeupPending.compareAndSet(false, true)) {
+         selector.wakeup();
+      }
+      return response;
+   }
+
+   /**
+    * Fails the calls on the way and stops the selector thread
+    */
+   public void close() {
+      closed = true;
+      selector.wakeup();
+   }
+
+   private void run() {
+      try {
+         while (!closed) {
+            selector.select();
+            wakeupPending.set(false);
+            try {
+               if (channel == null && !outgoing.isEmpty()) {
+                  open();
+               }
+               for (SelectionKey key : selector.selectedKeys()) {
+                  if (key.isValid() && key.isConnectable()) {
+                     channel.finishConnect();
+                     connected = true;
+                  }
+                  if (key.isValid() && key.isReadable()) {
+                     read();
+                  }
+               }
+               selector.selectedKeys().clear();
+               if (connected) {
+                  write();
+               }
+            } catch (IOException | RuntimeException e) {
+               debug("connection failed: "+e);
+               selector.selectedKeys().clear();
+               fail(e instanceof IOException ? (IOException) e
+                    : new IOException("unreadable response from the student server: "+e.getMessage(), e));
+            }
+         }
+      } catch (IOException e) {
+         System.out.println("exception in the student client selector: "+e.getMessage());
+      } finally {
+         closed = true;
+         fail(new IOException("the client is closed"));
+         try {
+            selector.close();
+         } catch (IOException ignored) {
+         }
+      }
+   }
+
+   private void open() throws IOException {
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      connected = channel.connect(address);
+      channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+   }
+
+   /**
+    * Writes the queued calls until the socket takes no more, then waits for it to be writable
+    */
+   private void write() throws IOException {
+      while (true) {
+         if (writing == null) {
+            writing = nextWrite();
+            if (writing == null) {
+               break;
+            }
+         }
+         channel.write(writing);
+         if (writing.hasRemaining()) {
+            break;
+         }
+         writing = null;
+      }
+      int interest = SelectionKey.OP_READ | (writing != null ? SelectionKey.OP_WRITE : 0);
+      SelectionKey key = channel.keyFor(selector);
+      if (key.interestOps() != interest) {
+         key.interestOps(interest);
+      }
+   }
+
+   /**
+    * @return the frames of the next queued calls in one buffer, null if none is queued
+    */
+   private ByteBuffer nextWrite() {
+      List<Call> calls = new ArrayList<Call>();
+      int size = 0;
+      Call call;
+      while (size < writeBufferSize && (call = outgoing.poll()) != null) {
+         // timed out or cancelled while it was queued
+         if (call.response.isDone()) {
+            continue;
+         }
+         // registered before it is written, the response cannot come before the call
+         pending.put(call.id, call.response);
+         if (call.response.isDone()) {
+            pending.remove(call.id, call.response);
+            continue;
+         }
+         calls.add(call);
+         size += call.frame.length;
+      }
+      if (calls.isEmpty()) {
+         return null;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(size);
+      for (Call c : calls) {
+         buffer.put(c.frame);
+      }
+      buffer.flip();
+      return buffer;
+   }
+
+   /**
+    * Reads what has arrived and hands every complete response to the pool
+    */
+   private void read() throws IOException {
+      if (channel.read(in) == -1) {
+         throw new EOFException("the student server closed the connection");
+      }
+      in.flip();
+      while (in.remaining() >= 4) {
+         int length = in.getInt(in.position());
+         if (length < 0 || length > MessageFramer.maxFrameSize) {
+            throw new MessageFramer.FrameTooLargeException(length);
+         }
+         if (in.remaining() < 4 + length) {
+            if (in.capacity() < 4 + length) {
+               // grow to the whole message, the next reads go on after what is there
+               ByteBuffer bigger = ByteBuffer.allocate(Math.max(4 + length, 2 * in.capacity()));
+               bigger.put(in);
+               in = bigger;
+               return;
+            }
+            break;
+         }
+         String message = new String(in.array(), in.arrayOffset() + in.position() + 4, length,
+                                     StandardCharsets.UTF_8);
+         in.position(in.position() + 4 + length);
+         callbacks.execute(() -> answer(message));
+      }
+      in.compact();
+   }
+
+   private void answer(String message) {
+      try {
+         if (message.startsWith("[")) {
+            JSONArray responses = new JSONArray(message);
+            for (int i=0; i<responses.length(); i++){
+               JSONObject res = responses.getJSONObject(i);
+               answer(res, res.toString());
+            }
+         } else {
+            answer(new JSONObject(message), message);
+         }
+      } catch (RuntimeException e) {
+         System.out.println("unreadable response from the student server: "+e.getMessage());
+      }
+   }
+
+   private void answer(JSONObject res, String response) {
+      if (res.isNull("id") && res.has("error")) {
+         // the server could not read the id of a call, so it is not known which one this is,
+         // the other calls on the connection go on and that one times out
+         System.out.println("error from the student server for an unreadable call: "
+                            +res.getJSONObject("error").optString("message"));
+         return;
+      }
+      CompletableFuture<String> call = res.isNull("id") ? null : pending.remove(res.optInt("id", -1));
+      if (call != null) {
+         call.complete(response);
+      } else {
+         debug("response without a waiting call: "+response);
+      }
+   }
+
+   /**
+    * Closes the connection and fails every call that was sent or queued
+    */
+   private void fail(IOException failure) {
+      if (channel != null) {
+         try {
+            channel.close();
+         } catch (IOException ignored) {
+         }
+      }
+      channel = null;
+      connected = false;
+      writing = null;
+      in.clear();
+      for (Integer id : pending.keySet()) {
+         CompletableFuture<String> call = pending.remove(id);
+         if (call != null) {
+            call.completeExceptionally(failure);
+         }
+      }
+      Call call;
+      while ((call = outgoing.poll()) != null) {
+         call.response.completeExceptionally(failure);
+      }
+   }
+}
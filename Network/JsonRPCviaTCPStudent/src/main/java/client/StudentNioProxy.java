@@ -0,0 +1,131 @@
+package client;
+
+import server.Student;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The asynchronous student collection client proxy: it marshals the
+ * parameters of a call like StudentTcpProxy, sends the call on a
+ * non-blocking connection (NioRpcClient) and returns a future that
+ * unmarshals the result when the response arrives. One thread can keep
+ * hundreds of calls on the way, e.g. look up many students at once:
+ *
+ *    List<CompletableFuture<Student>> studs = new ArrayList<>();
+ *    for (String name : names) studs.add(proxy.get(name));
+ *    CompletableFuture.allOf(studs.toArray(new CompletableFuture[0])).join();
+ *
+ * Every call fails with a TimeoutException when it is not answered within
+ * the proxy's timeout, withTimeout gives a proxy on the same connection with
+ * another one. A response with a JsonRPC error fails the future with an
+ * IOException that has the error message.
+ */
+public class StudentNioProxy extends Object implements AsyncStudentCollection, AutoCloseable {
+
+   private static final long defaultTimeoutMillis = 30000;
+   private final NioRpcClient client;
+   private final long timeoutMillis;
+
+   public StudentNioProxy (String host, int port) throws IOException {
+      this(new NioRpcClient(host, port), defaultTimeoutMillis);
+   }
+
+   private StudentNioProxy (NioRpcClient client, long timeoutMillis) {
+      this.client = client;
+      this.timeoutMillis = timeoutMillis;
+   }
+
+   /**
+    * @return a proxy on the same connection whose calls time out after timeoutMillis
+    */
+   public StudentNioProxy withTimeout(long timeoutMillis) {
+      return new StudentNioProxy(client, timeoutMillis);
+   }
+
+   /**
+    * Closes the connection of this proxy and of the ones made by withTimeout
+    */
+   public void close() {
+      client.close();
+   }
+
+   /**
+    * Generic method caller
+    * @return the JsonRPC response
+    */
+   public CompletableFuture<String> callMethod(String method, Object[] params){
+      return client.call(method, params, timeoutMillis);
+   }
+
+   /**
+    * @return source.thenApply(fn), cancelling it cancels the source as well so an
+    *    abandoned call is not sent
+    */
+   private static <T,R> CompletableFuture<R> map(CompletableFuture<T> source, Function<? super T,? extends R> fn){
+      CompletableFuture<R> ret = source.thenApply(fn);
+      ret.whenComplete((result, failure) -> {
+         if (ret.isCancelled()) {
+            source.cancel(false);
+         }
+      });
+      return ret;
+   }
+
+   /**
+    * @return the result of a call, null if it has none
+    */
+   private CompletableFuture<Object> result(String method, Object[] params){
+      return map(callMethod(method, params), response -> {
+         JSONObject res = new JSONObject(response);
+         JSONObject error = res.optJSONObject("error");
+         if (error != null) {
+            throw new CompletionException(new IOException(method+" failed: "+error.optString("message")));
+         }
+         return res.opt("result");
+      });
+   }
+
+   private CompletableFuture<Boolean> booleanResult(String method, Object[] params){
+      return map(result(method, params), result -> Boolean.TRUE.equals(result));
+   }
+
+   public CompletableFuture<Boolean> saveToJsonFile() {
+      return booleanResult("saveToJsonFile", new Object[]{});
+   }
+
+   public CompletableFuture<Boolean> resetFromJsonFile() {
+      return booleanResult("resetFromJsonFile", new Object[]{});
+   }
+
+   public CompletableFuture<Boolean> add(Student stud) {
+      return booleanResult("add", new Object[]{stud.toJson()});
+   }
+
+   public CompletableFuture<Boolean> remove(String aName) {
+      return booleanResult("remove", new Object[]{aName});
+   }
+
+   public CompletableFuture<Student> get(String aName) {
+      return map(result("get", new Object[]{aName}), result -> new Student((JSONObject) result));
+   }
+
+   public CompletableFuture<String> getNameById(int id) {
+      return map(result("getNameById", new Object[]{id}),
+                 result -> result instanceof String ? (String) result : "unknown");
+   }
+
+   public CompletableFuture<String[]> getNames() {
+      return map(result("getNames", new Object[0]), result -> {
+         JSONArray namesJson = (JSONArray) result;
+         String[] ret = new String[namesJson.length()];
+         for (int i=0; i<namesJson.length(); i++){
+            ret[i] = namesJson.optString(i,"unknown");
+         }
+         return ret;
+      });
+   }
+}
@@ -5,6 +5,13 @@ import server.StudentCollection;
 import java.net.*;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.JSONObject;
 import org.json.JSONArray;
 
@@ -13,7 +20,13 @@ import org.json.JSONArray;
  * The student collection client proxy implements the server methods
  * by marshalling/unmarshalling parameters and results and using a TCP
  * connection to request the method be executed on the server.
- * Byte arrays are used for communication to support multiple langs.
+ * The proxy keeps a few connections open and shares them between all calls,
+ * a call waits for the response with its own id, so calls from several
+ * threads are on the way at the same time without a connection each.
+ * With a batch window the calls made within the window are sent together
+ * as one JsonRPC batch, addAll always sends its students as batches.
+ * Messages are framed with their length (see MessageFramer) and UTF-8
+ * encoded to support multiple langs.
  *
  * @author Tim Lindquist ASU Polytechnic Department of Engineering
  * @version April 2020
@@ -21,14 +34,33 @@ import org.json.JSONArray;
 public class StudentTcpProxy extends Object implements StudentCollection {
 
    private static final boolean debugOn = false;
-   private static final int buffSize = 4096;
-   private static int id = 0;
+   private static final int defaultConnections = 2;
+   // how long a call waits for its response
+   private static final long callTimeoutMillis = 30000;
+   // calls in one batch, a batch is one message and has to stay below the maximum message size
+   private static final int maxBatchCalls = 1000;
+   private static final AtomicInteger nextId = new AtomicInteger();
    private String host;
    private int port;
+   private final MultiplexedConnection[] connections;
+   private int nextConnection = 0;
+   // null if every call is sent on its own
+   private final CallBatcher batcher;
    
    public StudentTcpProxy (String host, int port){
+      this(host, port, defaultConnections, 0);
+   }
+
+   /**
+    * @param connections how many connections the calls are spread over
+    * @param batchWindowMillis how long calls are collected into a batch, 0 to send every call at once
+    */
+   public StudentTcpProxy (String host, int port, int connections, long batchWindowMillis){
       this.host = host;
       this.port = port;
+      this.connections = new MultiplexedConnection[Math.max(1, connections)];
+      this.batcher = batchWindowMillis > 0
+         ? new CallBatcher(batchWindowMillis, maxBatchCalls, this::connection) : null;
    }
 
    private void debug(String message) {
@@ -37,54 +69,128 @@ public class StudentTcpProxy extends Object implements StudentCollection {
    }
 
    /**
-    * Generic method caller using TCP
+    * @return the next connection in turn, opened again if it was closed
+    */
+   private synchronized MultiplexedConnection connection() throws IOException {
+      int i = nextConnection;
+      nextConnection = (nextConnection + 1) % connections.length;
+      if (connections[i] == null || connections[i].isClosed()) {
+         connections[i] = new MultiplexedConnection(host, port);
+      }
+      return connections[i];
+   }
+
+   /**
+    * Closes the connections, a later call opens new ones
+    */
+   public synchronized void close() {
+      for (int i=0; i<connections.length; i++){
+         if (connections[i] != null) {
+            connections[i].close();
+            connections[i] = null;
+         }
+      }
+   }
+
+   /**
+    * @return the JsonRPC request for a call
+    */
+   private JSONObject request(int id, String method, Object[] params){
+      JSONObject theCall = new JSONObject();
+      theCall.put("method",method);
+      theCall.put("id",id);
+      theCall.put("jsonrpc","2.0");
+      ArrayList<Object> al = new ArrayList();
+      for (int i=0; i<params.length; i++){
+         al.add(params[i]);
+      }
+      JSONArray paramsJson = new JSONArray(al);
+      theCall.put("params",paramsJson);
+      debug("Request is: "+theCall.toString());
+      return theCall;
+   }
+
+   /**
+    * Generic method caller using TCP, with a batch window the call is sent
+    * together with the other calls made within the window
     * @param method
     * @param params
     * @return
     */
    public String callMethod(String method, Object[] params){
-      // create JSON RPC message
-      JSONObject theCall = new JSONObject();
       String ret = "{}";
+      CompletableFuture<String> response = null;
       try{
-         debug("Request is: "+theCall.toString());
-         theCall.put("method",method);
-         theCall.put("id",id);
-         theCall.put("jsonrpc","2.0");
-         ArrayList<Object> al = new ArrayList();
-         for (int i=0; i<params.length; i++){
-            al.add(params[i]);
-         }
-         JSONArray paramsJson = new JSONArray(al);
-         theCall.put("params",paramsJson);
+         // create JSON RPC message
+         int id = nextId.getAndIncrement();
+         JSONObject theCall = request(id, method, params);
 
-         // prep connection and the byte array
-         Socket sock = new Socket(host,port);
-         OutputStream os = sock.getOutputStream();
-         InputStream is = sock.getInputStream();
-         int numBytesReceived;
-         int bufLen = 1024;
-         String strToSend = theCall.toString();
-         byte bytesReceived[] = new byte[buffSize];
-         byte bytesToSend[] = strToSend.getBytes();
+         // send the message on a shared connection and wait for the response with its id
+         if (batcher != null) {
+            response = batcher.submit(id, theCall);
+         } else {
+            response = connection().send(id, theCall.toString());
+         }
+         ret = response.get(callTimeoutMillis, TimeUnit.MILLISECONDS);
 
-         // send the message
-         os.write(bytesToSend,0,bytesToSend.length);
-         // get response
-         numBytesReceived = is.read(bytesReceived,0,bufLen);
-         ret = new String(bytesReceived,0,numBytesReceived);
-         
          // return
          debug("callMethod received from server: "+ret);
-         os.close();
-         is.close();
-         sock.close();
+         JSONObject error = new JSONObject(ret).optJSONObject("error");
+         if (error != null) {
+            System.out.println("error from the server in "+method+": "+error.optString("message"));
+         }
       }catch(Exception ex){
          System.out.println("exception in callMethod: "+ex.getMessage());
+      }finally{
+         // after a timeout the call is forgotten
+         if (response != null) {
+            response.cancel(false);
+         }
       }
       return ret;
    }
 
+   /**
+    * Adds the students with batches of add calls, maxBatchCalls in a message
+    * @return true if all of them were added
+    */
+   public boolean addAll(Collection<Student> studs) {
+      List<CompletableFuture<String>> responses = new ArrayList<CompletableFuture<String>>();
+      try{
+         Map<Integer, CompletableFuture<String>> calls = new LinkedHashMap<Integer, CompletableFuture<String>>();
+         JSONArray batch = new JSONArray();
+         for (Student stud : studs) {
+            int id = nextId.getAndIncrement();
+            CompletableFuture<String> response = new CompletableFuture<String>();
+            calls.put(id, response);
+            responses.add(response);
+            batch.put(request(id, "add", new Object[]{stud.toJson()}));
+            if (calls.size() == maxBatchCalls) {
+               // sent without waiting, the batches are on the way at the same time
+               connection().send(calls, batch.toString());
+               calls = new LinkedHashMap<Integer, CompletableFuture<String>>();
+               batch = new JSONArray();
+            }
+         }
+         if (!calls.isEmpty()) {
+            connection().send(calls, batch.toString());
+         }
+         boolean ret = true;
+         for (CompletableFuture<String> response : responses) {
+            String result = response.get(callTimeoutMillis, TimeUnit.MILLISECONDS);
+            ret &= new JSONObject(result).optBoolean("result",false);
+         }
+         return ret;
+      }catch(Exception ex){
+         System.out.println("exception in addAll: "+ex.getMessage());
+         return false;
+      }finally{
+         for (CompletableFuture<String> response : responses) {
+            response.cancel(false);
+         }
+      }
+   }
+
    public boolean saveToJsonFile() {
       boolean ret = false;
       String result = callMethod("saveToJsonFile", new Object[]{});
@@ -122,7 +228,9 @@ public class StudentTcpProxy extends Object implements StudentCollection {
       String result = callMethod("get", new Object[]{aName});
       JSONObject res = new JSONObject(result);
       JSONObject studJson = res.optJSONObject("result");
-      ret = new Student(studJson);
+      if (studJson != null) {
+         ret = new Student(studJson);
+      }
       return ret;
    }
    
@@ -140,9 +248,11 @@ public class StudentTcpProxy extends Object implements StudentCollection {
       debug("result of getNames is: "+result);
       JSONObject res = new JSONObject(result);
       JSONArray namesJson = res.optJSONArray("result");
-      ret = new String[namesJson.length()];
-      for (int i=0; i<namesJson.length(); i++){
-         ret[i] = namesJson.optString(i,"unknown");
+      if (namesJson != null) {
+         ret = new String[namesJson.length()];
+         for (int i=0; i<namesJson.length(); i++){
+            ret[i] = namesJson.optString(i,"unknown");
+         }
       }
       return ret;
    }
@@ -0,0 +1,141 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Purpose: frames the JsonRPC messages sent over a TCP stream so that a
+ * message of any size arrives complete. A single read of a socket returns
+ * whatever has arrived so far, which may be part of a message or the parts
+ * of two. Every message is therefore sent as a 4 byte length (big-endian,
+ * the byte order of Java's DataOutputStream and of network protocols)
+ * followed by that many bytes of UTF-8 encoded JSON. A reader reads the
+ * length and then exactly that many bytes, whatever the reads return.
+ *
+ * A message is read into a buffer that is kept for the next message and
+ * grows when a message does not fit, up to maxFrameSize. A longer length is
+ * refused before anything is allocated, so a client cannot make the server
+ * allocate gigabytes by sending a large length. Buffers of closed framers go
+ * to a small pool the next connection takes its buffer from.
+ *
+ * Both the server and the client proxy use this class; a client in another
+ * language only has to write and read the 4 byte length before each message.
+ */
+public class MessageFramer extends Object {
+
+   /** the largest message in bytes, -Dframe.max=bytes to change it */
+   public static final int maxFrameSize = Integer.getInteger("frame.max", 16 * 1024 * 1024);
+   private static final int initialBufferSize = 4096;
+   // larger buffers are left to the garbage collector instead of being kept in the pool
+   private static final int maxPooledBufferSize = 64 * 1024;
+   private static final int maxPooledBuffers = 64;
+   private static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+   private static final AtomicInteger pooled = new AtomicInteger();
+
+   /**
+    * Thrown for a length larger than maxFrameSize. The stream is not
+    * positioned at a message any more and has to be closed.
+    */
+   public static class FrameTooLargeException extends IOException {
+      private static final long serialVersionUID = 1L;
+
+      public final int length;
+
+      public FrameTooLargeException(int length) {
+         super("message of " + length + " bytes is larger than the maximum of "
+               + maxFrameSize + " bytes");
+         this.length = length;
+      }
+   }
+
+   private final InputStream in;
+   private final OutputStream out;
+   private byte[] buffer;
+   private final byte[] header = new byte[4];
+
+   public MessageFramer(InputStream in, OutputStream out) {
+      this.in = in;
+      this.out = out;
+      byte[] reused = pool.poll();
+      if (reused != null) {
+         pooled.decrementAndGet();
+      }
+      buffer = reused != null ? reused : new byte[initialBufferSize];
+   }
+
+   /**
+    * Reads the next message
+    * @return the message or null if the stream ended before it
+    * @throws FrameTooLargeException if its length is larger than maxFrameSize
+    * @throws EOFException if the stream ended within the message
+    */
+   public String read() throws IOException {
+      int first = in.read();
+      if (first == -1) {
+         return null;
+      }
+      header[0] = (byte) first;
+      readFully(header, 1, 3);
+      int length = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16)
+         | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+      if (length < 0 || length > maxFrameSize) {
+         throw new FrameTooLargeException(length);
+      }
+      if (length > buffer.length) {
+         // at least double, so a growing roster does not copy on every message
+         int size = (int) Math.min(maxFrameSize, Math.max(length, 2L * buffer.length));
+         buffer = new byte[size];
+      }
+      readFully(buffer, 0, length);
+      return new String(buffer, 0, length, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * Writes a message with its length in front and flushes it
+    * @throws FrameTooLargeException if it is larger than maxFrameSize
+    */
+   public void write(String message) throws IOException {
+      byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+      if (bytes.length > maxFrameSize) {
+         throw new FrameTooLargeException(bytes.length);
+      }
+      byte[] frame = new byte[4 + bytes.length];
+      frame[0] = (byte) (bytes.length >>> 24);
+      frame[1] = (byte) (bytes.length >>> 16);
+      frame[2] = (byte) (bytes.length >>> 8);
+      frame[3] = (byte) bytes.length;
+      System.arraycopy(bytes, 0, frame, 4, bytes.length);
+      // one write, so the length and the message go out in the same segment
+      out.write(frame, 0, frame.length);
+      out.flush();
+   }
+
+   /**
+    * Gives the buffer back to the pool, the streams are closed by the owner of the socket
+    */
+   public void release() {
+      byte[] released = buffer;
+      buffer = new byte[0];
+      if (released.length <= maxPooledBufferSize && pooled.incrementAndGet() <= maxPooledBuffers) {
+         pool.offer(released);
+      } else if (released.length <= maxPooledBufferSize) {
+         pooled.decrementAndGet();
+      }
+   }
+
+   private void readFully(byte[] into, int offset, int length) throws IOException {
+      while (length > 0) {
+         int numr = in.read(into, offset, length);
+         if (numr == -1) {
+            throw new EOFException("connection closed within a message");
+         }
+         offset += numr;
+         length -= numr;
+      }
+   }
+}
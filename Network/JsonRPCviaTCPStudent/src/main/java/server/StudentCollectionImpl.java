@@ -19,6 +19,10 @@ import java.io.IOException;
  * Purpose: This class is part of an example developed to demonstrate distributed
  * and mobile apps connecting to a JsonRPC server where the client and server
  * communicate using TCP/IP stream-based sockets.
+ * Students are kept by name and indexed by studentid (StudentIdIndex), so
+ * getNameById finds a student without looking at the others. add, remove
+ * and resetFromJsonFile change both under the lock of the collection, the
+ * students have to be changed through them to stay in the index.
  *
  * @author Tim Lindquist
  * @version April 2020
@@ -29,6 +33,9 @@ class StudentCollectionImpl extends Object implements StudentCollection{
    public Hashtable<String,Student> students;
    private static final boolean debugOn = false;
    private static final String studentJsonFileName = "students.json";
+   private final StudentIdIndex byId = new StudentIdIndex();
+   // students added with an id another student already had, removing one looks for the other
+   private int sharedIds = 0;
 
    public StudentCollectionImpl() {
       debug("creating a new student collection");
@@ -46,10 +53,42 @@ class StudentCollectionImpl extends Object implements StudentCollection{
          System.out.println("debug: "+message);
    }
 
-   public boolean resetFromJsonFile() {
+   /**
+    * Adds or replaces the student with the name in both the students and the index
+    */
+   private void put(Student aStud) {
+      Student replaced = students.put(aStud.name,aStud);
+      if (replaced != null) {
+         unindex(replaced);
+      }
+      Student sameId = byId.get(aStud.studentid);
+      if (sameId != null && sameId != aStud) {
+         sharedIds++;
+      }
+      byId.put(aStud);
+   }
+
+   /**
+    * Takes a student that is no longer in students out of the index
+    */
+   private void unindex(Student aStud) {
+      if (byId.remove(aStud) && sharedIds > 0) {
+         // another student may have the same id, the first one found takes its place
+         for (Student other : students.values()) {
+            if (other.studentid == aStud.studentid) {
+               byId.put(other);
+               break;
+            }
+         }
+      }
+   }
+
+   public synchronized boolean resetFromJsonFile() {
       boolean ret = true;
       try{
          students.clear();
+         byId.clear();
+         sharedIds = 0;
          String fileName = studentJsonFileName;
          File f = new File(fileName);
          FileInputStream is = new FileInputStream(f);
@@ -59,7 +98,7 @@ class StudentCollectionImpl extends Object implements StudentCollection{
             String mType = it.next();
             JSONObject studentJson = studentMap.optJSONObject(mType);
             Student stud = new Student(studentJson);
-            students.put(stud.name, stud);
+            put(stud);
             debug("added "+stud.name+" : "+stud.toJsonString()+
                   "\nstudents.size() is: " + students.size());
          }
@@ -88,20 +127,24 @@ class StudentCollectionImpl extends Object implements StudentCollection{
       return ret;
    }
    
-   public boolean add(Student aStud) {
+   public synchronized boolean add(Student aStud) {
       boolean ret = true;
       debug("adding student named: "+((aStud==null)?"unknown":aStud.name));
       try{
-         students.put(aStud.name,aStud);
+         put(aStud);
       }catch(Exception ex){
          ret = false;
       }
       return ret;
    }
 
-   public boolean remove(String aName) {
+   public synchronized boolean remove(String aName) {
       debug("removing student named: "+aName);
-      return ((students.remove(aName)==null)?false:true);
+      Student removed = students.remove(aName);
+      if (removed != null) {
+         unindex(removed);
+      }
+      return ((removed==null)?false:true);
    }
 
    public String[] getNames() {
@@ -115,13 +158,10 @@ class StudentCollectionImpl extends Object implements StudentCollection{
    
    public String getNameById(int id) {
       String ret = "unknown";
-      String[] keys = (String[])(students.keySet()).toArray(new String[0]);
-      for (int i=0; i< keys.length; i++){
-         Student aStud = students.get(keys[i]);
-         if (aStud.studentid==id){
-            ret = aStud.name;
-            break;
-         }
+      // no lock, lookups of many threads go on at the same time
+      Student aStud = byId.get(id);
+      if (aStud != null) {
+         ret = aStud.name;
       }
       return ret;
    }
@@ -3,8 +3,10 @@ package server;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.stream.IntStream;
 import org.json.JSONObject;
 import org.json.JSONArray;
+import org.json.JSONException;
 
 /**
  * A class for client-server connections with a threaded server.
@@ -12,6 +14,11 @@ import org.json.JSONArray;
  * When a client request arrives, which should be a JsonRPC request, a new
  * thread is created to service the call and create the appropriate response.
  * Byte arrays are used for communication to support multiple langs.
+ * A request may also be a JsonRPC 2.0 batch, an array of calls that is
+ * answered with the array of their responses in the same order. Calls that
+ * only read the collection and follow each other in a batch are run in
+ * parallel, a call that changes the collection runs alone after the calls
+ * before it, so a batch has the same result as sending its calls one by one.
  *
  * @author Tim Lindquist ASU Polytechnic Department of Engineering
  * @version April 2020
@@ -19,6 +26,9 @@ import org.json.JSONArray;
 public class StudentCollectionSkeleton extends Object {
 
    private static final boolean debugOn = false;
+   // methods that do not change the collection, they may run at the same time
+   private static final Set<String> readOnlyMethods =
+      new HashSet<String>(Arrays.asList("get", "getNameById", "getNames"));
    StudentCollection studLib;
 
    public StudentCollectionSkeleton (StudentCollection studLib){
@@ -31,12 +41,89 @@ public class StudentCollectionSkeleton extends Object {
    }
 
    public String callMethod(String request){
+      try{
+         if (request.trim().startsWith("[")) {
+            return callBatch(new JSONArray(request));
+         }
+         return call(new JSONObject(request)).toString();
+      }catch(JSONException ex){
+         System.out.println("exception in callMethod: "+ex.getMessage());
+         // not even the id could be read, the client cannot tell which call this answers
+         return error(JSONObject.NULL, -32700, "Parse error: "+ex.getMessage()).toString();
+      }
+   }
+
+   /**
+    * Runs the calls of a batch
+    * @return the array of responses or an error response for an empty batch
+    */
+   private String callBatch(JSONArray calls){
+      int n = calls.length();
+      debug("batch of "+n+" calls");
+      if (n == 0) {
+         return error(JSONObject.NULL, -32600, "Invalid Request: empty batch").toString();
+      }
+      JSONObject[] theCalls = new JSONObject[n];
+      for (int i=0; i<n; i++){
+         theCalls[i] = calls.optJSONObject(i);
+      }
+      JSONObject[] results = new JSONObject[n];
+      int i = 0;
+      while (i < n) {
+         // the read only calls from i on run in parallel, else the call at i alone
+         int end = i;
+         while (end < n && isReadOnly(theCalls[end])) {
+            end++;
+         }
+         if (end == i) {
+            results[i] = call(theCalls[i]);
+            i++;
+         } else {
+            IntStream.range(i, end).parallel().forEach(k -> results[k] = call(theCalls[k]));
+            i = end;
+         }
+      }
+      JSONArray resArr = new JSONArray();
+      for (int k=0; k<n; k++){
+         resArr.put(results[k]);
+      }
+      return resArr.toString();
+   }
+
+   private static boolean isReadOnly(JSONObject theCall){
+      return theCall != null && readOnlyMethods.contains(theCall.optString("method"));
+   }
+
+   private static JSONObject error(Object id, int code, String message){
+      JSONObject error = new JSONObject();
+      error.put("code",code);
+      error.put("message",message);
+      JSONObject result = new JSONObject();
+      result.put("id",id);
+      result.put("jsonrpc","2.0");
+      result.put("error",error);
+      return result;
+   }
+
+   /**
+    * Runs one call, a call that cannot be run is answered with an error that has its id
+    * @param theCall the call or null for an element of a batch that is not an object
+    */
+   private JSONObject call(JSONObject theCall){
+      if (theCall == null) {
+         return error(JSONObject.NULL, -32600, "Invalid Request");
+      }
+      Object id = theCall.opt("id");
+      if (id == null) {
+         id = JSONObject.NULL;
+      }
       JSONObject result = new JSONObject();
       try{
-         JSONObject theCall = new JSONObject(request);
          debug("Request is: "+theCall.toString());
-         String method = theCall.getString("method");
-         int id = theCall.getInt("id");
+         String method = theCall.optString("method", null);
+         if (method == null) {
+            return error(id, -32600, "Invalid Request: no method");
+         }
          JSONArray params = null;
          if(!theCall.isNull("params")){
             params = theCall.getJSONArray("params");
@@ -73,14 +160,22 @@ public class StudentCollectionSkeleton extends Object {
             }
             debug("getNames request found: "+resArr.toString());
             result.put("result",resArr);
+         }else if(method.equals("saveToJsonFile")){
+            result.put("result",studLib.saveToJsonFile());
+         }else if(method.equals("resetFromJsonFile")){
+            result.put("result",studLib.resetFromJsonFile());
          }else{
-            debug("Unable to match method: "+method+". Returning 0.");
-            result.put("result",0.0);
+            debug("Unable to match method: "+method+".");
+            return error(id, -32601, "Method not found: "+method);
          }
+      }catch(JSONException ex){
+         System.out.println("exception in callMethod: "+ex.getMessage());
+         return error(id, -32602, "Invalid params: "+ex.getMessage());
       }catch(Exception ex){
          System.out.println("exception in callMethod: "+ex.getMessage());
+         return error(id, -32603, "Internal error: "+ex.getMessage());
       }
-      return result.toString();
+      return result;
    }
 }
 
@@ -3,10 +3,26 @@ package server;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 /**
  * A class for TCP client-server connections with a threaded server that
  * implements JsonRPC method calls for a collection of Students.
+ * A connection stays open for as many requests as the client sends. Its
+ * thread reads the requests and hands each one to a shared pool, so the
+ * requests of one connection are handled at the same time and every
+ * response is written when it is ready, with the id of its request for the
+ * client to match it. The responses are written by a writer thread of the
+ * connection, so a client that does not read its responses only stops its
+ * own connection and not the pool. At most maxInFlight requests of a
+ * connection are handled or waiting to be written, the thread reads no
+ * further requests until one response is written.
  *
  * Ser321 Foundations of Distributed Software Systems
  * @author Tim Lindquist Tim.Lindquist@asu.edu
@@ -14,9 +30,20 @@ import java.util.*;
  * @version April 2020
  */
 public class StudentCollectionTCPJsonRPCServer extends Thread {
+   private static final int maxInFlight = 64;
+   private static final ExecutorService handlers =
+      Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors(), runnable -> {
+         Thread thread = new Thread(runnable, "student-handler");
+         thread.setDaemon(true);
+         return thread;
+      });
    private Socket conn;
    private int id;
    private StudentCollectionSkeleton skeleton;
+   private final Semaphore inFlight = new Semaphore(maxInFlight);
+   // responses waiting for the writer thread, noMoreResponses ends it
+   private final BlockingQueue<String> responses = new LinkedBlockingQueue<String>();
+   private static final String noMoreResponses = new String("");
 
    public StudentCollectionTCPJsonRPCServer (Socket sock, int id,
                                              StudentCollection stdCol) {
@@ -27,31 +54,135 @@ public class StudentCollectionTCPJsonRPCServer extends Thread {
 
    public void run() {
       // setup connection
+      MessageFramer framer = null;
+      Thread writer = null;
       try {
          OutputStream outSock = conn.getOutputStream();
          InputStream inSock = conn.getInputStream();
-         byte clientInput[] = new byte[1024]; // up to 1024 bytes in a message.
-         
-         // receive request
-         int numr = inSock.read(clientInput,0,1024);
-         if (numr != -1) {
-            //System.out.println("read "+numr+" bytes");
-            String request = new String(clientInput,0,numr);
-            System.out.println("request is: "+request);
+         framer = new MessageFramer(inSock, outSock);
+         conn.setTcpNoDelay(true);
+         MessageFramer out = framer;
+         writer = new Thread(() -> writeResponses(out), "student-writer-" + id);
+         writer.start();
 
-            // prep and send response
-            String response = skeleton.callMethod(request);
-            byte clientOut[] = response.getBytes();
-	         outSock.write(clientOut,0,clientOut.length);
-            System.out.println("response is: "+response);
+         // receive requests, each a whole message however many reads it takes, until the client closes
+         String request;
+         while ((request = framer.read()) != null) {
+            System.out.println("request is: "+request);
+            inFlight.acquireUninterruptibly();
+            String call = request;
+            try {
+               handlers.execute(() -> respond(call));
+            } catch (RuntimeException e) {
+               inFlight.release();
+               throw e;
+            }
          }
-         inSock.close();
-         outSock.close();
-         conn.close();
+      } catch (MessageFramer.FrameTooLargeException e) {
+         // the rest of the request is not read, answer with an error and close
+         System.out.println("Message too large on connection "+id+": "+e.getMessage());
+         inFlight.acquireUninterruptibly();
+         responses.add(tooLarge(e.getMessage(), JSONObject.NULL));
       } catch (IOException e) {
          System.out.println("I/O exception occurred for the connection:\n"+e.getMessage());
+      } finally {
+         // the responses still being handled are written before the connection closes
+         inFlight.acquireUninterruptibly(maxInFlight);
+         if (writer != null) {
+            responses.add(noMoreResponses);
+            try {
+               writer.join();
+            } catch (InterruptedException ignored) {
+            }
+         }
+         if (framer != null) {
+            framer.release();
+         }
+         try {
+            conn.close();
+         } catch (IOException ignored) {
+         }
       }
    }
+
+   /**
+    * Handles one request and queues its response for the writer thread
+    */
+   private void respond(String request) {
+      // prep the response, it is sent by the writer
+      responses.add(skeleton.callMethod(request));
+   }
+
+   /**
+    * Writes the responses of the connection one at a time until noMoreResponses. After a failed
+    * write the connection is closed and the remaining responses are dropped.
+    */
+   private void writeResponses(MessageFramer framer) {
+      boolean failed = false;
+      while (true) {
+         String response;
+         try {
+            response = responses.take();
+         } catch (InterruptedException e) {
+            return;
+         }
+         if (response == noMoreResponses) {
+            return;
+         }
+         try {
+            if (!failed) {
+               try {
+                  framer.write(response);
+               } catch (MessageFramer.FrameTooLargeException e) {
+                  System.out.println("Message too large on connection "+id+": "+e.getMessage());
+                  framer.write(tooLarge(e.getMessage(), response));
+                  continue;
+               }
+               System.out.println("response is: "+response);
+            }
+         } catch (IOException e) {
+            // the reading thread sees the closed connection
+            System.out.println("I/O exception occurred for the connection:\n"+e.getMessage());
+            failed = true;
+            try {
+               conn.close();
+            } catch (IOException ignored) {
+            }
+         } finally {
+            inFlight.release();
+         }
+      }
+   }
+
+   /**
+    * JsonRPC error responses for a response larger than the maximum, one for every call of a batch
+    */
+   private static String tooLarge(String message, String response) {
+      if (!response.startsWith("[")) {
+         return tooLarge(message, new JSONObject(response).opt("id"));
+      }
+      JSONArray responses = new JSONArray(response);
+      JSONArray errors = new JSONArray();
+      for (int i = 0; i < responses.length(); i++) {
+         errors.put(new JSONObject(tooLarge(message, responses.getJSONObject(i).opt("id"))));
+      }
+      return errors.toString();
+   }
+
+   /**
+    * JsonRPC error response for a message larger than the maximum
+    * @param id the id of the request or JSONObject.NULL if the request was not read
+    */
+   private static String tooLarge(String message, Object id) {
+      JSONObject error = new JSONObject();
+      error.put("code", -32600);
+      error.put("message", message);
+      JSONObject response = new JSONObject();
+      response.put("jsonrpc", "2.0");
+      response.put("id", id);
+      response.put("error", error);
+      return response.toString();
+   }
     
    public static void main (String args[]) {
       Socket sock;
@@ -0,0 +1,181 @@
+package server;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Purpose: finds a Student by studentid in constant time. An open addressing
+ * hash table with int keys: the ids and the students are kept in two arrays
+ * of the same length, an id is at the slot its hash points to or at one of
+ * the next slots (linear probing), so a lookup reads a few neighbouring ints
+ * and boxes nothing. A removed entry leaves a marker that lookups skip,
+ * the table is rebuilt without them when it gets too full.
+ *
+ * Changes are made under the write lock of a StampedLock. A lookup does not
+ * take a lock: it reads optimistically and only takes the read lock if a
+ * change happened meanwhile, so lookups from many threads do not wait for
+ * each other.
+ */
+class StudentIdIndex extends Object {
+
+   // marks a removed entry, a lookup goes on past it
+   private static final Student removed = new Student("removed", 0, new String[0]);
+   private static final int initialCapacity = 16;
+
+   private final StampedLock lock = new StampedLock();
+   // the table, replaced as a whole when it grows; ids[i] is only meaningful if students[i] != null
+   private Table table = new Table(initialCapacity);
+   private int size = 0;
+   // entries and removed markers, the table is rebuilt when they fill half of it
+   private int used = 0;
+
+   private static final class Table {
+      final int[] ids;
+      final Student[] students;
+      final int mask;
+
+      Table(int capacity) {
+         ids = new int[capacity];
+         students = new Student[capacity];
+         mask = capacity - 1;
+      }
+   }
+
+   /**
+    * @return the student with the id or null
+    */
+   Student get(int id) {
+      long stamp = lock.tryOptimisticRead();
+      Student stud = find(table, id);
+      if (!lock.validate(stamp)) {
+         stamp = lock.readLock();
+         try {
+            stud = find(table, id);
+         } finally {
+            lock.unlockRead(stamp);
+         }
+      }
+      return stud;
+   }
+
+   /**
+    * Adds the student under its id, replacing the student that had the id
+    */
+   void put(Student stud) {
+      long stamp = lock.writeLock();
+      try {
+         if (used + 1 > table.ids.length / 2) {
+            // twice the size if it is full of entries, the same size if of removed markers
+            rebuild(size + 1 > table.ids.length / 4 ? table.ids.length * 2 : table.ids.length);
+         }
+         Table t = table;
+         int i = hash(stud.studentid) & t.mask;
+         int free = -1;
+         Student at;
+         while ((at = t.students[i]) != null) {
+            if (at == removed) {
+               if (free == -1) {
+                  free = i;
+               }
+            } else if (t.ids[i] == stud.studentid) {
+               t.students[i] = stud;
+               return;
+            }
+            i = (i + 1) & t.mask;
+         }
+         if (free == -1) {
+            free = i;
+            used++;
+         }
+         t.ids[free] = stud.studentid;
+         t.students[free] = stud;
+         size++;
+      } finally {
+         lock.unlockWrite(stamp);
+      }
+   }
+
+   /**
+    * Removes the entry of the student's id if it is this student
+    * @return true if it was removed
+    */
+   boolean remove(Student stud) {
+      long stamp = lock.writeLock();
+      try {
+         Table t = table;
+         int i = slot(t, stud.studentid);
+         if (i == -1 || t.students[i] != stud) {
+            return false;
+         }
+         t.students[i] = removed;
+         size--;
+         return true;
+      } finally {
+         lock.unlockWrite(stamp);
+      }
+   }
+
+   void clear() {
+      long stamp = lock.writeLock();
+      try {
+         table = new Table(initialCapacity);
+         size = 0;
+         used = 0;
+      } finally {
+         lock.unlockWrite(stamp);
+      }
+   }
+
+   int size() {
+      return size;
+   }
+
+   private static Student find(Table t, int id) {
+      int i = slot(t, id);
+      return i == -1 ? null : t.students[i];
+   }
+
+   /**
+    * @return the slot of the id or -1, at most one pass over the table so a lookup that
+    *    reads while the table changes ends as well
+    */
+   private static int slot(Table t, int id) {
+      int i = hash(id) & t.mask;
+      for (int probes = 0; probes <= t.mask; probes++) {
+         Student at = t.students[i];
+         if (at == null) {
+            return -1;
+         }
+         if (at != removed && t.ids[i] == id) {
+            return i;
+         }
+         i = (i + 1) & t.mask;
+      }
+      return -1;
+   }
+
+   private void rebuild(int capacity) {
+      Table old = table;
+      Table t = new Table(capacity);
+      for (int j = 0; j < old.students.length; j++) {
+         Student stud = old.students[j];
+         if (stud != null && stud != removed) {
+            int i = hash(old.ids[j]) & t.mask;
+            while (t.students[i] != null) {
+               i = (i + 1) & t.mask;
+            }
+            t.ids[i] = old.ids[j];
+            t.students[i] = stud;
+         }
+      }
+      table = t;
+      used = size;
+   }
+
+   /**
+    * Spreads consecutive ids, which are common, over the whole table
+    */
+   private static int hash(int id) {
+      int h = id * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+}
@@ -0,0 +1,96 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Purpose: compares getNameById with the studentid index against looking
+ * through all students the way it was done before, for a collection of
+ * many students (1,000,000 by default). Both look up random ids of the
+ * collection, each is warmed up first (so the JIT has compiled it) and then
+ * run for a fixed time, the table shows the average time and the bytes
+ * allocated per lookup.
+ *
+ * Needs a heap of about 1 GB for a million students (gradle sets it).
+ */
+class StudentIndexBenchmark extends Object {
+
+   // results go here so the JIT cannot drop the work
+   static volatile Object sink;
+
+   /**
+    * Usage: StudentIndexBenchmark [students] [millisPerMeasurement]
+    */
+   public static void main(String args[]) throws Exception {
+      int count = 1000000;
+      long millis = 2000;
+      try {
+         if (args.length > 0)
+            count = Integer.parseInt(args[0]);
+         if (args.length > 1)
+            millis = Long.parseLong(args[1]);
+      } catch (NumberFormatException nfe) {
+         System.out.println("Usage: StudentIndexBenchmark [students] [millisPerMeasurement]");
+         System.exit(1);
+      }
+
+      StudentCollectionImpl studs = new StudentCollectionImpl();
+      String[] courses = new String[]{"Ser321","Ser423"};
+      long start = System.nanoTime();
+      for (int i=0; i<count; i++){
+         studs.add(new Student("Student "+i, 1000000 + i, courses));
+      }
+      System.out.println("added "+count+" students in "+(System.nanoTime() - start) / 1000000+" ms");
+      int first = 1000000;
+      int n = count;
+
+      System.out.println("scan\t\t\t\tindex   (ns / bytes allocated per getNameById)");
+      String scan = measure(millis, () -> scan(studs, first + ThreadLocalRandom.current().nextInt(n)));
+      String index = measure(millis, () -> studs.getNameById(first + ThreadLocalRandom.current().nextInt(n)));
+      System.out.println(scan+"\t\t"+index);
+      System.exit(0);
+   }
+
+   /**
+    * getNameById as it was, a look at every student
+    */
+   static String scan(StudentCollectionImpl studs, int id) {
+      String ret = "unknown";
+      String[] keys = (String[])(studs.students.keySet()).toArray(new String[0]);
+      for (int i=0; i< keys.length; i++){
+         Student aStud = studs.students.get(keys[i]);
+         if (aStud.studentid==id){
+            ret = aStud.name;
+            break;
+         }
+      }
+      return ret;
+   }
+
+   /**
+    * @return average nanoseconds and allocated bytes per call, after the same time of warm up
+    */
+   static String measure(long millis, Callable<Object> task) throws Exception {
+      run(millis, task);
+      return run(millis, task);
+   }
+
+   private static String run(long millis, Callable<Object> task) throws Exception {
+      com.sun.management.ThreadMXBean threads =
+         (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long thread = Thread.currentThread().getId();
+      long end = System.nanoTime() + millis * 1000000;
+      long calls = 0;
+      long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+      long begin = System.nanoTime();
+      long now;
+      do {
+         sink = task.call();
+         calls++;
+         now = System.nanoTime();
+      } while (now < end);
+      long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+      return String.format("%.0f ns / %d B", (double) (now - begin) / calls, allocated / calls);
+   }
+}
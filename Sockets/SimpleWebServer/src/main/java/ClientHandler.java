@@ -0,0 +1,136 @@
+import httpCommon.HttpParser;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * ClientHandler handles new client requests (threads). Accepts the
+ * client socket as a constructor param, gets the IO streams and then calls the
+ * overridden run() method to complete the transaction.
+ *
+ * @author kylej
+ */
+class ClientHandler implements Runnable {
+
+    /**
+     * Milliseconds a pooled connection may wait for the request before the
+     * worker gives up on it, so a client that sends nothing cannot keep a worker
+     */
+    static final int READ_TIMEOUT = 10000;
+
+    //establish a new socket to read client input from (via BufferedReader)
+    InputStream in = null;
+    OutputStream out = null;
+    // the pool serving this connection (for /metrics), null for a thread per connection
+    WorkerPool pool = null;
+
+    /**
+     * ClientHandler is the constructor that accepts a client socket & chains it
+     * to an input and output stream. These are used by the run method to create
+     * a response for the client.
+     *
+     * @param clientSocket
+     */
+    public ClientHandler(Socket clientSocket) {
+        this(clientSocket, null);
+    }
+
+    public ClientHandler(Socket clientSocket, WorkerPool pool) {
+        this.pool = pool;
+        try {
+            if (pool != null) {
+                clientSocket.setSoTimeout(READ_TIMEOUT);
+            }
+            //Set local socket to clientSocket received via constructor
+            in = clientSocket.getInputStream();
+            out = clientSocket.getOutputStream();
+
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }//end constructor
+
+    public byte[] createResponse(InputStream inStream) {
+
+        byte[] response = null;
+
+        try {
+
+            // Parse the request line and headers straight from the bytes of the
+            // socket's input stream (the parser is shared with ../WebServer)
+            //    example GET format: GET /index.html HTTP/1.1
+            HttpParser parser = new HttpParser();
+
+            String filename = null;
+            if (parser.read(inStream, parser.newBuffer())) {
+                System.out.println("Received: " + parser.method() + " " + parser.target());
+                if (parser.isMethod("GET")) {
+                    filename = parser.target();
+                    if (filename.startsWith("/")) {
+                        filename = filename.substring(1);
+                    }
+                }
+            }
+            System.out.println("FINISHED REQUEST, STARTING RESPONSE\n");
+
+            // Generate an appropriate response to the user
+            if (filename == null) {
+                response =
+                        "<html>Illegal request: no GET</html>".getBytes();
+            } else if (filename.equals("metrics") && pool != null) {
+                response = pool.render().getBytes();
+            } else {
+                File file = new File(filename);
+                if (!file.exists()) {
+                    response = ("<html>File not found: "
+                            + filename + "</html>").getBytes();
+                } else {
+                    response = readFileInBytes(file);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            response = ("<html>ERROR: "
+                    + e.getMessage() + "</html").getBytes();
+        }
+        System.out.println("RESPONSE GENERATED!");
+        return response;
+    }
+
+    /**
+     * Read bytes from a file and return them in the byte array. We read in
+     * blocks of 512 bytes for efficiency.
+     */
+    public static byte[] readFileInBytes(File f)
+            throws IOException {
+
+        byte[] result = new byte[(int) f.length()];
+
+        try {
+            new FileInputStream(f).read(result);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+
+        return result;
+    }
+
+    @Override
+    public void run() {
+        System.out.println("Starting thread");
+        try {
+            out.write(createResponse(in));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            try {
+                in.close();
+                out.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        System.out.println("Ending thread");
+    }
+}
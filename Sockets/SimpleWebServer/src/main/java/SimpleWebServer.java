@@ -1,15 +1,20 @@
 import java.io.*;
 import java.net.*;
-import java.util.StringTokenizer;
 
 public class SimpleWebServer {
 
+    /**
+     * Connections the operating system keeps until they are accepted. With the
+     * block policy this is where clients wait while the pool is full.
+     */
+    static final int BACKLOG = 1024;
+
     // 
     public static void main(String args[]) {
         int port = 9099; // default port
-        if (args.length != 1) {
+        if (args.length != 1 && args.length != 4) {
 
-            System.out.println("Expected arguments: <port(int)>");
+            System.out.println("Expected arguments: <port(int)> [<workers(int)> <queue(int)> <reject|block>]");
             System.exit(1);
         }
         System.out.println("running");
@@ -20,11 +25,32 @@ try {
             System.exit(2);
         }
 
-        SimpleWebServer server = new SimpleWebServer(port);
+        if (args.length == 1) {
+            // one thread per connection
+            SimpleWebServer server = new SimpleWebServer(port);
+            return;
+        }
+
+        WorkerPool pool = null;
+        try {
+            pool = new WorkerPool(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                    WorkerPool.Overload.valueOf(args[3].toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            System.out.println("[workers] and [queue] must be integers, the policy reject or block");
+            System.exit(2);
+        }
+        SimpleWebServer server = new SimpleWebServer(port, pool);
 
     }
 
     public SimpleWebServer(int port) {
+        this(port, null);
+    }
+
+    /**
+     * @param pool serves the connections, null starts a thread per connection
+     */
+    public SimpleWebServer(int port, WorkerPool pool) {
 
         ServerSocket server = null;
         Socket sock = null;
@@ -37,7 +63,7 @@ try {
             //***   Write the bytes to the socket's output stream
             //***   close streams and socket appropriately
 
-            server = new ServerSocket(port);
+            server = new ServerSocket(port, BACKLOG);
 
         } catch (IOException ex) {
             ex.printStackTrace();
@@ -47,7 +73,11 @@ try {
             System.out.println("Ready...");
             try {
                 sock = server.accept();
-                createClientThread(sock);
+                if (pool == null) {
+                    createClientThread(sock);
+                } else {
+                    pool.submit(sock);
+                }
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
@@ -66,123 +96,3 @@ try {
         thread.start();
     }
 }
-
-/**
- * ClientHandler handles new client requests (threads). Accepts the
- * client socket as a constructor param, gets the IO streams and then calls the
- * overridden run() method to complete the transaction.
- *
- * @author kylej
- */
-class ClientHandler implements Runnable {
-
-    //establish a new socket to read client input from (via BufferedReader)
-    InputStream in = null;
-    OutputStream out = null;
-
-    /**
-     * ClientHandler is the constructor that accepts a client socket & chains it
-     * to an input and output stream. These are used by the run method to create
-     * a response for the client.
-     *
-     * @param clientSocket
-     */
-    public ClientHandler(Socket clientSocket) {
-        try {
-            //Set local socket to clientSocket received via constructor
-            in = clientSocket.getInputStream();
-            out = clientSocket.getOutputStream();
-
-        } catch (Exception ex) {
-            ex.printStackTrace();
-        }
-    }//end constructor
-
-    public byte[] createResponse(InputStream inStream) {
-
-        byte[] response = null;
-        BufferedReader in = null;
-
-        try {
-
-            // Read from socket's input stream.  Must use an
-            // InputStreamReader to bridge from streams to a reader
-            in = new BufferedReader(
-                    new InputStreamReader(inStream, "UTF-8"));
-
-            // Get header and save the filename from the GET line:
-            //    example GET format: GET /index.html HTTP/1.1
-
-            String filename = null;
-            String line = in.readLine();
-            System.out.println("Received: " + line);
-            if (line != null && !line.trim().equals("")) {
-                StringTokenizer st = new StringTokenizer(line);
-                if (st.nextToken().equals("GET") && st.hasMoreTokens()) {
-                    filename = st.nextToken();
-                    if (filename.startsWith("/")) {
-                        filename = filename.substring(1);
-                    }
-                }
-            }
-            System.out.println("FINISHED REQUEST, STARTING RESPONSE\n");
-
-            // Generate an appropriate response to the user
-            if (filename == null) {
-                response =
-                        "<html>Illegal request: no GET</html>".getBytes();
-            } else {
-                File file = new File(filename);
-                if (!file.exists()) {
-                    response = ("<html>File not found: "
-                            + filename + "</html>").getBytes();
-                } else {
-                    response = readFileInBytes(file);
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            response = ("<html>ERROR: "
-                    + e.getMessage() + "</html").getBytes();
-        }
-        System.out.println("RESPONSE GENERATED!");
-        return response;
-    }
-
-    /**
-     * Read bytes from a file and return them in the byte array. We read in
-     * blocks of 512 bytes for efficiency.
-     */
-    public static byte[] readFileInBytes(File f)
-            throws IOException {
-
-        byte[] result = new byte[(int) f.length()];
-
-        try {
-            new FileInputStream(f).read(result);
-        } catch (Exception ex) {
-            ex.printStackTrace();
-        }
-
-        return result;
-    }
-
-    @Override
-    public void run() {
-        System.out.println("Starting thread");
-        try {
-            out.write(createResponse(in));
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        } finally {
-            try {
-                in.close();
-                out.close();
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        }
-
-        System.out.println("Ending thread");
-    }
-}
@@ -0,0 +1,162 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives SimpleWebServer past its capacity in each serving mode and prints
+ * what the clients saw. The server runs in this JVM on its own port per mode.
+ * Every client opens a connection, waits thinkMillis before it sends the
+ * request (a slow client, the worker waits for it meanwhile) and reads the
+ * response, as fast as it can until the time is up. With clients * thinkMillis
+ * well above workers * thinkMillis the server has far more connections than it
+ * can serve at once.
+ *
+ * For every mode the table shows the requests that were served (ok) with their
+ * latency from connect to the end of the response, the ones answered with 503
+ * and the ones that failed (connect timeout, reset), and the most threads the
+ * JVM had at the same time (clients included).
+ *
+ *   thread: a thread per connection, every connection is served but the
+ *           threads grow with the clients
+ *   reject: admitted connections have a bounded latency, the rest get 503
+ *   block:  nothing is rejected, the clients wait in the listen backlog
+ *
+ * Usage: SimpleWebServerStress [port] [workers] [queue] [clients] [seconds] [thinkMillis]
+ *
+ * @author kylej
+ */
+public class SimpleWebServerStress {
+
+    private static final int CONNECT_TIMEOUT = 3000;
+
+    public static void main(String args[]) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9199;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int queue = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int clients = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+        int think = args.length > 5 ? Integer.parseInt(args[5]) : 20;
+
+        // the server prints a few lines per request, that would only measure the console
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        console.println(clients + " clients, " + seconds + "s per mode, " + think + "ms think time, "
+                + workers + " workers, queue " + queue);
+        console.println("mode\tok\t503\terrors\tp50 ms\tp99 ms\tmax ms\tpeak threads");
+        String[] modes = {"thread", "reject", "block"};
+        for (int i = 0; i < modes.length; i++) {
+            WorkerPool pool = modes[i].equals("thread") ? null
+                    : new WorkerPool(workers, queue, WorkerPool.Overload.valueOf(modes[i].toUpperCase()));
+            int serverPort = port + i;
+            startServer(serverPort, pool);
+            run(console, modes[i], serverPort, clients, seconds, think);
+            if (pool != null) {
+                console.print(indent(pool.render()));
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void startServer(int port, WorkerPool pool) throws InterruptedException {
+        Thread server = new Thread(() -> new SimpleWebServer(port, pool), "server-" + port);
+        server.setDaemon(true);
+        server.start();
+        // wait until it listens
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static void run(PrintStream console, String mode, int port, int clients, int seconds, int think)
+            throws InterruptedException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadBean.resetPeakThreadCount();
+        LongAdder rejected = new LongAdder();
+        LongAdder errors = new LongAdder();
+        long[][] latencies = new long[clients][];
+        int[] counts = new int[clients];
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        byte[] request = "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            latencies[client] = new long[1024];
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    try (Socket sock = new Socket()) {
+                        sock.connect(new InetSocketAddress("localhost", port), CONNECT_TIMEOUT);
+                        sock.setSoTimeout(CONNECT_TIMEOUT + ClientHandler.READ_TIMEOUT);
+                        Thread.sleep(think);
+                        sock.getOutputStream().write(request);
+                        InputStream in = sock.getInputStream();
+                        int first = in.read(buffer);
+                        boolean busy = first > 12 && new String(buffer, 0, 12).equals("HTTP/1.1 503");
+                        while (in.read(buffer) != -1) {
+                        }
+                        if (first < 0) {
+                            errors.increment();
+                        } else if (busy) {
+                            rejected.increment();
+                            // like a well behaved client, come back after Retry-After
+                            Thread.sleep(WorkerPool.RETRY_AFTER * 1000L);
+                        } else {
+                            if (counts[client] == latencies[client].length) {
+                                latencies[client] = Arrays.copyOf(latencies[client], counts[client] * 2);
+                            }
+                            latencies[client][counts[client]++] = System.nanoTime() - start;
+                        }
+                    } catch (IOException e) {
+                        errors.increment();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "client-" + client);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int ok = 0;
+        for (int count : counts) {
+            ok += count;
+        }
+        long[] all = new long[ok];
+        int n = 0;
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(latencies[c], 0, all, n, counts[c]);
+            n += counts[c];
+        }
+        Arrays.sort(all);
+        console.printf("%s\t%d\t%d\t%d\t%.1f\t%.1f\t%.1f\t%d%n", mode, ok, rejected.sum(), errors.sum(),
+                percentile(all, 0.5), percentile(all, 0.99), percentile(all, 1.0), threadBean.getPeakThreadCount());
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1_000_000.0;
+    }
+
+    private static String indent(String lines) {
+        return "\t" + lines.replace("\n", "\n\t").trim() + "\n";
+    }
+}
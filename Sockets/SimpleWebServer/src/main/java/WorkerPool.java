@@ -0,0 +1,209 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed number of worker threads with a bounded queue of accepted
+ * connections in front of them. One thread per connection (the old
+ * createClientThread) lets a flood of connections start thousands of threads
+ * until the JVM runs out of memory; here at most workers + queue connections
+ * are in the server at any time and the overload policy decides what happens
+ * to the next one:
+ *
+ *   REJECT: it is answered right away with 503 Service Unavailable and a
+ *           Retry-After header and closed shortly after, so the client knows
+ *           to come back.
+ *   BLOCK:  the accept loop waits until a connection is done. New connections
+ *           then wait in the listen backlog of the operating system and, once
+ *           that is full, the clients cannot connect (backpressure).
+ *
+ * Either way an admitted connection waits for at most queue / workers
+ * connections before it is served, so its latency stays bounded.
+ */
+class WorkerPool {
+
+    enum Overload { REJECT, BLOCK }
+
+    /**
+     * Seconds a rejected client is told to wait
+     */
+    static final int RETRY_AFTER = 1;
+
+    /**
+     * Milliseconds a rejected connection stays open after the 503, see reject()
+     */
+    static final int REJECT_LINGER = 200;
+
+    private static final String BUSY = "<html>Server busy, try again.</html>";
+    private static final byte[] UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Retry-After: " + RETRY_AFTER + "\r\n"
+            + "Content-Type: text/html\r\n"
+            + "Content-Length: " + BUSY.length() + "\r\n"
+            + "Connection: close\r\n"
+            + "\r\n"
+            + BUSY).getBytes();
+
+    // closes the rejected connections, so the accept loop does not wait for them
+    private static final ScheduledExecutorService closer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "reject-closer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ThreadPoolExecutor executor;
+    private final Overload overload;
+    private final int workers;
+    private final int queue;
+
+    // metrics, see render()
+    final LongAdder accepted = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder completed = new LongAdder();
+    // connections that got a worker, queuedNanos is their total wait
+    final LongAdder started = new LongAdder();
+    final LongAdder blockedNanos = new LongAdder();
+    final LongAdder queuedNanos = new LongAdder();
+    final AtomicLong maxQueuedNanos = new AtomicLong();
+    final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * @param workers number of threads that serve connections
+     * @param queue number of accepted connections that may wait for a worker
+     */
+    WorkerPool(int workers, int queue, Overload overload) {
+        this.workers = workers;
+        this.queue = queue;
+        this.overload = overload;
+        AtomicInteger number = new AtomicInteger();
+        BlockingQueue<Runnable> waiting = queue > 0 ? new ArrayBlockingQueue<>(queue) : new SynchronousQueue<>();
+        executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, waiting, task -> {
+            Thread thread = new Thread(task, "worker-" + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (overload == Overload.BLOCK) {
+            // instead of rejecting, the accept loop waits for room in the queue
+            executor.setRejectedExecutionHandler((task, pool) -> {
+                long start = System.nanoTime();
+                try {
+                    pool.getQueue().put(task);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                } finally {
+                    blockedNanos.add(System.nanoTime() - start);
+                }
+            });
+        }
+        executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Hands an accepted connection to the pool, called by the accept loop.
+     * With BLOCK this waits until there is room.
+     */
+    void submit(Socket sock) {
+        accepted.increment();
+        long queued = System.nanoTime();
+        try {
+            executor.execute(() -> serve(sock, queued));
+        } catch (RejectedExecutionException e) {
+            reject(sock);
+        }
+    }
+
+    private void serve(Socket sock, long queued) {
+        long waited = System.nanoTime() - queued;
+        queuedNanos.add(waited);
+        started.increment();
+        maxQueuedNanos.accumulateAndGet(waited, Math::max);
+        active.incrementAndGet();
+        try {
+            new ClientHandler(sock, this).run();
+        } finally {
+            active.decrementAndGet();
+            completed.increment();
+        }
+    }
+
+    /**
+     * Answers with 503 on the accept thread. The response is small enough for
+     * the socket's send buffer, so this never waits for the client. The request
+     * is not read, and closing a socket with unread bytes sends a RST that can
+     * make the client drop the 503. So the output is shut down after it, and
+     * the socket is closed REJECT_LINGER ms later, after what arrived by then
+     * is read away.
+     */
+    private void reject(Socket sock) {
+        rejected.increment();
+        try {
+            OutputStream out = sock.getOutputStream();
+            out.write(UNAVAILABLE);
+            out.flush();
+            sock.shutdownOutput();
+            closer.schedule(() -> {
+                drain(sock);
+                close(sock);
+            }, REJECT_LINGER, TimeUnit.MILLISECONDS);
+        } catch (IOException | RejectedExecutionException ex) {
+            // the client is gone already
+            close(sock);
+        }
+    }
+
+    /**
+     * Reads the bytes that arrived without waiting for more
+     */
+    private static void drain(Socket sock) {
+        try {
+            InputStream in = sock.getInputStream();
+            int available;
+            while ((available = in.available()) > 0) {
+                in.skip(available);
+            }
+        } catch (IOException ex) {
+            // closed anyway
+        }
+    }
+
+    private static void close(Socket sock) {
+        try {
+            sock.close();
+        } catch (IOException ex) {
+            // nothing left to do
+        }
+    }
+
+    /**
+     * @return the metrics as name value lines, served at /metrics
+     */
+    String render() {
+        long served = completed.sum();
+        long waiting = started.sum();
+        StringBuilder out = new StringBuilder();
+        out.append("overload_policy{policy=\"").append(overload.name().toLowerCase()).append("\"} 1\n");
+        out.append("workers ").append(workers).append('\n');
+        out.append("queue_capacity ").append(queue).append('\n');
+        out.append("connections_accepted_total ").append(accepted.sum()).append('\n');
+        out.append("connections_rejected_total ").append(rejected.sum()).append('\n');
+        out.append("connections_completed_total ").append(served).append('\n');
+        out.append("connections_active ").append(active.get()).append('\n');
+        out.append("connections_queued ").append(executor.getQueue().size()).append('\n');
+        out.append("queue_wait_avg_ms ").append(waiting == 0 ? 0 : queuedNanos.sum() / waiting / 1_000_000.0).append('\n');
+        out.append("queue_wait_max_ms ").append(maxQueuedNanos.get() / 1_000_000.0).append('\n');
+        out.append("accept_blocked_ms_total ").append(blockedNanos.sum() / 1_000_000).append('\n');
+        return out.toString();
+    }
+}
@@ -0,0 +1,78 @@
+package funHttpServer;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes log lines on its own thread, so answering a request never waits for
+ * the console. Printing every header line with System.out.println took a lock
+ * and a write per line on the request path, with many clients the threads
+ * mostly waited for each other there.
+ *
+ * Only every sample-th request is logged (-Dlog.sample=N, 0 turns the request
+ * log off), lines are queued and written in batches. If the console cannot keep
+ * up and the queue is full, lines are dropped and counted instead of slowing
+ * down the server.
+ */
+class AsyncLog {
+  /**
+   * Lines that may wait for the console
+   */
+  static final int CAPACITY = 8192;
+
+  private final PrintStream out;
+  private final int sample;
+  private final AtomicLong requests = new AtomicLong();
+  private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(CAPACITY);
+  final LongAdder dropped = new LongAdder();
+
+  /**
+   * @param sample every sample-th request is logged, 1 logs all of them, 0 none
+   */
+  AsyncLog(PrintStream out, int sample) {
+    this.out = out;
+    this.sample = sample;
+    Thread thread = new Thread(this::drain, "async-log");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @return true if this request should be logged, counts the requests
+   */
+  boolean sampled() {
+    return sample > 0 && requests.getAndIncrement() % sample == 0;
+  }
+
+  /**
+   * Queues a line, never blocks
+   */
+  void log(String line) {
+    if (!queue.offer(line))
+      dropped.increment();
+  }
+
+  private void drain() {
+    List<String> batch = new ArrayList<>();
+    while (true) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(batch);
+      StringBuilder builder = new StringBuilder();
+      for (String line : batch) {
+        builder.append(line).append('\n');
+      }
+      out.print(builder);
+      out.flush();
+      batch.clear();
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package funHttpServer;
+
+import httpCommon.HttpParser.HttpParseException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Takes the body of a request out of the received bytes as they arrive, for a
+ * body with a Content-Length as well as for Transfer-Encoding: chunked:
+ *
+ *   1a;name=value\r\n    size of the chunk in hex, extensions are ignored
+ *   ...26 bytes...\r\n
+ *   0\r\n                last chunk
+ *   Trailer: x\r\n       optional trailer lines, ignored
+ *   \r\n
+ *
+ * The decoder only keeps its position in the body, it can be fed any number
+ * of bytes at a time, so both engines use it: the blocking one on the socket
+ * stream, the NIO one on whatever the last read brought.
+ */
+class BodyDecoder {
+  // longest chunk size line and all trailer lines together
+  private static final int MAX_LINE = 1024;
+  private static final int MAX_TRAILER = 8 * 1024;
+
+  private enum State { SIZE, DATA, DATA_END, TRAILER, DONE }
+
+  private final boolean chunked;
+  private final long max;
+  private State state;
+  // bytes left of the body (Content-Length) or of the current chunk
+  private long remaining;
+  private long total;
+  // parsing of the chunk size line
+  private long size;
+  private int digits;
+  private int lineLength;
+  private boolean extension;
+  private int trailerLength;
+
+  /**
+   * @param contentLength length of the body, -1 for a chunked body
+   * @param max most body bytes accepted
+   */
+  BodyDecoder(long contentLength, long max) throws HttpParseException {
+    this.max = max;
+    chunked = contentLength < 0;
+    if (!chunked && contentLength > max)
+      throw new HttpParseException(413, "Request body too large");
+    state = chunked ? State.SIZE : contentLength == 0 ? State.DONE : State.DATA;
+    remaining = contentLength;
+  }
+
+  /**
+   * @return true once the whole body (and for chunked the trailer) was decoded
+   */
+  boolean done() {
+    return state == State.DONE;
+  }
+
+  /**
+   * @return number of body bytes decoded so far
+   */
+  long total() {
+    return total;
+  }
+
+  /**
+   * Decodes body bytes from the buffer (moving its position) into out. Stops at
+   * the end of the body, bytes after it (a pipelined request) stay in the buffer.
+   * @return number of bytes put into out, 0 if the buffer has no more body bytes
+   */
+  int decode(ByteBuffer in, byte[] out, int offset, int length) throws HttpParseException {
+    int decoded = 0;
+    while (decoded < length && in.hasRemaining() && state != State.DONE) {
+      switch (state) {
+        case DATA: {
+          int n = (int) Math.min(Math.min(remaining, length - decoded), in.remaining());
+          in.get(out, offset + decoded, n);
+          decoded += n;
+          remaining -= n;
+          total += n;
+          if (remaining == 0)
+            state = chunked ? State.DATA_END : State.DONE;
+          break;
+        }
+        case SIZE:
+          sizeLine(in.get());
+          break;
+        case DATA_END: {
+          byte b = in.get();
+          if (b == '\n')
+            state = State.SIZE;
+          else if (b != '\r')
+            throw new HttpParseException(400, "Chunk is longer than its size");
+          break;
+        }
+        case TRAILER: {
+          byte b = in.get();
+          if (++trailerLength > MAX_TRAILER)
+            throw new HttpParseException(431, "Trailer too large");
+          if (b == '\n') {
+            if (lineLength == 0)
+              state = State.DONE;
+            lineLength = 0;
+          } else if (b != '\r') {
+            lineLength++;
+          }
+          break;
+        }
+        default:
+          break;
+      }
+    }
+    return decoded;
+  }
+
+  private void sizeLine(byte b) throws HttpParseException {
+    if (++lineLength > MAX_LINE)
+      throw new HttpParseException(400, "Chunk size line too long");
+    if (b == '\n') {
+      if (digits == 0)
+        throw new HttpParseException(400, "Missing chunk size");
+      if (size == 0) {
+        state = State.TRAILER;
+      } else {
+        if (total + size > max)
+          throw new HttpParseException(413, "Request body too large");
+        remaining = size;
+        state = State.DATA;
+      }
+      size = 0;
+      digits = 0;
+      lineLength = 0;
+      extension = false;
+    } else if (b == '\r' || extension) {
+      // the line ends with \r\n, extensions are ignored
+    } else if (b == ';' || b == ' ' || b == '\t') {
+      extension = true;
+    } else {
+      int digit = Character.digit(b, 16);
+      if (digit < 0)
+        throw new HttpParseException(400, "Invalid chunk size");
+      if (++digits > 15)
+        throw new HttpParseException(413, "Chunk too large");
+      size = size * 16 + digit;
+    }
+  }
+}
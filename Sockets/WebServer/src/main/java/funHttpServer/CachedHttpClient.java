@@ -0,0 +1,178 @@
+package funHttpServer;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound HTTP client for endpoints that fetch data from another server (like
+ * /github from api.github.com). Requests are sent with java.net.http.HttpClient,
+ * which is non-blocking and keeps connections to the upstream server open for
+ * the next request.
+ *
+ * Responses are cached for a while (ttl). When an entry is stale it is
+ * revalidated with If-None-Match, an unchanged response costs the upstream a
+ * 304 without a body (and GitHub does not count those against the rate
+ * limit). Concurrent requests for the same path share one upstream fetch, so a
+ * burst of identical requests makes a single call and the rest are answered
+ * from memory.
+ */
+class CachedHttpClient {
+  /**
+   * An upstream response
+   */
+  static class Result {
+    final int status;
+    final byte[] body;
+    final String etag;
+    // time in milliseconds after which the result has to be revalidated
+    final long expires;
+
+    Result(int status, byte[] body, String etag, long expires) {
+      this.status = status;
+      this.body = body;
+      this.etag = etag;
+      this.expires = expires;
+    }
+
+    boolean ok() {
+      return status >= 200 && status < 300;
+    }
+  }
+
+  private final HttpClient client;
+  private final URI base;
+  private final long ttl;
+  private final Duration timeout;
+  // least recently used results are dropped first
+  private final Map<String, Result> cache;
+  // fetches that are running, later requests for the same path wait for them
+  private final ConcurrentHashMap<String, CompletableFuture<Result>> inflight = new ConcurrentHashMap<>();
+
+  // for /metrics
+  final AtomicLong upstreamCalls = new AtomicLong();
+  final AtomicLong cacheHits = new AtomicLong();
+  final AtomicLong coalesced = new AtomicLong();
+  final AtomicLong revalidated = new AtomicLong();
+
+  /**
+   * @param base URL the requested paths are relative to, e.g. https://api.github.com/
+   * @param ttl how long a response is used without asking the upstream again
+   * @param timeout for one upstream request
+   * @param maxEntries number of cached responses
+   */
+  CachedHttpClient(URI base, Duration ttl, Duration timeout, int maxEntries) {
+    this.base = base;
+    this.ttl = ttl.toMillis();
+    this.timeout = timeout;
+    this.client = HttpClient.newBuilder()
+        .connectTimeout(timeout)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+    this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns the response for the path from the cache or fetches it
+   * @param path relative to the base URL, e.g. users/amehlhase316/repos
+   * @return completes with the (maybe cached) response or an exception if the upstream could not be reached
+   *     or the path is not a path below the base URL
+   */
+  CompletableFuture<Result> get(String path) {
+    Result cached;
+    synchronized (cache) {
+      cached = cache.get(path);
+    }
+    if (cached != null && cached.expires > System.currentTimeMillis()) {
+      cacheHits.incrementAndGet();
+      return CompletableFuture.completedFuture(cached);
+    }
+
+    CompletableFuture<Result> mine = new CompletableFuture<>();
+    CompletableFuture<Result> running = inflight.putIfAbsent(path, mine);
+    if (running != null) {
+      coalesced.incrementAndGet();
+      return running;
+    }
+    CompletableFuture<Result> fetched;
+    try {
+      fetched = fetch(path, cached);
+    } catch (RuntimeException e) {
+      // e.g. an invalid path, the requests waiting for this one fail with it
+      inflight.remove(path, mine);
+      mine.completeExceptionally(e);
+      return mine;
+    }
+    fetched.whenComplete((result, error) -> {
+      // the result is cached before we leave inflight, so nobody misses both
+      inflight.remove(path, mine);
+      if (error != null)
+        mine.completeExceptionally(error);
+      else
+        mine.complete(result);
+    });
+    return mine;
+  }
+
+  /**
+   * Resolves the path against the base URL. The path comes from a client, so it
+   * must not name another server: absolute URLs (http://host/...) and network
+   * paths (//host/...) are refused, and the result has to be on the base's host.
+   * @throws IllegalArgumentException if the path is not a valid path below the base URL
+   */
+  private URI resolve(String path) {
+    URI relative = URI.create(path);
+    if (relative.isAbsolute() || relative.getRawAuthority() != null)
+      throw new IllegalArgumentException("Not a path: " + path);
+    URI uri = base.resolve(relative);
+    if (!base.getScheme().equalsIgnoreCase(uri.getScheme()) || !base.getRawAuthority().equals(uri.getRawAuthority()))
+      throw new IllegalArgumentException("Not a path on " + base.getHost() + ": " + path);
+    return uri;
+  }
+
+  /**
+   * Sends the request, with If-None-Match if there is a stale result
+   */
+  private CompletableFuture<Result> fetch(String path, Result stale) {
+    HttpRequest.Builder request = HttpRequest.newBuilder(resolve(path))
+        .timeout(timeout)
+        // GitHub rejects requests without a User-Agent
+        .header("User-Agent", "SER321-funHttpServer")
+        .header("Accept", "application/vnd.github+json")
+        .GET();
+    if (stale != null && stale.etag != null)
+      request.header("If-None-Match", stale.etag);
+
+    upstreamCalls.incrementAndGet();
+    return client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray()).thenApply(response -> {
+      long expires = System.currentTimeMillis() + ttl;
+      Result result;
+      if (response.statusCode() == 304 && stale != null) {
+        revalidated.incrementAndGet();
+        result = new Result(stale.status, stale.body, stale.etag, expires);
+      } else {
+        result = new Result(response.statusCode(), response.body(),
+            response.headers().firstValue("ETag").orElse(null), expires);
+      }
+      // errors are not cached, the next request tries again
+      if (result.ok()) {
+        synchronized (cache) {
+          cache.put(path, result);
+        }
+      }
+      return result;
+    });
+  }
+}
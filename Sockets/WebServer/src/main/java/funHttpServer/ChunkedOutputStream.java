@@ -0,0 +1,92 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a body with "Transfer-Encoding: chunked", used when the length of a
+ * response is not known before it is written. Every chunk is its length in hex,
+ * CRLF, the data and CRLF. close() writes the empty last chunk but leaves the
+ * socket's stream open, so the connection can be kept alive.
+ */
+class ChunkedOutputStream extends OutputStream {
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  private final OutputStream out;
+  private final byte[] buffer;
+  private int count;
+  private boolean closed;
+
+  ChunkedOutputStream(OutputStream out) {
+    this(out, 8192);
+  }
+
+  /**
+   * @param out the socket's stream
+   * @param chunkSize data is collected until a chunk of this size is full
+   */
+  ChunkedOutputStream(OutputStream out, int chunkSize) {
+    this.out = out;
+    this.buffer = new byte[chunkSize];
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (count == buffer.length)
+      writeChunk();
+    buffer[count++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (len > buffer.length - count) {
+      writeChunk();
+      if (len >= buffer.length) {
+        // large writes become a chunk of their own without copying
+        chunk(b, off, len);
+        return;
+      }
+    }
+    System.arraycopy(b, off, buffer, count, len);
+    count += len;
+  }
+
+  /**
+   * Sends what was written so far as a chunk, e.g. for server-sent events
+   */
+  @Override
+  public void flush() throws IOException {
+    writeChunk();
+    out.flush();
+  }
+
+  /**
+   * Ends the body, does not close the underlying stream
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+    writeChunk();
+    out.write(LAST_CHUNK);
+  }
+
+  private void writeChunk() throws IOException {
+    if (count > 0) {
+      chunk(buffer, 0, count);
+      count = 0;
+    }
+  }
+
+  private void chunk(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return; // an empty chunk would end the body
+    out.write(Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII));
+    out.write(CRLF);
+    out.write(b, off, len);
+    out.write(CRLF);
+  }
+}
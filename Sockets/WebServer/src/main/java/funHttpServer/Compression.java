@@ -0,0 +1,112 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-Encoding negotiation. Responses are gzip compressed when the client
+ * lists gzip in Accept-Encoding, the content type is text-like and the body is
+ * large enough to be worth it (a tiny body like the result of /multiply would
+ * only get larger). Bodies with a known length are compressed into a new byte
+ * array, streamed bodies are compressed while they are written.
+ *
+ * gzip is the only encoding the JDK ships, another one (e.g. br with a
+ * library) would be one more case in preferred() and encode().
+ */
+class Compression {
+  /**
+   * Smaller bodies are sent as they are
+   */
+  static final int MIN_SIZE = 1024;
+
+  static final String GZIP = "gzip";
+
+  private Compression() {
+  }
+
+  /**
+   * Compresses the response if the client and the content allow it. Does nothing
+   * for file bodies, event streams, partial content and responses that were already negotiated
+   * (e.g. cached ones that keep a compressed variant).
+   */
+  static void apply(Request request, Response response) {
+    if (response.negotiated || response.file != null || response.events != null || response.status != 200)
+      return;
+    if (!compressible(response.headers.get("Content-Type")))
+      return;
+    // caches between us and the client have to keep one copy per encoding
+    response.header("Vary", "Accept-Encoding");
+    if (preferred(request) == null)
+      return;
+
+    if (response.stream != null) {
+      response.gzipStream = true;
+      response.header("Content-Encoding", GZIP);
+    } else if (response.body.length >= MIN_SIZE) {
+      byte[] compressed = encode(response.body);
+      if (compressed.length < response.body.length) {
+        response.body = compressed;
+        response.header("Content-Encoding", GZIP);
+      }
+    }
+    response.negotiated = true;
+  }
+
+  /**
+   * @return the encoding to use for this request or null for none
+   */
+  static String preferred(Request request) {
+    String accept = request == null ? null : request.header("accept-encoding");
+    if (accept == null)
+      return null;
+    boolean wildcard = false;
+    for (String part : accept.split(",")) {
+      String[] params = part.trim().split(";");
+      String coding = params[0].trim().toLowerCase();
+      boolean refused = false;
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            refused = Double.parseDouble(param.substring(2)) <= 0;
+          } catch (NumberFormatException e) {
+            refused = true;
+          }
+        }
+      }
+      if (coding.equals(GZIP) || coding.equals("x-gzip"))
+        return refused ? null : GZIP;
+      if (coding.equals("*"))
+        wildcard = !refused;
+    }
+    return wildcard ? GZIP : null;
+  }
+
+  /**
+   * @param contentType value of the Content-Type header
+   * @return true for text, JSON, JavaScript, XML and SVG, images and archives are already compressed
+   */
+  static boolean compressible(String contentType) {
+    if (contentType == null)
+      return false;
+    return contentType.startsWith("text/") || contentType.startsWith("application/json")
+        || contentType.startsWith("application/javascript") || contentType.startsWith("application/xml")
+        || contentType.startsWith("image/svg+xml");
+  }
+
+  /**
+   * @return the gzip compressed bytes
+   */
+  static byte[] encode(byte[] body) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 3 + 64);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8192)) {
+      gzip.write(body);
+    } catch (IOException e) {
+      // cannot happen for a ByteArrayOutputStream
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,306 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the bytes of small files (and pages built from them) in memory, so
+ * repeated requests for them need no disk I/O. Every entry also has its ETag
+ * and Last-Modified header values computed once when it is loaded, a client
+ * that already has the current version gets a 304 without a body.
+ *
+ * A WatchService on the directory removes entries as soon as a file in it is
+ * created, changed or deleted (files in sub directories are not cached since
+ * they are not watched). The cache holds at most maxBytes, the least recently
+ * used entries are removed first.
+ *
+ * Text entries also keep a gzip compressed copy, made the first time a client
+ * that accepts gzip asks for them, so they are compressed once and not on
+ * every request.
+ */
+class ContentCache {
+  private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+  /**
+   * Loads the content of an entry when it is not cached
+   */
+  @FunctionalInterface
+  interface Loader {
+    /**
+     * @return the entry or null if the content is not to be cached (e.g. too large)
+     */
+    Entry load() throws IOException;
+  }
+
+  /**
+   * One cached response body with its precomputed headers
+   */
+  static class Entry {
+    final byte[] body;
+    final String contentType;
+    final String etag;
+    // the compressed copy is a different representation, so it needs its own ETag
+    final String gzipEtag;
+    final String lastModified;
+    // gzip variant, computed on first use, the empty array if it is not worth it
+    private volatile byte[] gzipped;
+    // the responses encoded once, see template(), indexed by variant(), made on first use
+    private final ResponseTemplate[] templates = new ResponseTemplate[4];
+
+    /**
+     * @param lastModified modification time in milliseconds
+     */
+    Entry(byte[] body, String contentType, long lastModified) {
+      this(body, contentType, lastModified, checksumTag(body));
+    }
+
+    /**
+     * @param etag ETag of the content, for content that has a version of its own
+     */
+    Entry(byte[] body, String contentType, long lastModified, String etag) {
+      this.body = body;
+      this.contentType = contentType;
+      this.etag = etag;
+      gzipEtag = etag.substring(0, etag.length() - 1) + "-gz\"";
+      this.lastModified = HTTP_DATE.format(Instant.ofEpochMilli(lastModified));
+    }
+
+    private static String checksumTag(byte[] body) {
+      CRC32 crc = new CRC32();
+      crc.update(body);
+      return "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(body.length) + "\"";
+    }
+
+    /**
+     * @return 304 if the client sent our ETag in If-None-Match, the content otherwise
+     */
+    Response respond(Request request) {
+      return build(variant(request));
+    }
+
+    /**
+     * Like respond(), but every variant is encoded only once (see
+     * ResponseTemplate), so the response cannot be changed afterwards
+     */
+    Response template(Request request) {
+      int variant = variant(request);
+      ResponseTemplate template = templates[variant];
+      if (template == null) {
+        // two threads may both make it, which does no harm
+        template = new ResponseTemplate(build(variant));
+        templates[variant] = template;
+      }
+      return template.respond();
+    }
+
+    /**
+     * @return 0 for the content, 1 for the gzip copy, plus 2 if the client has it (304)
+     */
+    private int variant(Request request) {
+      boolean gzip = Compression.compressible(contentType) && Compression.preferred(request) != null
+          && gzipped().length > 0;
+      int variant = gzip ? 1 : 0;
+      if (matches(request.header("if-none-match"), gzip ? gzipEtag : etag))
+        variant += 2;
+      return variant;
+    }
+
+    private Response build(int variant) {
+      boolean gzip = (variant & 1) != 0;
+      Response response;
+      if (variant >= 2)
+        response = new Response(304, null, new byte[0]);
+      else if (gzip)
+        response = new Response(200, contentType, gzipped()).header("Content-Encoding", Compression.GZIP);
+      else
+        response = new Response(200, contentType, body);
+      response.negotiated = true;
+      // browsers ask again every time, but only get the body when it changed
+      response.header("Cache-Control", "no-cache");
+      response.header("ETag", gzip ? gzipEtag : etag);
+      response.header("Last-Modified", lastModified);
+      if (Compression.compressible(contentType))
+        response.header("Vary", "Accept-Encoding");
+      return response;
+    }
+
+    /**
+     * @return the compressed body, the empty array if the body is too small or does not get smaller
+     */
+    private byte[] gzipped() {
+      byte[] variant = gzipped;
+      if (variant == null) {
+        // two threads may both compress it, which does no harm
+        variant = new byte[0];
+        if (body.length >= Compression.MIN_SIZE) {
+          byte[] compressed = Compression.encode(body);
+          if (compressed.length < body.length)
+            variant = compressed;
+        }
+        gzipped = variant;
+      }
+      return variant;
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+      if (ifNoneMatch == null)
+        return false;
+      if (ifNoneMatch.trim().equals("*"))
+        return true;
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/"))
+          tag = tag.substring(2);
+        if (tag.equals(etag))
+          return true;
+      }
+      return false;
+    }
+  }
+
+  private final Path directory;
+  private final long maxBytes;
+  // access ordered, so the first entry is the least recently used one
+  private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+  // incremented on every invalidation, a load that raced with one is not stored
+  private long invalidations;
+  // nothing is cached unless the watcher keeps the entries up to date
+  private volatile boolean watching;
+
+  /**
+   * @param directory the watched directory, only it and files directly in it are cached
+   * @param maxBytes upper limit for the bytes of all entries together (compressed copies not counted)
+   */
+  ContentCache(Path directory, long maxBytes) {
+    this.directory = directory.toAbsolutePath().normalize();
+    this.maxBytes = maxBytes;
+    startWatching();
+  }
+
+  /**
+   * @param path a file or the directory itself
+   * @return true if entries for this path are kept up to date by the watcher
+   */
+  boolean covers(Path path) {
+    Path normalized = path.toAbsolutePath().normalize();
+    return watching && (normalized.equals(directory) || directory.equals(normalized.getParent()));
+  }
+
+  /**
+   * Returns the cached entry for the path or loads and caches it
+   * @param path file (or the directory for pages built from its listing)
+   * @param loader called when the entry is not cached
+   * @return the entry, null if the loader did not make one
+   */
+  Entry get(Path path, Loader loader) throws IOException {
+    Path key = path.toAbsolutePath().normalize();
+    long before;
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null)
+        return entry;
+      before = invalidations;
+    }
+
+    Entry entry = loader.load();
+    if (entry == null)
+      return null;
+    synchronized (this) {
+      if (before == invalidations && covers(key) && entry.body.length <= maxBytes) {
+        Entry old = entries.put(key, entry);
+        if (old != null)
+          totalBytes -= old.body.length;
+        totalBytes += entry.body.length;
+        evict();
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Removes the entry of the file and of the directory page, since the listing
+   * or the template may have changed as well
+   */
+  synchronized void invalidate(Path path) {
+    invalidations++;
+    remove(path.toAbsolutePath().normalize());
+    remove(directory);
+  }
+
+  synchronized void clear() {
+    invalidations++;
+    entries.clear();
+    totalBytes = 0;
+  }
+
+  private void remove(Path key) {
+    Entry old = entries.remove(key);
+    if (old != null)
+      totalBytes -= old.body.length;
+  }
+
+  /**
+   * Removes least recently used entries until we are below the limit
+   */
+  private void evict() {
+    Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && it.hasNext()) {
+      totalBytes -= it.next().getValue().body.length;
+      it.remove();
+    }
+  }
+
+  /**
+   * Starts a daemon thread that invalidates entries when files in the directory change
+   */
+  private void startWatching() {
+    WatchService watcher;
+    try {
+      watcher = FileSystems.getDefault().newWatchService();
+      directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (IOException e) {
+      System.out.println("Cannot watch " + directory + ", content cache disabled: " + e.getMessage());
+      return;
+    }
+
+    Thread thread = new Thread(() -> {
+      while (true) {
+        WatchKey key;
+        try {
+          key = watcher.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+            clear(); // events were lost, start over
+          else
+            invalidate(directory.resolve((Path) event.context()));
+        }
+        if (!key.reset()) {
+          // directory is gone, nothing can be cached any more
+          watching = false;
+          clear();
+          return;
+        }
+      }
+    }, "content-cache-watcher");
+    thread.setDaemon(true);
+    watching = true;
+    thread.start();
+  }
+}
@@ -0,0 +1,31 @@
+package funHttpServer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adds the number of bytes written through it to a counter, for the metrics
+ */
+class CountingOutputStream extends FilterOutputStream {
+  private final LongAdder counter;
+
+  CountingOutputStream(OutputStream out, LongAdder counter) {
+    super(out);
+    this.counter = counter;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    counter.increment();
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    // FilterOutputStream would write byte by byte
+    out.write(b, off, len);
+    counter.add(len);
+  }
+}
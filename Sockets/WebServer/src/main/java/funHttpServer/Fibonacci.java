@@ -0,0 +1,106 @@
+package funHttpServer;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Exact Fibonacci numbers for /fibonacci. F(n) is found with fast doubling,
+ * which needs O(log n) steps instead of walking from 0 to n:
+ *
+ *   F(2k)   = F(k) * (2 * F(k+1) - F(k))
+ *   F(2k+1) = F(k)^2 + F(k+1)^2
+ *
+ * The pairs (F(n), F(n+1)) for every multiple of CHECKPOINT that was needed are
+ * kept in a small shared cache, a request near one of them only has to add its
+ * way forward from there. Numbers are BigIntegers, so nothing overflows
+ * (the old long loop was wrong after F(92)).
+ */
+class Fibonacci {
+  /**
+   * Distance between two cached checkpoints
+   */
+  static final int CHECKPOINT = 64;
+
+  /**
+   * Number of checkpoints kept, least recently used ones are dropped
+   */
+  static final int MAX_CHECKPOINTS = 512;
+
+  // checkpoint index -> {F(index), F(index + 1)}
+  private static final Map<Long, BigInteger[]> checkpoints = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, BigInteger[]> eldest) {
+      return size() > MAX_CHECKPOINTS;
+    }
+  };
+
+  private Fibonacci() {
+  }
+
+  /**
+   * @return F(n)
+   */
+  static BigInteger get(long n) {
+    return pair(n)[0];
+  }
+
+  /**
+   * @return {F(n), F(n+1)}, starting from the closest checkpoint below n
+   */
+  static BigInteger[] pair(long n) {
+    if (n < 0)
+      throw new IllegalArgumentException("n must be >= 0");
+    long checkpoint = n - n % CHECKPOINT;
+    BigInteger[] pair;
+    synchronized (checkpoints) {
+      pair = checkpoints.get(checkpoint);
+    }
+    if (pair == null) {
+      pair = fastDoubling(checkpoint);
+      synchronized (checkpoints) {
+        checkpoints.put(checkpoint, pair);
+      }
+    }
+    // at most CHECKPOINT - 1 additions
+    BigInteger a = pair[0];
+    BigInteger b = pair[1];
+    for (long i = checkpoint; i < n; i++) {
+      BigInteger next = a.add(b);
+      a = b;
+      b = next;
+    }
+    return new BigInteger[] {a, b};
+  }
+
+  /**
+   * @return {F(n), F(n+1)} computed from the bits of n, most significant first
+   */
+  static BigInteger[] fastDoubling(long n) {
+    BigInteger a = BigInteger.ZERO; // F(k)
+    BigInteger b = BigInteger.ONE;  // F(k+1)
+    for (int bit = 63 - Long.numberOfLeadingZeros(n); bit >= 0; bit--) {
+      // k -> 2k
+      BigInteger c = a.multiply(b.shiftLeft(1).subtract(a));
+      BigInteger d = a.multiply(a).add(b.multiply(b));
+      if (((n >>> bit) & 1) == 0) {
+        a = c;
+        b = d;
+      } else {
+        // k -> 2k + 1
+        a = d;
+        b = c.add(d);
+      }
+    }
+    return new BigInteger[] {a, b};
+  }
+
+  /**
+   * Forgets all checkpoints, used by the benchmark
+   */
+  static void clearCheckpoints() {
+    synchronized (checkpoints) {
+      checkpoints.clear();
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package funHttpServer;
+
+import java.math.BigInteger;
+import java.util.function.Supplier;
+
+/**
+ * Compares the old /fibonacci loop with the Fibonacci engine. Every variant is
+ * warmed up first (so the JIT has compiled it) and then run for a fixed time,
+ * the table shows the average time for finding F(start).
+ *
+ * - long loop: the old code, walks from 0 to start (only correct up to 92)
+ * - BigInteger loop: the same walk with exact numbers
+ * - fast doubling: O(log start) steps, no cache
+ * - checkpoints: the engine as used by /fibonacci, requests near an earlier one
+ */
+class FibonacciBenchmark {
+  // results go here so the JIT cannot drop the computation
+  static volatile Object sink;
+
+  /**
+   * Usage: FibonacciBenchmark [millisPerMeasurement] [start...]
+   */
+  public static void main(String[] args) {
+    long millis = 1000;
+    long[] starts = {50, 90, 1_000, 10_000, 100_000};
+    try {
+      if (args.length > 0)
+        millis = Long.parseLong(args[0]);
+      if (args.length > 1) {
+        starts = new long[args.length - 1];
+        for (int i = 1; i < args.length; i++)
+          starts[i - 1] = Long.parseLong(args[i]);
+      }
+    } catch (NumberFormatException nfe) {
+      System.out.println("Usage: FibonacciBenchmark [millisPerMeasurement] [start...]");
+      System.exit(1);
+    }
+
+    System.out.println("start\tlong loop\tBigInteger loop\tfast doubling\tcheckpoints   (microseconds per F(start))");
+    for (long start : starts) {
+      long n = start;
+      String longLoop = n <= 92 ? format(measure(millis, () -> linearLong(n))) : "overflows";
+      String bigLoop = format(measure(millis, () -> linearBig(n)));
+      String doubling = format(measure(millis, () -> Fibonacci.fastDoubling(n)[0]));
+      // like the next request of a client paging through the sequence
+      long[] offset = {0};
+      String cached = format(measure(millis, () -> Fibonacci.get(n + (offset[0]++ % 100))));
+      Fibonacci.clearCheckpoints();
+      System.out.println(start + "\t" + longLoop + "\t\t" + bigLoop + "\t\t" + doubling + "\t\t" + cached);
+    }
+  }
+
+  /**
+   * The loop /fibonacci used before
+   */
+  static long linearLong(long start) {
+    long a = 0, b = 1;
+    for (long i = 0; i < start; i++) {
+      long temp = a + b;
+      a = b;
+      b = temp;
+    }
+    return a;
+  }
+
+  static BigInteger linearBig(long start) {
+    BigInteger a = BigInteger.ZERO, b = BigInteger.ONE;
+    for (long i = 0; i < start; i++) {
+      BigInteger temp = a.add(b);
+      a = b;
+      b = temp;
+    }
+    return a;
+  }
+
+  /**
+   * @return average nanoseconds per call, after the same time of warm up
+   */
+  static double measure(long millis, Supplier<Object> task) {
+    run(millis, task);
+    return run(millis, task);
+  }
+
+  private static double run(long millis, Supplier<Object> task) {
+    long end = System.nanoTime() + millis * 1_000_000;
+    long calls = 0;
+    long begin = System.nanoTime();
+    long now;
+    do {
+      sink = task.get();
+      calls++;
+      now = System.nanoTime();
+    } while (now < end);
+    return (double) (now - begin) / calls;
+  }
+
+  private static String format(double nanos) {
+    return String.format("%.3f", nanos / 1000);
+  }
+}
@@ -0,0 +1,80 @@
+package funHttpServer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stands in for api.github.com when trying out /github without network access
+ * or without using up GitHub's rate limit. It is a funHttpServer itself and
+ * answers /users/NAME/repos and /orgs/NAME/repos with a list of made up repos in
+ * the same format as GitHub, with an ETag so revalidation can be seen as well.
+ *
+ * Start it and then the fun web server with -Dgithub.url=http://localhost:9010/,
+ * every request that reaches the stub is printed, so you can see how many
+ * requests to /github really went upstream.
+ */
+class GitHubStub {
+  /**
+   * Usage: GitHubStub [port] [reposPerUser] [delayMillis]
+   */
+  public static void main(String[] args) {
+    int port = 9010;
+    int repos = 30;
+    int delay = 200;
+    try {
+      if (args.length > 0)
+        port = Integer.parseInt(args[0]);
+      if (args.length > 1)
+        repos = Integer.parseInt(args[1]);
+      if (args.length > 2)
+        delay = Integer.parseInt(args[2]);
+    } catch (NumberFormatException nfe) {
+      System.out.println("Usage: GitHubStub [port] [reposPerUser] [delayMillis]");
+      System.exit(1);
+    }
+
+    int count = repos;
+    int latency = delay;
+    WebServer server = new WebServer(port);
+    Handler handler = request -> {
+      // e.g. users/amehlhase316/repos
+      String[] parts = request.path.split("\\?")[0].split("/");
+      if (parts.length != 3 || !parts[2].equals("repos"))
+        return Response.json(404, "{\"message\":\"Not Found\"}");
+      System.out.println("Upstream request for " + request.path);
+      try {
+        // a real upstream is far away
+        Thread.sleep(latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      byte[] body = repos(parts[1], count).getBytes(StandardCharsets.UTF_8);
+      // the content never changes, so a revalidation always gets a 304
+      return new ContentCache.Entry(body, "application/json; charset=utf-8", 0).respond(request);
+    };
+    server.route("users", handler);
+    server.route("orgs", handler);
+    server.run();
+  }
+
+  /**
+   * @return JSON array of repos owned by the user, like GitHub's /users/NAME/repos
+   */
+  static String repos(String owner, int count) {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < count; i++) {
+      if (i > 0)
+        json.append(',');
+      json.append("{\"id\":").append(1000 + i)
+          .append(",\"name\":\"repo").append(i).append('"')
+          .append(",\"full_name\":\"").append(owner).append("/repo").append(i).append('"')
+          .append(",\"private\":false")
+          .append(",\"owner\":{\"login\":\"").append(owner).append("\",\"id\":42,\"type\":\"User\"}")
+          .append(",\"description\":\"Repo number ").append(i).append(" with {braces}, \\\"quotes\\\" and [brackets]\"")
+          .append(",\"topics\":[\"java\",\"sockets\"]")
+          .append(",\"license\":{\"key\":\"mit\",\"name\":\"MIT License\"}")
+          .append(",\"stargazers_count\":").append(i * 3)
+          .append('}');
+    }
+    return json.append(']').toString();
+  }
+}
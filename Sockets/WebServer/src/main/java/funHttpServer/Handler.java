@@ -0,0 +1,16 @@
+package funHttpServer;
+
+import java.io.IOException;
+
+/**
+ * An endpoint of the fun web server, registered with the Router under the first
+ * segment of its path (e.g. "multiply" for /multiply?num1=3&num2=4)
+ */
+@FunctionalInterface
+interface Handler {
+  /**
+   * @param request the routed request, request.params() holds the query parameters
+   * @return the response for the client
+   */
+  Response handle(Request request) throws IOException;
+}
@@ -0,0 +1,364 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * HPACK, the header compression of HTTP/2 (RFC 7541). Both sides keep a table
+ * of header fields they sent before: a field in the table is sent as its index,
+ * often a single byte, instead of the name and value. The table has a static
+ * part of 61 common fields (":method: GET", "content-type", ...) and a dynamic
+ * part of the fields of this connection, newest first, that is limited in
+ * bytes. Names and values that are not in the table are sent as they are or
+ * Huffman coded, whichever is shorter.
+ *
+ * Every connection has one Decoder for the requests and one Encoder for the
+ * responses. Header blocks have to be decoded and encoded in the order they
+ * are received and sent, since each one may change the dynamic table.
+ */
+class Hpack {
+  /**
+   * A header field as it is sent, the name in lower case
+   */
+  static class Field {
+    final String name;
+    final String value;
+    // size in the dynamic table: the bytes of name and value plus 32
+    final int size;
+
+    Field(String name, String value) {
+      this.name = name;
+      this.value = value;
+      size = name.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length + 32;
+    }
+  }
+
+  /**
+   * Size of the dynamic table until the other side says otherwise (SETTINGS_HEADER_TABLE_SIZE)
+   */
+  static final int DEFAULT_TABLE_SIZE = 4096;
+
+  private static final Field[] STATIC_TABLE = {
+      null, // indexes start at 1
+      new Field(":authority", ""),
+      new Field(":method", "GET"),
+      new Field(":method", "POST"),
+      new Field(":path", "/"),
+      new Field(":path", "/index.html"),
+      new Field(":scheme", "http"),
+      new Field(":scheme", "https"),
+      new Field(":status", "200"),
+      new Field(":status", "204"),
+      new Field(":status", "206"),
+      new Field(":status", "304"),
+      new Field(":status", "400"),
+      new Field(":status", "404"),
+      new Field(":status", "500"),
+      new Field("accept-charset", ""),
+      new Field("accept-encoding", "gzip, deflate"),
+      new Field("accept-language", ""),
+      new Field("accept-ranges", ""),
+      new Field("accept", ""),
+      new Field("access-control-allow-origin", ""),
+      new Field("age", ""),
+      new Field("allow", ""),
+      new Field("authorization", ""),
+      new Field("cache-control", ""),
+      new Field("content-disposition", ""),
+      new Field("content-encoding", ""),
+      new Field("content-language", ""),
+      new Field("content-length", ""),
+      new Field("content-location", ""),
+      new Field("content-range", ""),
+      new Field("content-type", ""),
+      new Field("cookie", ""),
+      new Field("date", ""),
+      new Field("etag", ""),
+      new Field("expect", ""),
+      new Field("expires", ""),
+      new Field("from", ""),
+      new Field("host", ""),
+      new Field("if-match", ""),
+      new Field("if-modified-since", ""),
+      new Field("if-none-match", ""),
+      new Field("if-range", ""),
+      new Field("if-unmodified-since", ""),
+      new Field("last-modified", ""),
+      new Field("link", ""),
+      new Field("location", ""),
+      new Field("max-forwards", ""),
+      new Field("proxy-authenticate", ""),
+      new Field("proxy-authorization", ""),
+      new Field("range", ""),
+      new Field("referer", ""),
+      new Field("refresh", ""),
+      new Field("retry-after", ""),
+      new Field("server", ""),
+      new Field("set-cookie", ""),
+      new Field("strict-transport-security", ""),
+      new Field("transfer-encoding", ""),
+      new Field("user-agent", ""),
+      new Field("vary", ""),
+      new Field("via", ""),
+      new Field("www-authenticate", ""),
+  };
+
+  private Hpack() {
+  }
+
+  /**
+   * The fields of one side that are not in the static table, newest first
+   */
+  private static class DynamicTable {
+    private final LinkedList<Field> fields = new LinkedList<>();
+    private int size;
+    private int maxSize = DEFAULT_TABLE_SIZE;
+
+    Field get(int index) {
+      return index < STATIC_TABLE.length ? STATIC_TABLE[index] : fields.get(index - STATIC_TABLE.length);
+    }
+
+    int length() {
+      return STATIC_TABLE.length + fields.size();
+    }
+
+    void add(Field field) {
+      fields.addFirst(field);
+      size += field.size;
+      // a field larger than the table empties it and is not kept either
+      evict();
+    }
+
+    void resize(int maxSize) {
+      this.maxSize = maxSize;
+      evict();
+    }
+
+    private void evict() {
+      while (size > maxSize) {
+        size -= fields.removeLast().size;
+      }
+    }
+  }
+
+  /**
+   * Decodes the header blocks of the requests of a connection
+   */
+  static class Decoder {
+    private final DynamicTable table = new DynamicTable();
+    private final int maxTableSize;
+    private final int maxListSize;
+
+    /**
+     * @param maxTableSize largest dynamic table we allow (our SETTINGS_HEADER_TABLE_SIZE)
+     * @param maxListSize most bytes of decoded fields (as counted in the table) of one block
+     */
+    Decoder(int maxTableSize, int maxListSize) {
+      this.maxTableSize = maxTableSize;
+      this.maxListSize = maxListSize;
+      table.resize(maxTableSize);
+    }
+
+    /**
+     * @return the fields of the block in the order they were sent
+     * @throws IOException if the block is not valid, the connection cannot go on then
+     * @throws HeaderListTooLarge if the fields are larger than maxListSize, the
+     *         whole block was decoded anyway so the table stays in sync
+     */
+    List<Field> decode(byte[] block, int length) throws IOException {
+      List<Field> fields = new ArrayList<>();
+      int[] position = {0};
+      int listSize = 0;
+      while (position[0] < length) {
+        int b = block[position[0]] & 0xff;
+        Field field;
+        if ((b & 0x80) != 0) {
+          // indexed field
+          field = field(integer(block, length, position, 7));
+        } else if ((b & 0x40) != 0) {
+          // literal, added to the table
+          field = literal(block, length, position, 6);
+          table.add(field);
+        } else if ((b & 0x20) != 0) {
+          int size = integer(block, length, position, 5);
+          if (size > maxTableSize || !fields.isEmpty())
+            throw new IOException("Invalid dynamic table size update");
+          table.resize(size);
+          continue;
+        } else {
+          // literal without indexing (0000) or never indexed (0001)
+          field = literal(block, length, position, 4);
+        }
+        listSize += field.size;
+        fields.add(field);
+      }
+      if (listSize > maxListSize)
+        throw new HeaderListTooLarge();
+      return fields;
+    }
+
+    private Field field(int index) throws IOException {
+      if (index == 0 || index >= table.length())
+        throw new IOException("Invalid header table index " + index);
+      return table.get(index);
+    }
+
+    private Field literal(byte[] block, int length, int[] position, int prefix) throws IOException {
+      int index = integer(block, length, position, prefix);
+      String name = index == 0 ? string(block, length, position) : field(index).name;
+      return new Field(name, string(block, length, position));
+    }
+
+    private static String string(byte[] block, int length, int[] position) throws IOException {
+      if (position[0] >= length)
+        throw new IOException("Truncated header block");
+      boolean huffman = (block[position[0]] & 0x80) != 0;
+      int size = integer(block, length, position, 7);
+      if (size > length - position[0])
+        throw new IOException("Truncated header block");
+      int start = position[0];
+      position[0] += size;
+      if (huffman)
+        return new String(Huffman.decode(block, start, size), StandardCharsets.UTF_8);
+      return new String(block, start, size, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads an integer with an n bit prefix (RFC 7541, 5.1)
+     */
+    private static int integer(byte[] block, int length, int[] position, int prefix) throws IOException {
+      int max = (1 << prefix) - 1;
+      int value = block[position[0]++] & max;
+      if (value < max)
+        return value;
+      int shift = 0;
+      int b;
+      do {
+        if (position[0] >= length || shift > 21)
+          throw new IOException("Invalid integer in header block");
+        b = block[position[0]++] & 0xff;
+        value += (b & 0x7f) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+  }
+
+  /**
+   * The fields of a header block were more than we accept (SETTINGS_MAX_HEADER_LIST_SIZE)
+   */
+  static class HeaderListTooLarge extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    HeaderListTooLarge() {
+      super("Header list too large");
+    }
+  }
+
+  /**
+   * Encodes the header blocks of the responses of a connection
+   */
+  static class Encoder {
+    private final DynamicTable table = new DynamicTable();
+    // a change of the table size the other side has to be told about in the next block
+    private int pendingSize = -1;
+
+    /**
+     * The other side changed SETTINGS_HEADER_TABLE_SIZE, we use at most the default
+     */
+    void maxTableSize(int size) {
+      int limited = Math.min(size, DEFAULT_TABLE_SIZE);
+      if (limited != table.maxSize) {
+        table.resize(limited);
+        pendingSize = limited;
+      }
+    }
+
+    /**
+     * @param fields names in lower case
+     */
+    byte[] encode(List<Field> fields) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 32 * fields.size());
+      if (pendingSize >= 0) {
+        integer(out, 0x20, 5, pendingSize);
+        pendingSize = -1;
+      }
+      for (Field field : fields) {
+        int nameIndex = 0;
+        int index = 0;
+        for (int i = 1; i < table.length() && index == 0; i++) {
+          Field candidate = table.get(i);
+          if (candidate.name.equals(field.name)) {
+            if (candidate.value.equals(field.value))
+              index = i;
+            else if (nameIndex == 0)
+              nameIndex = i;
+          }
+        }
+        if (index > 0) {
+          integer(out, 0x80, 7, index);
+        } else if (changesEveryTime(field.name)) {
+          // would only push useful fields out of the table
+          integer(out, 0x00, 4, nameIndex);
+          if (nameIndex == 0)
+            string(out, field.name);
+          string(out, field.value);
+        } else {
+          integer(out, 0x40, 6, nameIndex);
+          if (nameIndex == 0)
+            string(out, field.name);
+          string(out, field.value);
+          table.add(field);
+        }
+      }
+      return out.toByteArray();
+    }
+
+    private static boolean changesEveryTime(String name) {
+      switch (name) {
+        case "content-length":
+        case "content-range":
+        case "etag":
+        case "last-modified":
+        case "date":
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    private static void string(ByteArrayOutputStream out, String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      int huffmanLength = Huffman.encodedLength(bytes);
+      if (huffmanLength < bytes.length) {
+        integer(out, 0x80, 7, huffmanLength);
+        Huffman.encode(bytes, out);
+      } else {
+        integer(out, 0x00, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+      }
+    }
+
+    /**
+     * Writes an integer with an n bit prefix, the bits above it are flags
+     */
+    private static void integer(ByteArrayOutputStream out, int flags, int prefix, int value) {
+      int max = (1 << prefix) - 1;
+      if (value < max) {
+        out.write(flags | value);
+        return;
+      }
+      out.write(flags | max);
+      value -= max;
+      while (value >= 0x80) {
+        out.write((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+  }
+}
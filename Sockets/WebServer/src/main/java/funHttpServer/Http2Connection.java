@@ -0,0 +1,1065 @@
+package funHttpServer;
+
+import httpCommon.HttpParser;
+import httpCommon.ThreadPerTask;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP/2 without TLS (h2c) on a connection of the blocking engine. A client
+ * either starts with the HTTP/2 preface right away (prior knowledge, e.g.
+ * curl --http2-prior-knowledge) or sends an HTTP/1.1 request with
+ * "Upgrade: h2c" and gets its response on stream 1 after a 101 (curl --http2).
+ *
+ * All requests of the client share the one connection as streams. The
+ * connection's thread only reads frames, every request runs its handler on a
+ * thread of its own and the response frames of all streams are interleaved on
+ * the socket, so a slow /github does not hold up the /multiply sent after it.
+ * Headers are HPACK compressed (see Hpack). Both directions are flow
+ * controlled: a response waits when the client has no window left, a request
+ * body is passed to the handler through a pipe of one window, the client gets
+ * more window as the handler reads.
+ *
+ * The endpoints are the same as for HTTP/1.1, createResponse() does not know
+ * which protocol the request came with.
+ */
+class Http2Connection {
+  static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] SWITCHING_PROTOCOLS =
+      "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  // frame types
+  private static final int DATA = 0x0;
+  private static final int HEADERS = 0x1;
+  private static final int PRIORITY = 0x2;
+  private static final int RST_STREAM = 0x3;
+  private static final int SETTINGS = 0x4;
+  private static final int PUSH_PROMISE = 0x5;
+  private static final int PING = 0x6;
+  private static final int GOAWAY = 0x7;
+  private static final int WINDOW_UPDATE = 0x8;
+  private static final int CONTINUATION = 0x9;
+
+  // flags
+  private static final int END_STREAM = 0x1;
+  private static final int ACK = 0x1;
+  private static final int END_HEADERS = 0x4;
+  private static final int PADDED = 0x8;
+  private static final int PRIORITY_FLAG = 0x20;
+
+  // error codes
+  private static final int NO_ERROR = 0x0;
+  private static final int PROTOCOL_ERROR = 0x1;
+  private static final int INTERNAL_ERROR = 0x2;
+  private static final int FLOW_CONTROL_ERROR = 0x3;
+  private static final int STREAM_CLOSED = 0x5;
+  private static final int FRAME_SIZE_ERROR = 0x6;
+  private static final int REFUSED_STREAM = 0x7;
+  private static final int COMPRESSION_ERROR = 0x9;
+  private static final int ENHANCE_YOUR_CALM = 0xb;
+
+  // settings
+  private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+  private static final int SETTINGS_ENABLE_PUSH = 0x2;
+  private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+  private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+  private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+  /**
+   * Requests of one client that are handled at the same time
+   */
+  static final int MAX_CONCURRENT_STREAMS = 100;
+
+  /**
+   * Receive window of every stream: the most body bytes of a request that wait for its handler
+   */
+  static final int STREAM_WINDOW = 256 * 1024;
+
+  /**
+   * Receive window of the connection, returned as soon as a DATA frame arrived
+   * since the stream windows already limit what is buffered
+   */
+  static final int CONNECTION_WINDOW = 1024 * 1024;
+
+  // the defaults of the protocol until SETTINGS say otherwise
+  private static final int DEFAULT_WINDOW = 65535;
+  private static final int DEFAULT_FRAME_SIZE = 16384;
+  // largest header block (HEADERS and CONTINUATION frames) we collect
+  private static final int MAX_HEADER_BLOCK = 64 * 1024;
+
+  // handlers of all HTTP/2 connections
+  private static final ExecutorService HANDLERS = ThreadPerTask.newExecutor();
+
+  /**
+   * Ends the connection with a GOAWAY
+   */
+  private static class ConnectionError extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final int code;
+
+    ConnectionError(int code, String message) {
+      super(message);
+      this.code = code;
+    }
+  }
+
+  /**
+   * One request and its response
+   */
+  private class Stream {
+    final int id;
+    // bytes we may still send, guarded by the connection
+    long sendWindow;
+    // the request body, null if the request has none or it was received completely
+    Body body;
+    volatile boolean reset;
+    volatile Response.EventSource events;
+
+    Stream(int id) {
+      this.id = id;
+    }
+  }
+
+  /**
+   * The body of a request for its handler. Whenever the handler has read half
+   * a window the client gets that much more window.
+   */
+  private class Body extends RequestBody.Pipe {
+    private final Stream stream;
+    // bytes the client may still send
+    private int window = STREAM_WINDOW;
+    private int consumed;
+    private long received;
+
+    Body(Stream stream) {
+      super(STREAM_WINDOW, server.idleTimeout, () -> {
+      });
+      this.stream = stream;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0)
+        consumed(n);
+      return n;
+    }
+
+    /**
+     * @param n bytes that do not need window any more (read or padding)
+     */
+    void consumed(int n) throws IOException {
+      int update;
+      synchronized (this) {
+        consumed += n;
+        if (consumed < STREAM_WINDOW / 2 || complete())
+          return;
+        update = consumed;
+        consumed = 0;
+      }
+      sendWindowUpdate(stream.id, update);
+      synchronized (this) {
+        window += update;
+      }
+    }
+
+    /**
+     * @return false if the client sent more than its window
+     */
+    synchronized boolean receive(int length) {
+      window -= length;
+      return window >= 0;
+    }
+  }
+
+  private final WebServer server;
+  private final InetAddress client;
+  private final InputStream in;
+  // buffered, writes of all streams are serialized on it
+  private final OutputStream out;
+  private final Object writeLock = new Object();
+  private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE, HttpParser.DEFAULT_MAX_HEAD);
+  // only used with writeLock, the blocks have to be encoded in the order they are sent
+  private final Hpack.Encoder encoder = new Hpack.Encoder();
+  private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+  private final byte[] frameHeader = new byte[9];
+  private final byte[] payload = new byte[DEFAULT_FRAME_SIZE];
+  // the reader's state
+  private int lastStreamId;
+  private int connectionReceived;
+  // the send side, guarded by this
+  private long connectionWindow = DEFAULT_WINDOW;
+  private int initialWindow = DEFAULT_WINDOW;
+  private int maxFrameSize = DEFAULT_FRAME_SIZE;
+  private boolean closed;
+
+  /**
+   * @param buffer bytes received after the preface or the upgrade request, read before the socket
+   * @param out buffered stream of the socket
+   */
+  Http2Connection(WebServer server, InetAddress client, InputStream in, ByteBuffer buffer, OutputStream out) {
+    this.server = server;
+    this.client = client;
+    this.in = buffer.hasRemaining()
+        ? new SequenceInputStream(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(),
+        buffer.remaining()), in)
+        : in;
+    this.out = out;
+  }
+
+  /**
+   * Reads from the stream until it is clear whether the client starts with the
+   * HTTP/2 preface. The bytes read stay in the buffer for the HTTP/1 parser
+   * unless they are the preface.
+   * @param buffer empty buffer of the parser
+   * @return true if the preface was received (and taken out of the buffer)
+   */
+  static boolean preface(InputStream in, ByteBuffer buffer) throws IOException {
+    while (true) {
+      int received = Math.min(buffer.remaining(), PREFACE.length);
+      for (int i = 0; i < received; i++) {
+        if (buffer.get(buffer.position() + i) != PREFACE[i])
+          return false;
+      }
+      if (received == PREFACE.length) {
+        buffer.position(buffer.position() + PREFACE.length);
+        return true;
+      }
+      int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.limit(), buffer.capacity() - buffer.limit());
+      if (read < 0)
+        return false;
+      buffer.limit(buffer.limit() + read);
+    }
+  }
+
+  /**
+   * @return true if the client asks to switch to h2c and we can do so, not for a request with a body
+   */
+  static boolean upgrade(Request request) {
+    return "HTTP/1.1".equals(request.version) && request.bodyDecoder == null
+        && hasToken(request.header("upgrade"), "h2c") && hasToken(request.header("connection"), "http2-settings")
+        && request.header("http2-settings") != null;
+  }
+
+  private static boolean hasToken(String value, String token) {
+    if (value == null)
+      return false;
+    for (String part : value.split(",")) {
+      if (part.trim().equalsIgnoreCase(token))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Serves streams until the client closes the connection, it is idle for too
+   * long or breaks the protocol
+   * @param upgraded the HTTP/1.1 request that asked for the upgrade, null for prior knowledge
+   */
+  void serve(Request upgraded) throws IOException {
+    if (upgraded != null) {
+      out.write(SWITCHING_PROTOCOLS);
+      try {
+        settings(Base64.getUrlDecoder().decode(upgraded.header("http2-settings").trim()), 0);
+      } catch (IllegalArgumentException | ConnectionError e) {
+        // the header is only a shortcut for the client's first SETTINGS frame
+      }
+    }
+    // our settings are the first frame we send
+    byte[] settings = new byte[4 * 6];
+    setting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+    setting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+    setting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, HttpParser.DEFAULT_MAX_HEAD);
+    setting(settings, 18, SETTINGS_ENABLE_PUSH, 0);
+    synchronized (writeLock) {
+      frame(SETTINGS, 0, 0, settings, 0, settings.length);
+      frame(WINDOW_UPDATE, 0, 0, int32(CONNECTION_WINDOW - DEFAULT_WINDOW), 0, 4);
+      out.flush();
+    }
+
+    int error = NO_ERROR;
+    try {
+      if (upgraded != null) {
+        byte[] preface = new byte[PREFACE.length];
+        if (!readFully(preface, preface.length, false) || !Arrays.equals(preface, PREFACE))
+          throw new ConnectionError(PROTOCOL_ERROR, "Missing preface after the upgrade");
+        // the upgraded request is stream 1, its body (there is none) is complete
+        lastStreamId = 1;
+        upgraded.version = "HTTP/2.0";
+        Stream stream = new Stream(1);
+        synchronized (this) {
+          stream.sendWindow = initialWindow;
+        }
+        streams.put(1, stream);
+        dispatch(stream, upgraded);
+      }
+      while (readFrame()) {
+        handleFrame();
+      }
+    } catch (ConnectionError e) {
+      error = e.code;
+    } catch (SocketTimeoutException e) {
+      // idle for too long
+    } catch (EOFException e) {
+      return;
+    } finally {
+      shutdown(error);
+    }
+  }
+
+  /**
+   * Reads the next frame into frameHeader and payload
+   * @return false if the client closed the connection or it was idle for too long
+   */
+  private boolean readFrame() throws IOException {
+    if (!readFully(frameHeader, 9, true))
+      return false;
+    int length = length();
+    if (length > DEFAULT_FRAME_SIZE)
+      throw new ConnectionError(FRAME_SIZE_ERROR, "Frame larger than SETTINGS_MAX_FRAME_SIZE");
+    if (!readFully(payload, length, false))
+      throw new EOFException("Connection closed in a frame");
+    return true;
+  }
+
+  /**
+   * Reads length bytes. A read timeout only ends the connection if no stream
+   * is open, a client waiting for a long response has nothing to send.
+   * @param idle true at the start of a frame, where the client may close the connection
+   * @return false if the client closed the connection or was idle at the start of a frame
+   */
+  private boolean readFully(byte[] bytes, int length, boolean idle) throws IOException {
+    int received = 0;
+    while (received < length) {
+      int n;
+      try {
+        n = in.read(bytes, received, length - received);
+      } catch (SocketTimeoutException e) {
+        if (!streams.isEmpty())
+          continue;
+        if (idle && received == 0)
+          return false;
+        throw e;
+      }
+      if (n < 0) {
+        if (idle && received == 0)
+          return false;
+        throw new EOFException("Connection closed in a frame");
+      }
+      received += n;
+    }
+    return true;
+  }
+
+  private int length() {
+    return ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+  }
+
+  private int streamId() {
+    return int32(frameHeader, 5) & 0x7fffffff;
+  }
+
+  private void handleFrame() throws IOException {
+    int type = frameHeader[3] & 0xff;
+    int flags = frameHeader[4] & 0xff;
+    int streamId = streamId();
+    int length = length();
+    switch (type) {
+      case DATA:
+        data(streamId, flags, length);
+        break;
+      case HEADERS:
+        headers(streamId, flags, length);
+        break;
+      case PRIORITY:
+        if (streamId == 0)
+          throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+        if (length != 5)
+          throw new ConnectionError(FRAME_SIZE_ERROR, "PRIORITY with wrong length");
+        break; // all streams are served alike
+      case RST_STREAM:
+        if (streamId == 0)
+          throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        if (length != 4)
+          throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM with wrong length");
+        Stream stream = streams.remove(streamId);
+        if (stream != null)
+          cancel(stream);
+        break;
+      case SETTINGS:
+        if (streamId != 0)
+          throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on a stream");
+        if ((flags & ACK) != 0) {
+          if (length != 0)
+            throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+          break;
+        }
+        settings(Arrays.copyOf(payload, length), length);
+        synchronized (writeLock) {
+          frame(SETTINGS, ACK, 0, payload, 0, 0);
+          out.flush();
+        }
+        break;
+      case PUSH_PROMISE:
+        throw new ConnectionError(PROTOCOL_ERROR, "Clients cannot push");
+      case PING:
+        if (streamId != 0)
+          throw new ConnectionError(PROTOCOL_ERROR, "PING on a stream");
+        if (length != 8)
+          throw new ConnectionError(FRAME_SIZE_ERROR, "PING with wrong length");
+        if ((flags & ACK) == 0) {
+          synchronized (writeLock) {
+            frame(PING, ACK, 0, payload, 0, 8);
+            out.flush();
+          }
+        }
+        break;
+      case GOAWAY:
+        // the client opens no more streams, the open ones are still answered
+        break;
+      case WINDOW_UPDATE:
+        windowUpdate(streamId, length);
+        break;
+      case CONTINUATION:
+        throw new ConnectionError(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+      default:
+        break; // unknown frame types are ignored
+    }
+  }
+
+  /**
+   * Applies the client's settings
+   * @param length bytes in settings, a multiple of 6
+   */
+  private void settings(byte[] settings, int length) throws IOException {
+    if (length == 0)
+      length = settings.length;
+    if (length % 6 != 0)
+      throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS with wrong length");
+    for (int i = 0; i < length; i += 6) {
+      int id = ((settings[i] & 0xff) << 8) | (settings[i + 1] & 0xff);
+      long value = int32(settings, i + 2) & 0xffffffffL;
+      switch (id) {
+        case SETTINGS_HEADER_TABLE_SIZE:
+          synchronized (writeLock) {
+            encoder.maxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+          }
+          break;
+        case SETTINGS_ENABLE_PUSH:
+          if (value > 1)
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+          break;
+        case SETTINGS_INITIAL_WINDOW_SIZE:
+          if (value > Integer.MAX_VALUE)
+            throw new ConnectionError(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+          synchronized (this) {
+            // applies to the open streams as well, their windows may even become negative
+            long delta = value - initialWindow;
+            initialWindow = (int) value;
+            for (Stream stream : streams.values()) {
+              stream.sendWindow += delta;
+            }
+            notifyAll();
+          }
+          break;
+        case SETTINGS_MAX_FRAME_SIZE:
+          if (value < DEFAULT_FRAME_SIZE || value > 0xffffff)
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+          synchronized (this) {
+            maxFrameSize = (int) value;
+          }
+          break;
+        default:
+          break; // SETTINGS_MAX_CONCURRENT_STREAMS (we do not push), SETTINGS_MAX_HEADER_LIST_SIZE and unknown ones
+      }
+    }
+  }
+
+  private void windowUpdate(int streamId, int length) throws IOException {
+    if (length != 4)
+      throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE with wrong length");
+    int increment = int32(payload, 0) & 0x7fffffff;
+    if (streamId == 0) {
+      if (increment == 0)
+        throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+      synchronized (this) {
+        connectionWindow += increment;
+        if (connectionWindow > Integer.MAX_VALUE)
+          throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window too large");
+        notifyAll();
+      }
+      return;
+    }
+    Stream stream = streams.get(streamId);
+    if (stream == null)
+      return; // closed already
+    if (increment == 0) {
+      reset(stream, PROTOCOL_ERROR);
+      return;
+    }
+    synchronized (this) {
+      stream.sendWindow += increment;
+      if (stream.sendWindow > Integer.MAX_VALUE) {
+        reset(stream, FLOW_CONTROL_ERROR);
+        return;
+      }
+      notifyAll();
+    }
+  }
+
+  private void data(int streamId, int flags, int length) throws IOException {
+    if (streamId == 0)
+      throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+    int padding = padding(flags, length);
+    int start = (flags & PADDED) != 0 ? 1 : 0;
+    int dataLength = length - padding - start;
+
+    // the connection window is returned right away, the stream windows limit what waits for handlers
+    connectionReceived += length;
+    if (connectionReceived >= CONNECTION_WINDOW / 2) {
+      synchronized (writeLock) {
+        frame(WINDOW_UPDATE, 0, 0, int32(connectionReceived), 0, 4);
+        out.flush();
+      }
+      connectionReceived = 0;
+    }
+
+    Stream stream = streams.get(streamId);
+    if (stream == null) {
+      if (streamId > lastStreamId)
+        throw new ConnectionError(PROTOCOL_ERROR, "DATA on an idle stream");
+      return; // we reset it or answered it already
+    }
+    Body body = stream.body;
+    if (body == null) {
+      reset(stream, STREAM_CLOSED);
+      return;
+    }
+    if (!body.receive(length)) {
+      reset(stream, FLOW_CONTROL_ERROR);
+      return;
+    }
+    server.metrics.bytesReceived.add(dataLength);
+    if (dataLength > 0) {
+      body.received += dataLength;
+      if (body.received > WebServer.MAX_BODY)
+        body.fail(new HttpParser.HttpParseException(413, "Request body too large"));
+      else
+        body.put(Arrays.copyOfRange(payload, start, start + dataLength));
+    }
+    if ((flags & END_STREAM) != 0) {
+      body.finish();
+      stream.body = null;
+    } else if (length - dataLength > 0) {
+      body.consumed(length - dataLength); // padding is never read
+    }
+  }
+
+  /**
+   * @return number of padding bytes at the end of the payload, 0 if the frame is not padded
+   */
+  private int padding(int flags, int length) throws IOException {
+    if ((flags & PADDED) == 0)
+      return 0;
+    int padding = length == 0 ? -1 : payload[0] & 0xff;
+    if (padding < 0 || padding >= length)
+      throw new ConnectionError(PROTOCOL_ERROR, "Too much padding");
+    return padding;
+  }
+
+  private void headers(int streamId, int flags, int length) throws IOException {
+    if (streamId == 0)
+      throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0");
+    int padding = padding(flags, length);
+    int start = ((flags & PADDED) != 0 ? 1 : 0) + ((flags & PRIORITY_FLAG) != 0 ? 5 : 0);
+    int end = length - padding;
+    if (start > end)
+      throw new ConnectionError(FRAME_SIZE_ERROR, "HEADERS too short");
+    byte[] block = Arrays.copyOfRange(payload, start, end);
+    int blockLength = block.length;
+    boolean endStream = (flags & END_STREAM) != 0;
+
+    // the rest of the block follows in CONTINUATION frames of the same stream, nothing in between
+    while ((flags & END_HEADERS) == 0) {
+      if (!readFrame())
+        throw new EOFException("Connection closed in a header block");
+      if ((frameHeader[3] & 0xff) != CONTINUATION || streamId() != streamId)
+        throw new ConnectionError(PROTOCOL_ERROR, "Header block interrupted");
+      flags = frameHeader[4] & 0xff;
+      int fragment = length();
+      if (blockLength + fragment > MAX_HEADER_BLOCK)
+        throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block too large");
+      if (blockLength + fragment > block.length)
+        block = Arrays.copyOf(block, Math.max(block.length * 2, blockLength + fragment));
+      System.arraycopy(payload, 0, block, blockLength, fragment);
+      blockLength += fragment;
+    }
+
+    // the block has to be decoded even if the stream is refused, the tables must stay in sync
+    List<Hpack.Field> fields;
+    boolean tooLarge = false;
+    try {
+      fields = decoder.decode(block, blockLength);
+    } catch (Hpack.HeaderListTooLarge e) {
+      fields = new ArrayList<>();
+      tooLarge = true;
+    } catch (IOException e) {
+      throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+    }
+
+    Stream existing = streams.get(streamId);
+    if (existing != null) {
+      // trailer of a request body, it has to end the stream
+      if (!endStream || existing.body == null)
+        throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on an open stream");
+      existing.body.finish();
+      existing.body = null;
+      return;
+    }
+    if (streamId <= lastStreamId || streamId % 2 == 0) {
+      if (streamId % 2 == 0 || streamId > lastStreamId)
+        throw new ConnectionError(PROTOCOL_ERROR, "Invalid stream id " + streamId);
+      return; // trailer of a stream we reset
+    }
+    lastStreamId = streamId;
+
+    Stream stream = new Stream(streamId);
+    synchronized (this) {
+      stream.sendWindow = initialWindow;
+    }
+    if (streams.size() >= MAX_CONCURRENT_STREAMS) {
+      rst(streamId, REFUSED_STREAM);
+      return;
+    }
+    streams.put(streamId, stream);
+    if (tooLarge) {
+      HANDLERS.execute(() -> {
+        try {
+          send(stream, Response.html(431, "<html>Request header too large</html>"));
+        } catch (IOException e) {
+          // the stream was reset or the connection is gone
+        } finally {
+          finished(stream);
+        }
+      });
+      return;
+    }
+
+    Request request = request(fields, blockLength);
+    if (request == null) {
+      streams.remove(streamId);
+      rst(streamId, PROTOCOL_ERROR);
+      return;
+    }
+    request.client = client;
+    if (!endStream) {
+      stream.body = new Body(stream);
+      request.body = stream.body;
+      if ("100-continue".equalsIgnoreCase(request.header("expect"))) {
+        synchronized (writeLock) {
+          headerBlock(streamId, List.of(new Hpack.Field(":status", "100")), false);
+          out.flush();
+        }
+      }
+    }
+    dispatch(stream, request);
+  }
+
+  /**
+   * @return the request of the header fields, null if a pseudo header is missing
+   */
+  private static Request request(List<Hpack.Field> fields, int blockLength) {
+    Request request = new Request();
+    request.received = System.nanoTime();
+    request.headLength = blockLength;
+    request.version = "HTTP/2.0";
+    for (Hpack.Field field : fields) {
+      switch (field.name) {
+        case ":method":
+          request.method = field.value;
+          break;
+        case ":path":
+          request.target = field.value;
+          break;
+        case ":authority":
+          request.headers.put("host", field.value);
+          break;
+        case ":scheme":
+          break;
+        case "cookie":
+          // may be split into one field per cookie
+          request.headers.merge("cookie", field.value, (a, b) -> a + "; " + b);
+          break;
+        default:
+          if (field.name.startsWith(":"))
+            return null;
+          request.headers.merge(field.name, field.value, (a, b) -> a + ", " + b);
+      }
+    }
+    if (request.method == null || request.target == null || request.target.isEmpty())
+      return null;
+    // extract the request, basically everything after the "/"
+    request.path = request.target.startsWith("/") ? request.target.substring(1) : request.target;
+    return request;
+  }
+
+  /**
+   * Runs the handler of the request on a thread of its own and sends the response
+   */
+  private void dispatch(Stream stream, Request request) {
+    HANDLERS.execute(() -> {
+      try {
+        Response response = server.createResponse(request);
+        if (response.events != null) {
+          stream.events = response.events;
+          // a stream of events is counted when it starts
+          server.completed(request, response.status);
+        }
+        send(stream, response);
+        if (response.events == null)
+          server.completed(request, response.status);
+      } catch (IOException e) {
+        // the stream was reset or the connection is gone
+      } finally {
+        finished(stream);
+      }
+    });
+  }
+
+  /**
+   * The response was sent (or cannot be sent). A request body the handler did
+   * not read is not needed any more, the client is told to stop sending it.
+   */
+  private void finished(Stream stream) {
+    Response.EventSource events = stream.events;
+    if (events != null)
+      events.close();
+    if (streams.remove(stream.id) == null)
+      return; // reset
+    Body body = stream.body;
+    if (body != null && !body.complete() && !stream.reset) {
+      try {
+        rst(stream.id, NO_ERROR);
+      } catch (IOException e) {
+        // the connection is gone
+      }
+    }
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Sends the response as HEADERS and DATA frames
+   */
+  private void send(Stream stream, Response response) throws IOException {
+    List<Hpack.Field> fields = new ArrayList<>();
+    fields.add(new Hpack.Field(":status", Integer.toString(response.status)));
+    for (Map.Entry<String, String> header : response.headers.entrySet()) {
+      String name = header.getKey().toLowerCase();
+      // connection specific headers do not exist in HTTP/2
+      if (!name.equals("connection") && !name.equals("keep-alive") && !name.equals("transfer-encoding")
+          && !name.equals("upgrade"))
+        fields.add(new Hpack.Field(name, header.getValue()));
+    }
+    boolean streamed = response.stream != null || response.events != null;
+    if (!streamed && response.status != 304)
+      fields.add(new Hpack.Field("content-length", Long.toString(response.contentLength())));
+    boolean empty = response.status == 304 || (!streamed && response.contentLength() == 0);
+    synchronized (writeLock) {
+      headerBlock(stream.id, fields, empty);
+      out.flush();
+    }
+    if (empty)
+      return;
+
+    if (response.events != null) {
+      sendEvents(stream, response.events);
+    } else if (response.stream != null) {
+      DataFrameStream data = new DataFrameStream(stream);
+      OutputStream target = response.gzipStream ? new GZIPOutputStream(data, 8192, true) : data;
+      try {
+        response.stream.write(target);
+      } catch (IOException | RuntimeException e) {
+        // a body cut off by an error must not end the stream, the client is told it failed
+        if (!stream.reset) {
+          stream.reset = true;
+          rst(stream.id, INTERNAL_ERROR);
+        }
+        throw e;
+      }
+      // only a complete body ends the stream
+      target.close();
+    } else if (response.file != null) {
+      try (FileChannel file = FileChannel.open(response.file)) {
+        ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_FRAME_SIZE);
+        long position = response.fileOffset;
+        long remaining = response.fileLength;
+        while (remaining > 0) {
+          buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+          int n = file.read(buffer, position);
+          if (n < 0)
+            throw new IOException("file is shorter than expected");
+          position += n;
+          remaining -= n;
+          data(stream, buffer.array(), 0, n, remaining == 0);
+        }
+      }
+    } else {
+      data(stream, response.body, 0, response.body.length, true);
+    }
+  }
+
+  /**
+   * Sends the pieces of the event source until it ends or the stream is reset
+   */
+  private void sendEvents(Stream stream, Response.EventSource events) throws IOException {
+    try {
+      byte[] bytes;
+      while ((bytes = events.poll()) != null && !stream.reset) {
+        if (bytes.length == 0)
+          events.await();
+        else
+          data(stream, bytes, 0, bytes.length, false);
+      }
+      data(stream, new byte[0], 0, 0, true);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * A streamed body as DATA frames of up to 16 KB
+   */
+  private class DataFrameStream extends OutputStream {
+    private final Stream stream;
+    private final byte[] buffer = new byte[DEFAULT_FRAME_SIZE];
+    private int count;
+
+    DataFrameStream(Stream stream) {
+      this.stream = stream;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == buffer.length)
+        flush();
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == buffer.length)
+          flush();
+        int n = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (count > 0)
+        data(stream, buffer, 0, count, false);
+      count = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      data(stream, buffer, 0, count, true);
+      count = 0;
+    }
+  }
+
+  /**
+   * Sends bytes as DATA frames, waiting for window when the client has none left
+   * @param end the last frame ends the stream
+   */
+  private void data(Stream stream, byte[] bytes, int offset, int length, boolean end) throws IOException {
+    do {
+      int n = length == 0 ? 0 : acquire(stream, length);
+      synchronized (writeLock) {
+        if (stream.reset)
+          throw new IOException("Stream reset");
+        frame(DATA, end && n == length ? END_STREAM : 0, stream.id, bytes, offset, n);
+        out.flush();
+      }
+      offset += n;
+      length -= n;
+    } while (length > 0);
+  }
+
+  /**
+   * Waits until the connection and the stream have window
+   * @return bytes that may be sent now, at most length and one frame
+   */
+  private synchronized int acquire(Stream stream, int length) throws IOException {
+    try {
+      while (connectionWindow <= 0 || stream.sendWindow <= 0) {
+        if (stream.reset || closed)
+          throw new IOException("Stream reset");
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for window");
+    }
+    if (stream.reset || closed)
+      throw new IOException("Stream reset");
+    int n = (int) Math.min(Math.min(length, maxFrameSize), Math.min(connectionWindow, stream.sendWindow));
+    connectionWindow -= n;
+    stream.sendWindow -= n;
+    return n;
+  }
+
+  /**
+   * Encodes and writes a header block, in CONTINUATION frames if it does not fit in one frame.
+   * The caller holds writeLock.
+   */
+  private void headerBlock(int streamId, List<Hpack.Field> fields, boolean endStream) throws IOException {
+    byte[] block = encoder.encode(fields);
+    int frameSize;
+    synchronized (this) {
+      frameSize = maxFrameSize;
+    }
+    int offset = 0;
+    int type = HEADERS;
+    do {
+      int n = Math.min(block.length - offset, frameSize);
+      int flags = (offset + n == block.length ? END_HEADERS : 0) | (type == HEADERS && endStream ? END_STREAM : 0);
+      frame(type, flags, streamId, block, offset, n);
+      offset += n;
+      type = CONTINUATION;
+    } while (offset < block.length);
+  }
+
+  /**
+   * The client reset the stream: the handler stops sending and reading
+   */
+  private void cancel(Stream stream) {
+    stream.reset = true;
+    Body body = stream.body;
+    if (body != null)
+      body.fail(new IOException("Stream reset by the client"));
+    Response.EventSource events = stream.events;
+    if (events != null)
+      events.close();
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * We end the stream because of an error in it
+   */
+  private void reset(Stream stream, int code) throws IOException {
+    streams.remove(stream.id);
+    cancel(stream);
+    rst(stream.id, code);
+  }
+
+  private void rst(int streamId, int code) throws IOException {
+    synchronized (writeLock) {
+      frame(RST_STREAM, 0, streamId, int32(code), 0, 4);
+      out.flush();
+    }
+  }
+
+  private void sendWindowUpdate(int streamId, int increment) throws IOException {
+    synchronized (writeLock) {
+      frame(WINDOW_UPDATE, 0, streamId, int32(increment), 0, 4);
+      out.flush();
+    }
+  }
+
+  /**
+   * Ends the connection: waits a little for the streams that are still
+   * answered, sends GOAWAY and stops every stream that is left
+   */
+  private void shutdown(int error) {
+    if (error == NO_ERROR) {
+      long deadline = System.currentTimeMillis() + server.idleTimeout;
+      synchronized (this) {
+        long wait;
+        while (!streams.isEmpty() && (wait = deadline - System.currentTimeMillis()) > 0) {
+          try {
+            wait(wait);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+      }
+    }
+    try {
+      synchronized (writeLock) {
+        byte[] goAway = new byte[8];
+        System.arraycopy(int32(lastStreamId), 0, goAway, 0, 4);
+        System.arraycopy(int32(error), 0, goAway, 4, 4);
+        frame(GOAWAY, 0, 0, goAway, 0, 8);
+        out.flush();
+      }
+    } catch (IOException e) {
+      // the client is gone already
+    }
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    for (Stream stream : streams.values()) {
+      cancel(stream);
+    }
+    streams.clear();
+  }
+
+  /**
+   * Writes one frame, the caller holds writeLock
+   */
+  private void frame(int type, int flags, int streamId, byte[] bytes, int offset, int length) throws IOException {
+    byte[] header = {
+        (byte) (length >>> 16), (byte) (length >>> 8), (byte) length,
+        (byte) type, (byte) flags,
+        (byte) (streamId >>> 24), (byte) (streamId >>> 16), (byte) (streamId >>> 8), (byte) streamId
+    };
+    out.write(header);
+    out.write(bytes, offset, length);
+  }
+
+  private static void setting(byte[] settings, int offset, int id, int value) {
+    settings[offset] = (byte) (id >>> 8);
+    settings[offset + 1] = (byte) id;
+    System.arraycopy(int32(value), 0, settings, offset + 2, 4);
+  }
+
+  private static byte[] int32(int value) {
+    return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+  }
+
+  private static int int32(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+        | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+  }
+}
@@ -0,0 +1,325 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Pull parser for JSON that reads the UTF-8 bytes of a stream once, front to
+ * back. The caller asks for one token after the other and only turns the values
+ * it needs into Strings, everything else is skipped without being copied. So
+ * memory use does not grow with the size of the document, only with its
+ * nesting depth.
+ *
+ * Usage:
+ *   JsonPullParser parser = new JsonPullParser(in);
+ *   if (parser.next() == Token.BEGIN_ARRAY)
+ *     while (parser.next() == Token.BEGIN_OBJECT)
+ *       while (parser.next() == Token.NAME)
+ *         if (parser.text().equals("id")) ... else parser.skipValue();
+ *
+ * Commas and colons are checked loosely, the parser is meant for reading
+ * documents from a server, not for validating them.
+ */
+class JsonPullParser {
+  enum Token {
+    BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY,
+    // key of a member of an object, the next token is its value
+    NAME,
+    STRING, NUMBER, TRUE, FALSE, NULL,
+    // end of the input
+    END
+  }
+
+  /**
+   * Thrown when the input is not JSON
+   */
+  static class MalformedJsonException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    MalformedJsonException(String message) {
+      super(message);
+    }
+  }
+
+  private final InputStream in;
+  private final byte[] buffer = new byte[8192];
+  private int position;
+  private int limit;
+  private long offset; // of buffer[0] in the input, for error messages
+
+  // true for every open object, false for every open array
+  private boolean[] objects = new boolean[32];
+  private int depth;
+  private boolean afterName;
+
+  // text of the last NAME, STRING or NUMBER token
+  private final StringBuilder text = new StringBuilder();
+  // strings and numbers are not copied into text while a value is skipped
+  private boolean skipping;
+
+  JsonPullParser(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * @return the next token, END when the input is used up
+   */
+  Token next() throws IOException {
+    int b = nextSignificant();
+    if (b == -1) {
+      if (depth > 0)
+        throw error("unexpected end of input");
+      return Token.END;
+    }
+    // a string in an object is a member's name unless it follows a name
+    boolean name = !afterName && depth > 0 && objects[depth - 1];
+    afterName = false;
+    switch (b) {
+      case '{':
+        push(true);
+        return Token.BEGIN_OBJECT;
+      case '[':
+        push(false);
+        return Token.BEGIN_ARRAY;
+      case '}':
+      case ']':
+        if (depth == 0 || objects[depth - 1] != (b == '}'))
+          throw error("unexpected '" + (char) b + "'");
+        depth--;
+        return b == '}' ? Token.END_OBJECT : Token.END_ARRAY;
+      case '"':
+        readString();
+        if (name) {
+          afterName = true;
+          return Token.NAME;
+        }
+        return Token.STRING;
+      case 't':
+        literal("rue");
+        return Token.TRUE;
+      case 'f':
+        literal("alse");
+        return Token.FALSE;
+      case 'n':
+        literal("ull");
+        return Token.NULL;
+      default:
+        if (b == '-' || (b >= '0' && b <= '9')) {
+          readNumber(b);
+          return Token.NUMBER;
+        }
+        throw error("unexpected '" + (char) b + "'");
+    }
+  }
+
+  /**
+   * @return the text of the current NAME, STRING or NUMBER token
+   */
+  String text() {
+    return text.toString();
+  }
+
+  /**
+   * Skips the value that starts with the next token, e.g. the value of a NAME
+   * that is not needed
+   */
+  void skipValue() throws IOException {
+    skip(next());
+  }
+
+  /**
+   * Skips the rest of the value that started with token, for objects and
+   * arrays everything up to their end
+   */
+  void skip(Token token) throws IOException {
+    if (token != Token.BEGIN_OBJECT && token != Token.BEGIN_ARRAY)
+      return;
+    int target = depth - 1;
+    skipping = true;
+    try {
+      while (depth > target) {
+        if (next() == Token.END)
+          throw error("unexpected end of input");
+      }
+    } finally {
+      skipping = false;
+    }
+  }
+
+  /**
+   * Reads the value that starts with the next token
+   * @return its text for strings, numbers and booleans, null for null, objects and arrays (which are skipped)
+   */
+  String nextValue() throws IOException {
+    Token token = next();
+    switch (token) {
+      case STRING:
+      case NUMBER:
+        return text();
+      case TRUE:
+        return "true";
+      case FALSE:
+        return "false";
+      default:
+        skip(token);
+        return null;
+    }
+  }
+
+  private void push(boolean object) {
+    if (depth == objects.length) {
+      boolean[] larger = new boolean[depth * 2];
+      System.arraycopy(objects, 0, larger, 0, depth);
+      objects = larger;
+    }
+    objects[depth++] = object;
+  }
+
+  /**
+   * @return the next byte that is not white space or a separator, -1 at the end
+   */
+  private int nextSignificant() throws IOException {
+    while (true) {
+      int b = read();
+      switch (b) {
+        case ' ':
+        case '\t':
+        case '\n':
+        case '\r':
+        case ',':
+          break;
+        case ':':
+          if (!afterName)
+            throw error("unexpected ':'");
+          break;
+        default:
+          return b;
+      }
+    }
+  }
+
+  /**
+   * Reads a string after its opening quote, decoding escapes and UTF-8
+   */
+  private void readString() throws IOException {
+    text.setLength(0);
+    while (true) {
+      int b = read();
+      if (b == '"')
+        return;
+      if (b == -1)
+        throw error("unterminated string");
+      if (b == '\\') {
+        b = read();
+        char c;
+        switch (b) {
+          case '"': c = '"'; break;
+          case '\\': c = '\\'; break;
+          case '/': c = '/'; break;
+          case 'b': c = '\b'; break;
+          case 'f': c = '\f'; break;
+          case 'n': c = '\n'; break;
+          case 'r': c = '\r'; break;
+          case 't': c = '\t'; break;
+          case 'u': c = (char) hex4(); break;
+          default: throw error("invalid escape");
+        }
+        if (!skipping)
+          text.append(c);
+      } else if (b < 0x80) {
+        if (!skipping)
+          text.append((char) b);
+      } else {
+        int codePoint = utf8(b);
+        if (!skipping)
+          text.appendCodePoint(codePoint);
+      }
+    }
+  }
+
+  /**
+   * @param lead first byte of a multi byte UTF-8 sequence
+   * @return the decoded code point, U+FFFD for invalid sequences
+   */
+  private int utf8(int lead) throws IOException {
+    int count;
+    int codePoint;
+    if ((lead & 0xE0) == 0xC0) {
+      count = 1;
+      codePoint = lead & 0x1F;
+    } else if ((lead & 0xF0) == 0xE0) {
+      count = 2;
+      codePoint = lead & 0x0F;
+    } else if ((lead & 0xF8) == 0xF0) {
+      count = 3;
+      codePoint = lead & 0x07;
+    } else {
+      return 0xFFFD;
+    }
+    for (int i = 0; i < count; i++) {
+      int b = read();
+      if ((b & 0xC0) != 0x80)
+        throw error("invalid UTF-8");
+      codePoint = (codePoint << 6) | (b & 0x3F);
+    }
+    return codePoint <= Character.MAX_CODE_POINT ? codePoint : 0xFFFD;
+  }
+
+  private int hex4() throws IOException {
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      int digit = Character.digit(read(), 16);
+      if (digit < 0)
+        throw error("invalid \\u escape");
+      value = value * 16 + digit;
+    }
+    return value;
+  }
+
+  private void readNumber(int first) throws IOException {
+    text.setLength(0);
+    if (!skipping)
+      text.append((char) first);
+    while (true) {
+      int b = peek();
+      if ((b >= '0' && b <= '9') || b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-') {
+        position++;
+        if (!skipping)
+          text.append((char) b);
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void literal(String rest) throws IOException {
+    for (int i = 0; i < rest.length(); i++) {
+      if (read() != rest.charAt(i))
+        throw error("invalid literal");
+    }
+  }
+
+  private int read() throws IOException {
+    int b = peek();
+    if (b != -1)
+      position++;
+    return b;
+  }
+
+  private int peek() throws IOException {
+    if (position == limit) {
+      offset += limit;
+      limit = in.read(buffer, 0, buffer.length);
+      position = 0;
+      if (limit <= 0) {
+        limit = 0;
+        return -1;
+      }
+    }
+    return buffer[position] & 0xFF;
+  }
+
+  private MalformedJsonException error(String message) {
+    return new MalformedJsonException(message + " at byte " + (offset + position));
+  }
+}
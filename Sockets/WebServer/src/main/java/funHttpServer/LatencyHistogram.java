@@ -0,0 +1,104 @@
+package funHttpServer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how often each latency occurred, in microseconds, the same way
+ * HdrHistogram does: values below 64 have a bucket each, above that every power
+ * of two is split into 32 buckets. A percentile is therefore off by at most 1/32
+ * (about 3%) of its value, whether it is 50 microseconds or 50 seconds, and the
+ * histogram always takes the same 1056 counters.
+ *
+ * Recording is an increment of one counter, no lock is taken, so many threads
+ * can record at the same time. Reading takes a snapshot that may miss values
+ * recorded while it is taken, which is fine for monitoring.
+ */
+class LatencyHistogram {
+  private static final int SUB_BUCKETS = 32;
+  // 2^37 microseconds are about 38 hours, anything longer counts as that
+  private static final int MAX_BITS = 37;
+  private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+  static final int BUCKETS = (MAX_BITS - 6 + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @param micros the latency in microseconds
+   */
+  void record(long micros) {
+    long value = Math.max(0, Math.min(micros, MAX_VALUE));
+    counts.incrementAndGet(index(value));
+    count.increment();
+    sum.add(value);
+    if (value > max.get())
+      max.accumulateAndGet(value, Math::max);
+  }
+
+  /**
+   * @return number of the bucket that counts the value
+   */
+  static int index(long value) {
+    // how far the value has to be shifted to be below 64
+    int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - 6);
+    return shift * SUB_BUCKETS + (int) (value >>> shift);
+  }
+
+  /**
+   * @return the largest value that is counted in the bucket
+   */
+  static long highestValue(int index) {
+    if (index < 2 * SUB_BUCKETS)
+      return index;
+    int shift = index / SUB_BUCKETS - 1;
+    long sub = index - shift * SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  long count() {
+    return count.sum();
+  }
+
+  /**
+   * @return sum of all recorded values in microseconds
+   */
+  long sum() {
+    return sum.sum();
+  }
+
+  long max() {
+    return max.get();
+  }
+
+  /**
+   * @param quantiles e.g. {0.5, 0.99}
+   * @return the value in microseconds below which that share of the values are, 0 if nothing was recorded
+   */
+  long[] percentiles(double... quantiles) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    long[] values = new long[quantiles.length];
+    if (total == 0)
+      return values;
+    for (int q = 0; q < quantiles.length; q++) {
+      long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += snapshot[i];
+        if (seen >= rank) {
+          values[q] = Math.min(highestValue(i), max());
+          break;
+        }
+      }
+    }
+    return values;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+Small load generator for the fun web server. It runs the same request with an
+increasing number of concurrent clients and prints the requests per second for
+every level, so you can see whether the server scales with the number of clients
+or serves them one at a time. With keepAlive=true every client reuses its
+connection instead of opening a new one for every request.
+
+Usage: LoadGenerator [host] [port] [path] [secondsPerLevel] [levels] [keepAlive]
+  e.g. LoadGenerator localhost 9000 /multiply?num1=3&num2=4 5 1,2,4,8,16,32 true
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+class LoadGenerator {
+  public static void main(String args[]) throws Exception {
+    String host = args.length > 0 ? args[0] : "localhost";
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 9000;
+    String path = args.length > 2 ? args[2] : "/multiply?num1=3&num2=4";
+    int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+    String levels = args.length > 4 ? args[4] : "1,2,4,8,16,32";
+    boolean keepAlive = args.length > 5 && Boolean.parseBoolean(args[5]);
+
+    System.out.println("GET " + path + " on " + host + ":" + port + ", " + seconds + "s per level"
+        + (keepAlive ? ", keep-alive" : ""));
+    System.out.println("clients\treq/s\tavg ms\terrors");
+    for (String level : levels.split(",")) {
+      runLevel(host, port, path, seconds, Integer.parseInt(level.trim()), keepAlive);
+    }
+  }
+
+  /**
+   * Starts the given number of client threads which all send requests until the
+   * time is up and prints the result for this level
+   */
+  static void runLevel(String host, int port, String path, int seconds, int clients, boolean keepAlive)
+      throws InterruptedException {
+    AtomicLong requests = new AtomicLong();
+    AtomicLong errors = new AtomicLong();
+    AtomicLong nanos = new AtomicLong();
+    long end = System.nanoTime() + seconds * 1_000_000_000L;
+    byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n"
+        + (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes();
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < clients; i++) {
+      Thread thread = new Thread(() -> {
+        while (System.nanoTime() < end) {
+          try (Socket sock = new Socket(host, port)) {
+            InputStream in = new BufferedInputStream(sock.getInputStream());
+            OutputStream out = sock.getOutputStream();
+            // without keep-alive the server closes the connection after one response
+            boolean open;
+            do {
+              long start = System.nanoTime();
+              out.write(request);
+              open = readResponse(in);
+              requests.incrementAndGet();
+              nanos.addAndGet(System.nanoTime() - start);
+            } while (keepAlive && open && System.nanoTime() < end);
+          } catch (IOException e) {
+            errors.incrementAndGet();
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    long done = requests.get();
+    double avgMs = done == 0 ? 0 : nanos.get() / 1_000_000.0 / done;
+    System.out.printf("%d\t%.0f\t%.2f\t%d%n", clients, done / (double) seconds, avgMs, errors.get());
+  }
+
+  /**
+   * Reads one response, the headers up to the empty line and then Content-Length bytes
+   * of body (or everything up to the end of the stream if there is no Content-Length)
+   * @return false if the server is going to close the connection
+   */
+  static boolean readResponse(InputStream in) throws IOException {
+    long length = -1;
+    boolean open = true;
+    StringBuilder line = new StringBuilder();
+    while (true) {
+      int c = in.read();
+      if (c == -1)
+        throw new EOFException("connection closed in the headers");
+      if (c == '\n') {
+        String header = line.toString().trim();
+        if (header.isEmpty())
+          break;
+        if (header.toLowerCase().startsWith("content-length:"))
+          length = Long.parseLong(header.substring(15).trim());
+        else if (header.equalsIgnoreCase("connection: close"))
+          open = false;
+        line.setLength(0);
+      } else {
+        line.append((char) c);
+      }
+    }
+    if (length < 0) {
+      while (in.read() != -1) {
+      }
+      open = false;
+    } else {
+      while (length > 0) {
+        long skipped = in.skip(length);
+        if (skipped <= 0) {
+          if (in.read() == -1)
+            throw new EOFException("connection closed in the body");
+          skipped = 1;
+        }
+        length -= skipped;
+      }
+    }
+    return open;
+  }
+}
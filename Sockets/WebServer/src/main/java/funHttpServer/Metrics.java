@@ -0,0 +1,172 @@
+package funHttpServer;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the fun web server for /metrics, in the Prometheus text format:
+ *
+ *   http_requests_total{route="/multiply",status="2xx"} 12
+ *   http_request_duration_seconds{route="/multiply",quantile="0.99"} 0.000431
+ *
+ * Per route (first path segment, unknown ones are counted as "other") the
+ * requests by status class and a latency histogram, for the whole server the
+ * bytes received and sent and the open connections. Everything is a LongAdder
+ * or an atomic counter, the request path never takes a lock for the metrics.
+ *
+ * The latency of a request is the time from its parsed head until its
+ * response is written, for an event stream until the stream started.
+ */
+class Metrics {
+  static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+  /**
+   * The counters of one route
+   */
+  static class RouteMetrics {
+    final LongAdder[] statuses = new LongAdder[STATUS_CLASSES.length];
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    RouteMetrics() {
+      for (int i = 0; i < statuses.length; i++) {
+        statuses[i] = new LongAdder();
+      }
+    }
+  }
+
+  private final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+  final LongAdder bytesReceived = new LongAdder();
+  final LongAdder bytesSent = new LongAdder();
+  final LongAdder connections = new LongAdder();
+  final LongAdder activeConnections = new LongAdder();
+  // requests whose head could not be parsed (400, 414, 431)
+  final LongAdder rejected = new LongAdder();
+
+  /**
+   * Counts an answered request
+   * @param route label of the route, see Router.label
+   * @param nanos time it took
+   */
+  void record(String route, int status, long nanos) {
+    RouteMetrics metrics = routes.get(route);
+    if (metrics == null)
+      metrics = routes.computeIfAbsent(route, r -> new RouteMetrics());
+    int statusClass = status / 100 - 1;
+    if (statusClass >= 0 && statusClass < STATUS_CLASSES.length)
+      metrics.statuses[statusClass].increment();
+    metrics.latency.record(nanos / 1000);
+  }
+
+  void opened() {
+    connections.increment();
+    activeConnections.increment();
+  }
+
+  void closed() {
+    activeConnections.decrement();
+  }
+
+  /**
+   * @param droppedLogLines lines the log could not keep up with
+   * @param rateLimiters the limiters by route label
+   * @param github the client of /github, for its cache statistics
+   * @return all metrics in the Prometheus text exposition format
+   */
+  String render(long droppedLogLines, Map<String, RateLimiter> rateLimiters, CachedHttpClient github) {
+    StringBuilder out = new StringBuilder(4096);
+    Map<String, RouteMetrics> sorted = new TreeMap<>(routes);
+    Map<String, RateLimiter> limiters = new TreeMap<>(rateLimiters);
+
+    type(out, "http_requests_total", "counter", "Answered requests by route and status class");
+    for (Map.Entry<String, RouteMetrics> route : sorted.entrySet()) {
+      for (int i = 0; i < STATUS_CLASSES.length; i++) {
+        long count = route.getValue().statuses[i].sum();
+        if (count > 0)
+          out.append("http_requests_total{route=\"").append(escape(route.getKey()))
+              .append("\",status=\"").append(STATUS_CLASSES[i]).append("\"} ").append(count).append('\n');
+      }
+    }
+
+    type(out, "http_request_duration_seconds", "summary", "Time from the parsed request head until the response was written");
+    for (Map.Entry<String, RouteMetrics> route : sorted.entrySet()) {
+      LatencyHistogram latency = route.getValue().latency;
+      String label = "route=\"" + escape(route.getKey()) + "\"";
+      long[] values = latency.percentiles(QUANTILES);
+      for (int i = 0; i < QUANTILES.length; i++) {
+        out.append("http_request_duration_seconds{").append(label).append(",quantile=\"").append(QUANTILES[i])
+            .append("\"} ").append(seconds(values[i])).append('\n');
+      }
+      out.append("http_request_duration_seconds_sum{").append(label).append("} ").append(seconds(latency.sum())).append('\n');
+      out.append("http_request_duration_seconds_count{").append(label).append("} ").append(latency.count()).append('\n');
+    }
+
+    type(out, "http_request_duration_seconds_max", "gauge", "Longest request since the server started");
+    for (Map.Entry<String, RouteMetrics> route : sorted.entrySet()) {
+      out.append("http_request_duration_seconds_max{route=\"").append(escape(route.getKey())).append("\"} ")
+          .append(seconds(route.getValue().latency.max())).append('\n');
+    }
+
+    type(out, "http_rate_limit_requests_total", "counter", "Requests checked against the per client quota by route and result");
+    for (Map.Entry<String, RateLimiter> limiter : limiters.entrySet()) {
+      String label = "route=\"" + escape(limiter.getKey()) + "\"";
+      out.append("http_rate_limit_requests_total{").append(label).append(",result=\"allowed\"} ")
+          .append(limiter.getValue().allowed.sum()).append('\n');
+      out.append("http_rate_limit_requests_total{").append(label).append(",result=\"limited\"} ")
+          .append(limiter.getValue().limited.sum()).append('\n');
+    }
+    type(out, "http_rate_limit_clients", "gauge", "Clients with a token bucket by route");
+    for (Map.Entry<String, RateLimiter> limiter : limiters.entrySet()) {
+      out.append("http_rate_limit_clients{route=\"").append(escape(limiter.getKey())).append("\"} ")
+          .append(limiter.getValue().clients()).append('\n');
+    }
+    type(out, "http_rate_limit_evicted_total", "counter", "Token buckets removed after the client stopped sending");
+    for (Map.Entry<String, RateLimiter> limiter : limiters.entrySet()) {
+      out.append("http_rate_limit_evicted_total{route=\"").append(escape(limiter.getKey())).append("\"} ")
+          .append(limiter.getValue().evicted.sum()).append('\n');
+    }
+    type(out, "http_rate_limit_quota", "gauge", "Requests per second and burst every client may send by route");
+    for (Map.Entry<String, RateLimiter> limiter : limiters.entrySet()) {
+      RateLimiter.Quota quota = limiter.getValue().quota;
+      String label = "route=\"" + escape(limiter.getKey()) + "\"";
+      out.append("http_rate_limit_quota{").append(label).append(",kind=\"rate\"} ").append(quota.rate).append('\n');
+      out.append("http_rate_limit_quota{").append(label).append(",kind=\"burst\"} ").append(quota.burst).append('\n');
+    }
+
+    sample(out, "http_received_bytes_total", "counter", "Bytes of requests (heads and bodies) received", bytesReceived.sum());
+    sample(out, "http_sent_bytes_total", "counter", "Bytes of responses sent", bytesSent.sum());
+    sample(out, "http_connections_total", "counter", "Accepted connections", connections.sum());
+    sample(out, "http_connections_active", "gauge", "Open connections", activeConnections.sum());
+    sample(out, "http_rejected_requests_total", "counter", "Requests whose head could not be parsed", rejected.sum());
+    sample(out, "github_upstream_calls_total", "counter", "Requests /github sent to the GitHub API", github.upstreamCalls.get());
+    sample(out, "github_cache_hits_total", "counter", "/github requests answered from the cache", github.cacheHits.get());
+    sample(out, "github_coalesced_total", "counter", "/github requests that waited for a fetch already on its way", github.coalesced.get());
+    sample(out, "github_revalidated_total", "counter", "Cached /github responses the GitHub API confirmed as unchanged", github.revalidated.get());
+    sample(out, "log_dropped_lines_total", "counter", "Log lines dropped because the console was too slow", droppedLogLines);
+    return out.toString();
+  }
+
+  private static void type(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder out, String name, String type, String help, long value) {
+    type(out, name, type, help);
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static String seconds(long micros) {
+    return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+  }
+
+  /**
+   * Escapes a label value, routes come from the request path
+   */
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
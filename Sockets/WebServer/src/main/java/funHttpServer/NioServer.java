@@ -0,0 +1,809 @@
+package funHttpServer;
+
+import httpCommon.HttpParser;
+import httpCommon.ThreadPerTask;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking engine for the fun web server. Instead of one thread per
+ * connection a few event loop threads watch all connections with a Selector.
+ * A connection only costs a thread while its request is being answered, so an
+ * idle keep-alive connection is just a socket and a small state object.
+ *
+ * Request heads are read into one reusable buffer per event loop and parsed
+ * incrementally by the connection's HttpParser, bytes are only copied into a connection's own buffer while a
+ * request is incomplete. The endpoints are the same as for the blocking engine
+ * (WebServer.createResponse), they run on the worker executor so a slow endpoint
+ * like /github never blocks an event loop. File bodies are sent with non-blocking
+ * FileChannel.transferTo calls whenever the socket can take more data.
+ *
+ * Streamed response bodies (e.g. /fibonacci) are written by the handler on its
+ * worker thread into a StreamOutput that hands the pieces to the loop, the
+ * writer waits while too much of it is not sent yet.
+ *
+ * Request bodies (POST) are decoded on the event loop as they arrive and put
+ * into a RequestBody.Pipe the handler reads from. While the pipe is full the
+ * loop stops reading from that connection, so an upload only goes as fast as
+ * its handler takes it.
+ *
+ * Event streams (/story/stream) do not need a thread at all: the next piece is
+ * taken from the source when the previous one is written and the source says
+ * there is something new, so thousands of subscribers are just connections.
+ */
+class NioServer implements Runnable {
+  /**
+   * Body bytes that may wait in a connection's pipe for the handler
+   */
+  static final int PIPE_CAPACITY = 256 * 1024;
+
+  /**
+   * Bytes of a streamed response body that may wait to be sent before the writer has to wait
+   */
+  static final int STREAM_BUFFER = 256 * 1024;
+
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  private final WebServer endpoints;
+  private final EventLoop[] loops;
+  private final ExecutorService workers = ThreadPerTask.newExecutor();
+  private final AtomicInteger connections = new AtomicInteger();
+  private ServerSocketChannel server;
+  private SelectionKey acceptKey;
+  private int nextLoop = 0;
+
+  /**
+   * Uses one event loop per two cores
+   * @param endpoints server providing the settings and the endpoints
+   */
+  NioServer(WebServer endpoints) {
+    this(endpoints, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+  }
+
+  /**
+   * @param endpoints server providing the settings and the endpoints
+   * @param loopCount number of event loop threads
+   */
+  NioServer(WebServer endpoints, int loopCount) {
+    this.endpoints = endpoints;
+    this.loops = new EventLoop[loopCount];
+  }
+
+  /**
+   * Opens the server channel and runs the first event loop (which also accepts
+   * connections) on the calling thread
+   */
+  public void run() {
+    try {
+      for (int i = 0; i < loops.length; i++) {
+        loops[i] = new EventLoop();
+      }
+      server = ServerSocketChannel.open();
+      server.bind(new InetSocketAddress(endpoints.port), endpoints.backlog);
+      server.configureBlocking(false);
+      acceptKey = server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+      for (int i = 1; i < loops.length; i++) {
+        new Thread(loops[i], "nio-loop-" + i).start();
+      }
+      System.out.println("Listening on port " + endpoints.port + " with " + loops.length
+          + " event loop(s) (max " + endpoints.maxConnections + " connections, backlog "
+          + endpoints.backlog + ")");
+      loops[0].run();
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      workers.shutdown();
+    }
+  }
+
+  /**
+   * Accepts all waiting connections and spreads them over the event loops.
+   * Stops accepting while the connection limit is reached, the OS backlog
+   * queues new clients until a connection is closed.
+   */
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while (connections.get() < endpoints.maxConnections && (channel = server.accept()) != null) {
+      connections.incrementAndGet();
+      endpoints.metrics.opened();
+      SocketChannel accepted = channel;
+      EventLoop loop = loops[nextLoop++ % loops.length];
+      loop.execute(() -> loop.register(accepted));
+    }
+    if (connections.get() >= endpoints.maxConnections)
+      acceptKey.interestOps(0);
+  }
+
+  /**
+   * Called whenever a connection is closed
+   */
+  private void closed() {
+    endpoints.metrics.closed();
+    if (connections.getAndDecrement() >= endpoints.maxConnections) {
+      // we stopped accepting, start again on the accepting loop
+      loops[0].execute(() -> {
+        if (acceptKey.isValid() && connections.get() < endpoints.maxConnections)
+          acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+      });
+    }
+  }
+
+  private static long now() {
+    return System.nanoTime() / 1_000_000;
+  }
+
+  /**
+   * One selector and the thread running it
+   */
+  class EventLoop implements Runnable {
+    final Selector selector;
+    // all reads of this loop go through this buffer
+    final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    // work handed to this loop from other threads, e.g. finished responses
+    final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // set while a wakeup is on its way, so a burst of tasks wakes the selector once
+    final AtomicBoolean wakeupPending = new AtomicBoolean();
+    long lastSweep = now();
+
+    EventLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    /**
+     * Runs the task on this loop's thread
+     */
+    void execute(Runnable task) {
+      tasks.add(task);
+      if (wakeupPending.compareAndSet(false, true))
+        selector.wakeup();
+    }
+
+    void register(SocketChannel channel) {
+      try {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(channel, this);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+      } catch (IOException e) {
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+        }
+        closed();
+      }
+    }
+
+    public void run() {
+      while (true) {
+        try {
+          selector.select(1000);
+          // cleared before the tasks are taken, a task added after this wakes us again
+          wakeupPending.set(false);
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            task.run();
+          }
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid())
+              continue;
+            if (key.isAcceptable()) {
+              accept();
+              continue;
+            }
+            Connection connection = (Connection) key.attachment();
+            try {
+              if (key.isWritable())
+                connection.write();
+              if (key.isValid() && key.isReadable())
+                connection.read();
+            } catch (IOException e) {
+              connection.close();
+            }
+          }
+
+          if (now() - lastSweep >= 1000)
+            closeIdle();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+
+    /**
+     * Closes keep-alive connections that waited too long for their next request
+     */
+    void closeIdle() {
+      lastSweep = now();
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof Connection) {
+          Connection connection = (Connection) key.attachment();
+          if (!connection.busy && lastSweep - connection.lastActive > endpoints.idleTimeout)
+            connection.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * State of one client connection. Only touched by its event loop's thread.
+   */
+  class Connection {
+    final SocketChannel channel;
+    final EventLoop loop;
+    // the address of the client, for the rate limits
+    final InetAddress client;
+    SelectionKey key;
+    // unparsed bytes, only held while a request is incomplete or waits behind the current one
+    ByteBuffer pending;
+    // remembers how far the head in the read buffer or pending was parsed
+    final HttpParser parser = new HttpParser();
+    final Queue<ByteBuffer> writes = new ArrayDeque<>();
+    // file body of the current response, sent after the buffers in writes
+    FileChannel file;
+    long filePosition;
+    long fileRemaining;
+    // source of an event stream body, sent after the buffers in writes
+    Response.EventSource events;
+    // the source will tell us when it has something new
+    boolean waiting;
+    // a request is being answered, further (pipelined) requests wait
+    boolean busy;
+    // the request whose response is being written and its status, for the metrics
+    Request current;
+    int currentStatus;
+    // set while the body of the current request is still arriving
+    BodyDecoder decoder;
+    RequestBody.Pipe pipe;
+    // set while a worker writes the streamed body of the response
+    StreamOutput streamOut;
+    boolean closeAfterWrite;
+    int served;
+    long lastActive = now();
+
+    Connection(SocketChannel channel, EventLoop loop) {
+      this.channel = channel;
+      this.loop = loop;
+      client = channel.socket().getInetAddress();
+    }
+
+    void read() throws IOException {
+      ByteBuffer buffer = loop.readBuffer;
+      buffer.clear();
+      int read = channel.read(buffer);
+      if (read == -1) {
+        close();
+        return;
+      }
+      lastActive = now();
+      buffer.flip();
+
+      if (pending == null) {
+        // common case: the whole request arrived in one read, nothing is copied
+        process(buffer);
+        if (buffer.hasRemaining()) {
+          pending = ByteBuffer.allocate(Math.max(buffer.remaining(), 1024));
+          pending.put(buffer).flip();
+        }
+      } else {
+        pending.compact();
+        if (pending.remaining() < buffer.remaining()) {
+          ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + buffer.remaining()));
+          pending.flip();
+          bigger.put(pending);
+          pending = bigger;
+        }
+        pending.put(buffer).flip();
+        processPending();
+      }
+    }
+
+    void processPending() {
+      process(pending);
+      if (!pending.hasRemaining())
+        pending = null; // idle connections hold no buffer
+    }
+
+    /**
+     * Parses as many complete requests from the buffer as possible. Stops after
+     * dispatching one, the next one is parsed when its response is written.
+     */
+    void process(ByteBuffer buffer) {
+      if (pipe != null)
+        feed(buffer);
+      if (busy)
+        return;
+      Request request;
+      try {
+        if (!parser.parse(buffer))
+          return; // wait for the rest of the head
+        request = Request.from(parser);
+        request.client = client;
+      } catch (HttpParser.HttpParseException e) {
+        endpoints.metrics.rejected.increment();
+        busy = true;
+        buffer.position(buffer.limit());
+        send(Response.html(e.status, "<html>" + e.getMessage() + "</html>").header("Connection", "close").toBytes(), false);
+        return;
+      }
+      dispatch(request);
+      if (pipe != null)
+        feed(buffer);
+    }
+
+    /**
+     * Decodes body bytes of the current request from the buffer into its pipe,
+     * as many as the pipe takes
+     */
+    void feed(ByteBuffer buffer) {
+      try {
+        while (buffer.hasRemaining() && !decoder.done() && !pipe.full()) {
+          byte[] chunk = new byte[Math.min(buffer.remaining(), PIPE_CAPACITY / 4)];
+          int n = decoder.decode(buffer, chunk, 0, chunk.length);
+          if (n > 0)
+            pipe.put(n == chunk.length ? chunk : Arrays.copyOf(chunk, n));
+        }
+      } catch (HttpParser.HttpParseException e) {
+        // the handler gets the error, the connection is closed after its response
+        pipe.fail(e);
+        pipe = null;
+        decoder = null;
+        buffer.position(buffer.limit());
+        key.interestOps(0);
+        return;
+      }
+      if (decoder.done()) {
+        pipe.finish();
+        pipe = null;
+        decoder = null;
+        // the rest waits until the response is written
+        key.interestOps(0);
+      } else if (pipe.full()) {
+        key.interestOps(0); // continue when the handler took some
+      }
+    }
+
+    /**
+     * Called on the loop when the handler emptied the pipe enough to take more
+     */
+    void drained() {
+      if (pipe == null || !channel.isOpen())
+        return;
+      if (pending != null)
+        processPending();
+      if (pipe != null && !pipe.full())
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Answers the request on a worker thread and hands the response back to the loop
+     */
+    void dispatch(Request request) {
+      busy = true;
+      served++;
+      int count = served;
+      boolean keepAlive = request.keepAlive() && count < endpoints.maxRequests;
+      // no more reading until this request is answered, the OS buffers pipelined requests
+      key.interestOps(0);
+      if (request.bodyDecoder != null) {
+        // except for its body
+        decoder = request.bodyDecoder;
+        pipe = new RequestBody.Pipe(PIPE_CAPACITY, endpoints.idleTimeout, () -> loop.execute(this::drained));
+        request.body = pipe;
+        key.interestOps(SelectionKey.OP_READ);
+        if (request.expectsContinue()) {
+          try {
+            // a few bytes into an empty socket buffer, they always fit
+            channel.write(ByteBuffer.wrap(Response.CONTINUE));
+          } catch (IOException e) {
+            close();
+            return;
+          }
+        }
+      }
+      workers.execute(() -> {
+        Response response;
+        try {
+          response = endpoints.createResponse(request);
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+          response = Response.html(500, "<html>ERROR: " + e.getMessage() + "</html>");
+        }
+        if (response.events != null) {
+          // the stream only ends with the connection
+          endpoints.connectionHeaders(response, false, count);
+          endpoints.completed(request, response.status);
+          byte[] head = response.head();
+          Response.EventSource source = response.events;
+          loop.execute(() -> {
+            starting(null, 0, false);
+            stream(head, source);
+          });
+          return;
+        }
+        // the next request starts after the body, if it did not all arrive yet we will not wait for it
+        boolean open = keepAlive && (request.body == null || request.body.complete());
+        endpoints.connectionHeaders(response, open, count);
+        if (response.stream != null) {
+          writeStream(request, response, open);
+          return;
+        }
+        byte[] bytes;
+        int status = response.status;
+        FileChannel fileChannel = null;
+        try {
+          if (response.file != null)
+            fileChannel = FileChannel.open(response.file);
+          bytes = response.file != null ? response.head() : response.toBytes();
+        } catch (IOException | RuntimeException e) {
+          e.printStackTrace();
+          bytes = Response.html(500, "<html>ERROR: " + e.getMessage() + "</html>").header("Connection", "close").toBytes();
+          status = 500;
+          fileChannel = null;
+        }
+        byte[] head = bytes;
+        FileChannel body = fileChannel;
+        long offset = response.fileOffset;
+        long length = response.fileLength;
+        boolean reuse = open && (body != null || response.file == null);
+        int sent = status;
+        loop.execute(() -> send(head, body, offset, length, starting(request, sent, reuse)));
+      });
+    }
+
+    /**
+     * Writes a streamed body on this worker thread, the pieces are sent by the
+     * loop as they come, so a large body is never held in memory
+     */
+    void writeStream(Request request, Response response, boolean keepAlive) {
+      StreamOutput out = new StreamOutput(this);
+      loop.execute(() -> {
+        closeAfterWrite = !starting(request, response.status, keepAlive);
+        if (channel.isOpen())
+          streamOut = out;
+        else
+          out.cancel();
+      });
+      OutputStream buffered = new BufferedOutputStream(out, 16 * 1024);
+      try {
+        buffered.write(response.head());
+        response.writeStream(buffered);
+        buffered.flush();
+      } catch (IOException | RuntimeException e) {
+        // the head is sent already, all we can do is close the connection
+        if (!out.cancelled)
+          e.printStackTrace();
+        loop.execute(this::close);
+        return;
+      }
+      loop.execute(this::streamEnd);
+    }
+
+    /**
+     * Called on the loop before a response is sent
+     * @param request the request it answers, counted when it is written
+     * @return whether the connection can stay open after it
+     */
+    boolean starting(Request request, int status, boolean keepAlive) {
+      current = request;
+      currentStatus = status;
+      if (pipe != null) {
+        // answered before the body arrived, stop reading it
+        pipe.fail(new IOException("Response was sent before the request body arrived"));
+        pipe = null;
+        decoder = null;
+        pending = null;
+        keepAlive = false;
+      }
+      return keepAlive;
+    }
+
+    /**
+     * Called on the loop with the next piece of a streamed body
+     */
+    void queue(ByteBuffer buffer) {
+      if (!channel.isOpen())
+        return;
+      writes.add(buffer);
+      try {
+        write();
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    /**
+     * Called on the loop when the streamed body is complete
+     */
+    void streamEnd() {
+      streamOut = null;
+      if (!channel.isOpen())
+        return;
+      try {
+        write();
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    void send(byte[] bytes, boolean keepAlive) {
+      send(bytes, null, 0, 0, keepAlive);
+    }
+
+    /**
+     * Queues the response and writes as much of it as the socket takes right now
+     * @param file file body sent after the bytes or null
+     */
+    void send(byte[] bytes, FileChannel file, long position, long count, boolean keepAlive) {
+      if (!key.isValid()) {
+        closeFile(file);
+        return;
+      }
+      writes.add(ByteBuffer.wrap(bytes));
+      this.file = file;
+      filePosition = position;
+      fileRemaining = count;
+      closeAfterWrite = !keepAlive;
+      try {
+        write();
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    /**
+     * Sends the head of an event stream and then the pieces of the source
+     */
+    void stream(byte[] head, Response.EventSource source) {
+      if (!key.isValid()) {
+        source.close();
+        return;
+      }
+      writes.add(ByteBuffer.wrap(head));
+      events = source;
+      closeAfterWrite = true;
+      try {
+        write();
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    /**
+     * Queues pieces of the event stream as long as the socket takes them. A
+     * client that reads slowly is only asked for the next piece when the last
+     * one is written, so it never has more than one piece queued.
+     */
+    void pumpEvents() throws IOException {
+      while (true) {
+        byte[] bytes = events.poll();
+        if (bytes == null) {
+          events.close();
+          events = null;
+          writes.add(ByteBuffer.wrap(LAST_CHUNK));
+          write();
+          return;
+        }
+        if (bytes.length == 0) {
+          if (!waiting) {
+            waiting = true;
+            events.onAvailable(() -> loop.execute(this::resume));
+          }
+          return;
+        }
+        writes.add(ByteBuffer.wrap((Integer.toHexString(bytes.length) + "\r\n").getBytes(StandardCharsets.US_ASCII)));
+        writes.add(ByteBuffer.wrap(bytes));
+        writes.add(ByteBuffer.wrap(CRLF));
+        if (!flush())
+          return;
+      }
+    }
+
+    /**
+     * Called on the loop when the event source may have something new
+     */
+    void resume() {
+      waiting = false;
+      if (events == null || !channel.isOpen() || !writes.isEmpty())
+        return; // a pending write continues the stream when it is done
+      try {
+        pumpEvents();
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    /**
+     * Writes the queued buffers
+     * @return true if all were written, false if the socket is full (we continue on OP_WRITE)
+     */
+    boolean flush() throws IOException {
+      while (!writes.isEmpty()) {
+        long written;
+        if (writes.size() == 1)
+          written = channel.write(writes.peek());
+        else
+          written = channel.write(writes.toArray(new ByteBuffer[0])); // one system call for all of them
+        endpoints.metrics.bytesSent.add(written);
+        while (!writes.isEmpty() && !writes.peek().hasRemaining()) {
+          ByteBuffer done = writes.poll();
+          if (streamOut != null)
+            streamOut.sent(done.capacity());
+        }
+        if (!writes.isEmpty()) {
+          // socket buffer is full, continue when the selector says we can write
+          key.interestOps(SelectionKey.OP_WRITE);
+          return false;
+        }
+      }
+      // nothing to write, and we do not read while a response is sent
+      key.interestOps(0);
+      return true;
+    }
+
+    void write() throws IOException {
+      if (!flush())
+        return;
+      if (streamOut != null)
+        return; // the worker sends more
+
+      if (events != null) {
+        pumpEvents();
+        return;
+      }
+      while (file != null) {
+        long sent = file.transferTo(filePosition, fileRemaining, channel);
+        endpoints.metrics.bytesSent.add(sent);
+        filePosition += sent;
+        fileRemaining -= sent;
+        if (fileRemaining <= 0) {
+          closeFile(file);
+          file = null;
+        } else if (sent == 0) {
+          if (filePosition >= file.size())
+            throw new IOException("file is shorter than expected");
+          // socket buffer is full
+          key.interestOps(SelectionKey.OP_WRITE);
+          return;
+        }
+      }
+      if (current != null) {
+        endpoints.completed(current, currentStatus);
+        current = null;
+      }
+      if (closeAfterWrite) {
+        close();
+        return;
+      }
+      busy = false;
+      lastActive = now();
+      if (pending != null)
+        processPending();
+      if (!busy)
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    void close() {
+      if (!channel.isOpen())
+        return;
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+      }
+      closeFile(file);
+      file = null;
+      if (pipe != null) {
+        pipe.fail(new EOFException("Connection closed in the middle of the request body"));
+        pipe = null;
+      }
+      if (streamOut != null) {
+        streamOut.cancel();
+        streamOut = null;
+      }
+      if (events != null) {
+        events.close();
+        events = null;
+      }
+      closed();
+    }
+  }
+
+  private static void closeFile(FileChannel file) {
+    if (file == null)
+      return;
+    try {
+      file.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  /**
+   * Streamed body of a response, written on the handler's worker thread. Every
+   * write is handed to the connection's event loop; while more than
+   * STREAM_BUFFER bytes are not sent yet the writer waits, so a slow client
+   * slows down the writer instead of filling the heap.
+   */
+  class StreamOutput extends OutputStream {
+    private final Connection connection;
+    // bytes handed to the loop that are not sent yet
+    private long queued;
+    volatile boolean cancelled;
+
+    StreamOutput(Connection connection) {
+      this.connection = connection;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return;
+      ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len));
+      synchronized (this) {
+        long deadline = System.currentTimeMillis() + endpoints.idleTimeout;
+        while (queued >= STREAM_BUFFER && !cancelled) {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0)
+            throw new SocketTimeoutException("Client does not read the response");
+          try {
+            wait(wait);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending the response");
+          }
+        }
+        if (cancelled)
+          throw new IOException("Connection closed");
+        queued += len;
+      }
+      connection.loop.execute(() -> connection.queue(buffer));
+    }
+
+    /**
+     * Called on the loop when bytes were sent
+     */
+    synchronized void sent(int bytes) {
+      queued -= bytes;
+      notifyAll();
+    }
+
+    /**
+     * Called on the loop when the connection is closed, the writer stops with an IOException
+     */
+    synchronized void cancel() {
+      cancelled = true;
+      notifyAll();
+    }
+  }
+}
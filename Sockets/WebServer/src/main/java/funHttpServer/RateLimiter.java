@@ -0,0 +1,169 @@
+package funHttpServer;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A token bucket per client address for one route: a client may send burst
+ * requests at once and then rate requests per second, more get a 429 until
+ * the bucket has refilled.
+ *
+ * A bucket is a single AtomicLong, the time at which it will be full again
+ * (the "generic cell rate algorithm" form of a token bucket): taking a token
+ * moves that time one interval (1 / rate) into the future, a request is
+ * allowed if the time stays within burst intervals from now. That is one
+ * compare-and-set per request and no lock, also when many connections of one
+ * client come in at the same time.
+ *
+ * The buckets are spread over STRIPES maps by address, so clients of
+ * different stripes never touch the same map. A bucket that is full again
+ * knows nothing a new one would not, so buckets full for longer than
+ * idleMillis are removed: whenever a stripe gets a new client it first sweeps
+ * itself, at most once per idleMillis. Only clients that are actually being
+ * limited stay in memory.
+ */
+class RateLimiter {
+  /**
+   * Requests per second and how many of them may come at once
+   */
+  static class Quota {
+    final double rate;
+    final int burst;
+
+    Quota(double rate, int burst) {
+      if (!(rate > 0) || burst < 1)
+        throw new IllegalArgumentException("rate and burst have to be positive");
+      this.rate = rate;
+      this.burst = burst;
+    }
+
+    /**
+     * @param value "rate/burst", e.g. "2/10" for two requests per second and at most ten at once, or "off"
+     * @return the quota or null for "off"
+     */
+    static Quota parse(String value) {
+      if (value.trim().equalsIgnoreCase("off"))
+        return null;
+      String[] parts = value.split("/");
+      try {
+        double rate = Double.parseDouble(parts[0].trim());
+        return new Quota(rate, parts.length > 1 ? Integer.parseInt(parts[1].trim()) : (int) Math.ceil(rate));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("quota has to be rate/burst or off: " + value);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return rate + "/" + burst;
+    }
+  }
+
+  private static final int STRIPES = 16;
+  // a bucket that is being removed, taking from it looks the client up again
+  private static final long EVICTED = Long.MIN_VALUE;
+
+  private static class Stripe {
+    final ConcurrentHashMap<InetAddress, AtomicLong> buckets = new ConcurrentHashMap<>();
+    final AtomicLong nextSweep;
+
+    Stripe(long now) {
+      nextSweep = new AtomicLong(now);
+    }
+  }
+
+  final Quota quota;
+  // nanoseconds per token
+  private final long interval;
+  // how far the full time may be ahead of now
+  private final long tolerance;
+  private final long idleNanos;
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  // metrics, see Metrics.render
+  final LongAdder allowed = new LongAdder();
+  final LongAdder limited = new LongAdder();
+  final LongAdder evicted = new LongAdder();
+
+  /**
+   * @param idleMillis how long a full bucket is kept
+   */
+  RateLimiter(Quota quota, long idleMillis) {
+    this.quota = quota;
+    interval = Math.max(1, (long) (1_000_000_000 / quota.rate));
+    tolerance = interval * quota.burst;
+    idleNanos = idleMillis * 1_000_000;
+    long now = System.nanoTime();
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe(now);
+    }
+  }
+
+  /**
+   * Takes a token from the client's bucket
+   * @param now System.nanoTime()
+   * @return 0 if the request may go on, otherwise the nanoseconds until the client gets the next token
+   */
+  long acquire(InetAddress client, long now) {
+    Stripe stripe = stripes[stripe(client)];
+    while (true) {
+      AtomicLong bucket = stripe.buckets.get(client);
+      if (bucket == null) {
+        sweep(stripe, now);
+        bucket = stripe.buckets.computeIfAbsent(client, c -> new AtomicLong(now));
+      }
+      long full;
+      while ((full = bucket.get()) != EVICTED) {
+        long next = (full - now > 0 ? full : now) + interval;
+        if (next - now > tolerance) {
+          limited.increment();
+          return next - now - tolerance;
+        }
+        if (bucket.compareAndSet(full, next)) {
+          allowed.increment();
+          return 0;
+        }
+      }
+      // removed by a sweep meanwhile, a new bucket is full just like it was
+    }
+  }
+
+  /**
+   * @return the number of clients with a bucket
+   */
+  int clients() {
+    int clients = 0;
+    for (Stripe stripe : stripes) {
+      clients += stripe.buckets.size();
+    }
+    return clients;
+  }
+
+  /**
+   * Removes the buckets that have been full for idleNanos, at most once per idleNanos and stripe
+   */
+  private void sweep(Stripe stripe, long now) {
+    long due = stripe.nextSweep.get();
+    if (now - due < 0 || !stripe.nextSweep.compareAndSet(due, now + idleNanos))
+      return;
+    Iterator<Map.Entry<InetAddress, AtomicLong>> it = stripe.buckets.entrySet().iterator();
+    while (it.hasNext()) {
+      AtomicLong bucket = it.next().getValue();
+      long full = bucket.get();
+      // marked first, so a request that got the bucket before it is removed cannot use it any more
+      if (full != EVICTED && now - full > idleNanos && bucket.compareAndSet(full, EVICTED)) {
+        it.remove();
+        evicted.increment();
+      }
+    }
+  }
+
+  private static int stripe(InetAddress client) {
+    int hash = client.hashCode();
+    return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+  }
+}
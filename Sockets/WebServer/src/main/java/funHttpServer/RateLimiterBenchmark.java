@@ -0,0 +1,92 @@
+package funHttpServer;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures what the rate limiter adds to a request: RateLimiter.acquire for
+ * one client, for many clients (a map lookup that misses the caches more
+ * often) and for a client that is being limited, on one thread and on
+ * several threads that share the limiter. Every variant is warmed up first
+ * and then run for a fixed time, the table shows the average time and the
+ * bytes allocated per call on one thread (a result other than 0 is boxed,
+ * that is the benchmark, not the limiter) and the time per call of all
+ * threads together for the threaded runs. Every call reads System.nanoTime()
+ * like a request does, the first column is that alone.
+ */
+class RateLimiterBenchmark {
+  private static final int CLIENTS = 10_000;
+
+  /**
+   * Usage: RateLimiterBenchmark [millisPerMeasurement] [threads]
+   */
+  public static void main(String[] args) throws Exception {
+    long millis = 1000;
+    int threads = Runtime.getRuntime().availableProcessors();
+    try {
+      if (args.length > 0)
+        millis = Long.parseLong(args[0]);
+      if (args.length > 1)
+        threads = Integer.parseInt(args[1]);
+    } catch (NumberFormatException nfe) {
+      System.out.println("Usage: RateLimiterBenchmark [millisPerMeasurement] [threads]");
+      System.exit(1);
+    }
+
+    InetAddress[] clients = new InetAddress[CLIENTS];
+    for (int i = 0; i < CLIENTS; i++) {
+      clients[i] = InetAddress.getByAddress(new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+    }
+    // a quota nobody reaches, every call takes a token
+    RateLimiter open = new RateLimiter(new RateLimiter.Quota(1e9, 1_000_000), 60_000);
+    // every call after the first is limited
+    RateLimiter closed = new RateLimiter(new RateLimiter.Quota(0.001, 1), 60_000);
+    AtomicLong next = new AtomicLong();
+
+    System.out.println("nanoTime\t\tone client\t\t" + CLIENTS + " clients\t\tlimited\t\t\t"
+        + threads + " threads, one client\t" + threads + " threads, " + CLIENTS + " clients"
+        + "   (ns / bytes allocated per call, ns per call of all threads)");
+    String clock = ResponseTemplateBenchmark.measure(millis, System::nanoTime);
+    String one = ResponseTemplateBenchmark.measure(millis, () -> open.acquire(clients[0], System.nanoTime()));
+    String many = ResponseTemplateBenchmark.measure(millis,
+        () -> open.acquire(clients[(int) (next.getAndIncrement() % CLIENTS)], System.nanoTime()));
+    String limited = ResponseTemplateBenchmark.measure(millis, () -> closed.acquire(clients[1], System.nanoTime()));
+    String sharedOne = threaded(millis, threads, open, clients, 1);
+    String sharedMany = threaded(millis, threads, open, clients, CLIENTS);
+    System.out.println(clock + "\t\t" + one + "\t\t" + many + "\t\t" + limited + "\t\t" + sharedOne + "\t\t\t" + sharedMany);
+    System.out.println(open.allowed.sum() + " allowed, " + closed.limited.sum() + " limited");
+    System.exit(0);
+  }
+
+  /**
+   * @return average nanoseconds per call of all threads together, threads calling acquire for the first count clients
+   */
+  private static String threaded(long millis, int threads, RateLimiter limiter, InetAddress[] clients, int count)
+      throws InterruptedException {
+    long[] result = new long[1];
+    // warm up, then measure
+    for (int round = 0; round < 2; round++) {
+      AtomicLong calls = new AtomicLong();
+      long end = System.nanoTime() + millis * 1_000_000;
+      Thread[] running = new Thread[threads];
+      for (int t = 0; t < threads; t++) {
+        int first = t * 7919;
+        running[t] = new Thread(() -> {
+          long n = 0;
+          int i = first;
+          while (System.nanoTime() < end) {
+            limiter.acquire(clients[i++ % count], System.nanoTime());
+            n++;
+          }
+          calls.addAndGet(n);
+        });
+        running[t].start();
+      }
+      for (Thread thread : running) {
+        thread.join();
+      }
+      result[0] = calls.get();
+    }
+    return String.format("%.0f ns", (double) millis * 1_000_000 / result[0]);
+  }
+}
@@ -0,0 +1,125 @@
+package funHttpServer;
+
+import httpCommon.HttpParser;
+
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One parsed HTTP request: the request line and the headers.
+ * Header names are stored in lower case since they are case insensitive.
+ */
+class Request {
+  String method;
+  // as sent, e.g. "/multiply?num1=3&num2=4"
+  String target;
+  // the path without the leading "/", e.g. "multiply?num1=3&num2=4"
+  String path;
+  String version;
+  Map<String, String> headers = new HashMap<>();
+  // System.nanoTime() when the head was parsed and its size, for the metrics
+  long received;
+  int headLength;
+  // framing of the body and the body itself, set by the engine, both null if there is none
+  BodyDecoder bodyDecoder;
+  RequestBody body;
+  // address of the client, set by the engine, null if unknown
+  InetAddress client;
+
+  // the path split up by split(), e.g. for "file/www/root.html?x=1":
+  // route "file", subPath "www/root.html" and query "x=1"
+  String route;
+  String subPath;
+  String query;
+  private Map<String, String> params;
+
+  /**
+   * Builds the request from the head the parser just parsed. Several requests can
+   * be parsed one after the other from the same buffer, which is what keep-alive
+   * and pipelining need.
+   * @return new request with the request line and the headers
+   * @throws HttpParser.HttpParseException if the body cannot be taken (e.g. 413 if it is too large)
+   */
+  static Request from(HttpParser parser) throws HttpParser.HttpParseException {
+    Request request = new Request();
+    request.received = System.nanoTime();
+    request.headLength = parser.length();
+    request.method = parser.method();
+    request.target = parser.target();
+    // extract the request, basically everything after the "/"
+    request.path = request.target.startsWith("/") ? request.target.substring(1) : request.target;
+    request.version = parser.version();
+    for (int i = 0; i < parser.headerCount(); i++) {
+      request.headers.put(parser.headerName(i).toLowerCase(), parser.headerValue(i));
+    }
+
+    // a body has a Content-Length or is chunked
+    long length = parser.contentLength();
+    String transferEncoding = request.header("transfer-encoding");
+    if (transferEncoding != null) {
+      if (!transferEncoding.equalsIgnoreCase("chunked"))
+        throw new HttpParser.HttpParseException(501, "Unsupported Transfer-Encoding " + transferEncoding);
+      // both would let a proxy and us disagree where the body ends
+      if (length >= 0)
+        throw new HttpParser.HttpParseException(400, "Content-Length and Transfer-Encoding");
+      request.bodyDecoder = new BodyDecoder(-1, WebServer.MAX_BODY);
+    } else if (length > 0) {
+      request.bodyDecoder = new BodyDecoder(length, WebServer.MAX_BODY);
+    }
+    return request;
+  }
+
+  /**
+   * Splits the path into first segment (lower case), the rest of the path and the
+   * query string. Done once when the request is routed.
+   */
+  void split() {
+    String target = path == null ? "" : path;
+    int questionMark = target.indexOf('?');
+    query = questionMark < 0 ? "" : target.substring(questionMark + 1);
+    String pathOnly = questionMark < 0 ? target : target.substring(0, questionMark);
+    int slash = pathOnly.indexOf('/');
+    route = (slash < 0 ? pathOnly : pathOnly.substring(0, slash)).toLowerCase();
+    subPath = slash < 0 ? "" : pathOnly.substring(slash + 1);
+  }
+
+  /**
+   * @return the decoded query parameters, parsed the first time they are needed
+   */
+  Map<String, String> params() throws UnsupportedEncodingException {
+    if (params == null) {
+      if (query == null)
+        split();
+      params = WebServer.splitQuery(query);
+    }
+    return params;
+  }
+
+  /**
+   * @param name header name in lower case
+   * @return the header value or null
+   */
+  String header(String name) {
+    return headers.get(name);
+  }
+
+  /**
+   * @return true if the client waits for "100 Continue" before it sends the body
+   */
+  boolean expectsContinue() {
+    return bodyDecoder != null && "100-continue".equalsIgnoreCase(header("expect"));
+  }
+
+  /**
+   * HTTP/1.1 connections stay open unless the client asks to close them,
+   * HTTP/1.0 connections only if the client asks for keep-alive.
+   */
+  boolean keepAlive() {
+    String connection = header("connection");
+    if ("HTTP/1.1".equals(version))
+      return connection == null || !connection.equalsIgnoreCase("close");
+    return connection != null && connection.equalsIgnoreCase("keep-alive");
+  }
+}
@@ -0,0 +1,224 @@
+package funHttpServer;
+
+import httpCommon.HttpParser.HttpParseException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * The body of a POST request as a stream. It is decoded while the handler
+ * reads it, so a handler that streams (e.g. into a file) never holds the whole
+ * body. Each engine has its own kind: Blocking reads from the socket on the
+ * handler's thread, Pipe gets the bytes from the NIO event loop.
+ */
+abstract class RequestBody extends InputStream {
+  /**
+   * Bodies up to this size are read into the heap by map()
+   */
+  static final int IN_MEMORY = 64 * 1024;
+
+  /**
+   * @return true if the whole body was received, only then the connection can take the next request
+   */
+  abstract boolean complete();
+
+  @Override
+  public int read() throws IOException {
+    byte[] one = new byte[1];
+    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+  }
+
+  /**
+   * Reads the rest of the body into a buffer for handlers that need to look at
+   * all of it, e.g. from both ends. Small bodies are read into the heap, larger
+   * ones into a temp file that is memory mapped, so a body of many megabytes
+   * takes page cache, not heap. The file is deleted right away.
+   * @return the body from position 0 to the limit
+   */
+  ByteBuffer map() throws IOException {
+    byte[] first = new byte[IN_MEMORY];
+    int n = readNBytes(first, 0, first.length);
+    if (n < IN_MEMORY)
+      return ByteBuffer.wrap(first, 0, n).slice();
+
+    Path file = Files.createTempFile("funHttpServer-body-", ".tmp");
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+        StandardOpenOption.DELETE_ON_CLOSE)) {
+      ByteBuffer buffer = ByteBuffer.wrap(first);
+      while (n > 0) {
+        buffer.limit(n).position(0);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        if (channel.size() > Integer.MAX_VALUE - IN_MEMORY)
+          throw new HttpParseException(413, "Request body too large");
+        n = readNBytes(first, 0, first.length);
+      }
+      // the mapping stays valid after the channel is closed and the file deleted
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+   * Body read by the blocking engine: bytes the head parser already read come
+   * from its buffer, the rest from the socket. Bytes after the body stay in the
+   * buffer for the next request.
+   */
+  static class Blocking extends RequestBody {
+    private final InputStream socket;
+    private final ByteBuffer buffer;
+    private final BodyDecoder decoder;
+
+    /**
+     * @param buffer array backed buffer of the connection, the body starts at its position
+     */
+    Blocking(InputStream socket, ByteBuffer buffer, BodyDecoder decoder) {
+      this.socket = socket;
+      this.buffer = buffer;
+      this.decoder = decoder;
+    }
+
+    @Override
+    boolean complete() {
+      return decoder.done();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      while (!decoder.done()) {
+        int n = decoder.decode(buffer, b, off, len);
+        if (n > 0)
+          return n;
+        if (decoder.done())
+          break;
+        // all buffered bytes are used up
+        buffer.clear();
+        int read = socket.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+        if (read < 0) {
+          buffer.limit(0);
+          throw new EOFException("Connection closed in the middle of the request body");
+        }
+        buffer.limit(read);
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Body for the NIO engine. The event loop decodes what it reads and puts it
+   * into the pipe, the handler takes it out on its worker thread. When more than
+   * capacity bytes wait in the pipe the loop stops reading from the socket, so a
+   * slow handler slows down the client (TCP flow control) instead of filling the
+   * heap; the loop is told to continue once half of it was taken.
+   */
+  static class Pipe extends RequestBody {
+    private final Queue<byte[]> chunks = new ArrayDeque<>();
+    private final int capacity;
+    private final long timeout;
+    private final Runnable drained;
+    private byte[] current;
+    private int position;
+    private int buffered;
+    private boolean full;
+    private boolean finished;
+    private IOException failure;
+
+    /**
+     * @param timeout milliseconds the handler waits for the next bytes
+     * @param drained called (on the handler's thread) when the pipe can take more after being full
+     */
+    Pipe(int capacity, long timeout, Runnable drained) {
+      this.capacity = capacity;
+      this.timeout = timeout;
+      this.drained = drained;
+    }
+
+    synchronized void put(byte[] bytes) {
+      chunks.add(bytes);
+      buffered += bytes.length;
+      notifyAll();
+    }
+
+    /**
+     * @return true if the loop should stop reading
+     */
+    synchronized boolean full() {
+      full = buffered >= capacity;
+      return full;
+    }
+
+    /**
+     * The whole body is in the pipe
+     */
+    synchronized void finish() {
+      finished = true;
+      notifyAll();
+    }
+
+    /**
+     * The body cannot be received, the handler gets the exception once the bytes before it are read
+     */
+    synchronized void fail(IOException e) {
+      failure = e;
+      notifyAll();
+    }
+
+    @Override
+    synchronized boolean complete() {
+      return finished;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      int n;
+      boolean wake;
+      synchronized (this) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while ((current == null || position == current.length) && chunks.isEmpty()) {
+          if (failure != null)
+            throw failure;
+          if (finished)
+            return -1;
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0)
+            throw new SocketTimeoutException("Timed out waiting for the request body");
+          try {
+            wait(wait);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the request body");
+          }
+        }
+        if (current == null || position == current.length) {
+          current = chunks.poll();
+          position = 0;
+        }
+        n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        buffered -= n;
+        wake = full && buffered < capacity / 2;
+        if (wake)
+          full = false;
+      }
+      if (wake)
+        drained.run();
+      return n;
+    }
+  }
+}
@@ -0,0 +1,336 @@
+package funHttpServer;
+
+import httpCommon.StaticFiles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An HTTP response: status, headers and body. The Content-Length header is always
+ * added when the response is written so the client knows where the response ends
+ * and the connection can be reused for the next request.
+ *
+ * The body is either a byte array or a part of a file. File bodies are not read
+ * into memory, they are sent straight from the file to the socket. A body whose
+ * length is not known before it is written is streamed with "Transfer-Encoding:
+ * chunked" instead of a Content-Length.
+ */
+class Response {
+  /**
+   * Writes a streamed body, out is closed by the response afterwards
+   */
+  @FunctionalInterface
+  interface BodyWriter {
+    void write(OutputStream out) throws IOException;
+  }
+
+  /**
+   * A body without an end that is sent piece by piece as new data arrives, used
+   * for server-sent events. The blocking engine polls it on the connection's
+   * thread and waits in between, the NIO engine polls it whenever the previous
+   * piece was written and the source told it that there is something new.
+   */
+  interface EventSource {
+    /**
+     * @return the bytes to send now, an empty array if there is nothing new or null when the stream ends
+     */
+    byte[] poll() throws IOException;
+
+    /**
+     * Waits until there may be something new to poll (blocking engine)
+     */
+    void await() throws InterruptedException;
+
+    /**
+     * Runs the listener once as soon as there may be something new to poll (NIO engine)
+     */
+    void onAvailable(Runnable listener);
+
+    /**
+     * Called when the stream ends, e.g. because the client is gone
+     */
+    void close();
+  }
+
+  /**
+   * Interim response for a client that sent "Expect: 100-continue" and waits for it before sending the body
+   */
+  static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  int status;
+  Map<String, String> headers;
+  byte[] body;
+  // when set the body is fileLength bytes of this file starting at fileOffset
+  Path file;
+  long fileOffset;
+  long fileLength;
+  // when set the body is written by it, chunked
+  BodyWriter stream;
+  // gzip the streamed body while it is written
+  boolean gzipStream;
+  // Content-Encoding was already decided, see Compression
+  boolean negotiated;
+  // when set the body are the pieces of this source, chunked
+  EventSource events;
+  // when set the response was encoded before the request, headers cannot be changed
+  final ResponseTemplate template;
+  // the bytes of the template to send, chosen by WebServer.connectionHeaders
+  byte[] encoded;
+
+  Response(int status, String contentType, byte[] body) {
+    this.status = status;
+    this.body = body;
+    headers = new LinkedHashMap<>();
+    template = null;
+    if (contentType != null)
+      headers.put("Content-Type", contentType);
+  }
+
+  /**
+   * Response of a template, shares its headers and body
+   */
+  Response(ResponseTemplate template) {
+    this.template = template;
+    status = template.status;
+    headers = template.headers;
+    body = template.body;
+    negotiated = true;
+  }
+
+  /**
+   * @return response with an HTML body
+   */
+  static Response html(int status, String body) {
+    return new Response(status, "text/html; charset=utf-8", body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @return response with a JSON body
+   */
+  static Response json(int status, String body) {
+    return new Response(status, "application/json; charset=utf-8", body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Response with a body that is written while it is sent
+   */
+  static Response stream(int status, String contentType, BodyWriter writer) {
+    Response response = new Response(status, contentType, new byte[0]);
+    response.stream = writer;
+    return response;
+  }
+
+  /**
+   * Response for a stream of server-sent events, the connection is closed when it ends
+   */
+  static Response events(EventSource source) {
+    Response response = new Response(200, "text/event-stream; charset=utf-8", new byte[0]);
+    response.header("Cache-Control", "no-cache");
+    response.events = source;
+    return response;
+  }
+
+  /**
+   * Response that sends the file (or the part asked for in the Range header)
+   * @param path the file, has to exist
+   * @param rangeHeader value of the request's Range header or null
+   * @return 200 with the whole file, 206 with a part of it or 416 if the range is outside the file
+   */
+  static Response file(Path path, String rangeHeader) throws IOException {
+    long length = Files.size(path);
+    StaticFiles.Range range = StaticFiles.Range.parse(rangeHeader, length);
+    if (range == StaticFiles.Range.UNSATISFIABLE) {
+      return html(416, "<html>Range not satisfiable</html>").header("Content-Range", "bytes */" + length);
+    }
+
+    Response response = new Response(200, StaticFiles.contentType(path.getFileName().toString()), new byte[0]);
+    response.header("Accept-Ranges", "bytes");
+    response.file = path;
+    if (range == null) {
+      response.fileOffset = 0;
+      response.fileLength = length;
+    } else {
+      response.status = 206;
+      response.header("Content-Range", range.contentRange(length));
+      response.fileOffset = range.start;
+      response.fileLength = range.length();
+    }
+    return response;
+  }
+
+  /**
+   * @return number of bytes in the body
+   */
+  long contentLength() {
+    return file != null ? fileLength : body.length;
+  }
+
+  /**
+   * Sets (or replaces) a header
+   * @return this response so calls can be chained
+   */
+  Response header(String name, String value) {
+    headers.put(name, value);
+    return this;
+  }
+
+  /**
+   * Writes status line, headers and body to the stream. Does not flush.
+   */
+  void writeTo(OutputStream out) throws IOException {
+    writeTo(out, null);
+  }
+
+  /**
+   * Writes status line, headers and body. A file body is sent to the channel with
+   * FileChannel.transferTo so it does not pass through the Java heap.
+   * @param out stream for the head (and a byte array body), flushed before a file is sent
+   * @param channel blocking channel of the same socket or null to copy the file through out
+   */
+  void writeTo(OutputStream out, WritableByteChannel channel) throws IOException {
+    if (encoded != null) {
+      out.write(encoded);
+      return;
+    }
+    out.write(head());
+    if (events != null) {
+      writeEvents(new ChunkedOutputStream(out));
+      return;
+    }
+    if (stream != null) {
+      writeStream(out);
+      return;
+    }
+    if (file == null) {
+      out.write(body);
+      return;
+    }
+    try (FileChannel fileChannel = FileChannel.open(file)) {
+      if (channel == null) {
+        StaticFiles.transfer(fileChannel, fileOffset, fileLength, Channels.newChannel(out));
+      } else {
+        out.flush();
+        StaticFiles.transfer(fileChannel, fileOffset, fileLength, channel);
+      }
+    }
+  }
+
+  /**
+   * Writes the streamed body chunked (and gzip compressed if asked for), the head has to be written before.
+   * If the writer fails the exception is passed on without the gzip trailer and the last chunk, the
+   * caller closes the connection and the client sees that the body was cut off.
+   */
+  void writeStream(OutputStream out) throws IOException {
+    OutputStream chunked = new ChunkedOutputStream(out);
+    // sync flush, so a flush() of the writer still sends everything written so far
+    OutputStream target = gzipStream ? new GZIPOutputStream(chunked, 8192, true) : chunked;
+    stream.write(target);
+    // only a complete body is ended
+    target.close();
+  }
+
+  /**
+   * Sends the pieces of the event source as chunks until it ends or the client is gone
+   */
+  private void writeEvents(ChunkedOutputStream chunked) throws IOException {
+    try {
+      byte[] bytes;
+      while ((bytes = events.poll()) != null) {
+        if (bytes.length == 0) {
+          events.await();
+          continue;
+        }
+        chunked.write(bytes);
+        chunked.flush();
+      }
+      chunked.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      events.close();
+    }
+  }
+
+  /**
+   * Writes a streamed body into the byte array body, for HTTP/1.0 clients that
+   * do not understand chunked responses
+   */
+  void buffer() throws IOException {
+    if (stream == null)
+      return;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (OutputStream target = gzipStream ? new GZIPOutputStream(out, 8192) : out) {
+      stream.write(target);
+    }
+    body = out.toByteArray();
+    stream = null;
+    gzipStream = false;
+  }
+
+  /**
+   * @return the complete response as bytes
+   */
+  byte[] toBytes() {
+    if (encoded != null)
+      return encoded; // never changed, the caller only sends it
+    ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(contentLength() + 128, Integer.MAX_VALUE));
+    try {
+      writeTo(out);
+    } catch (IOException e) {
+      // only possible when the file of a file body cannot be read
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @return status line and headers including the empty line that ends them
+   */
+  byte[] head() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("HTTP/1.1 ").append(status).append(" ").append(reason(status)).append("\r\n");
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    }
+    // a 304 has no body, its Content-Length would have to be the one of the full response
+    if (stream != null || events != null)
+      builder.append("Transfer-Encoding: chunked\r\n");
+    else if (status != 304)
+      builder.append("Content-Length: ").append(contentLength()).append("\r\n");
+    builder.append("\r\n");
+    return builder.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the reason phrase for the status codes we use
+   */
+  static String reason(int status) {
+    switch (status) {
+      case 200: return "OK";
+      case 206: return "Partial Content";
+      case 304: return "Not Modified";
+      case 400: return "Bad Request";
+      case 404: return "Not Found";
+      case 405: return "Method Not Allowed";
+      case 413: return "Content Too Large";
+      case 414: return "URI Too Long";
+      case 416: return "Range Not Satisfiable";
+      case 429: return "Too Many Requests";
+      case 431: return "Request Header Fields Too Large";
+      case 500: return "Internal Server Error";
+      case 501: return "Not Implemented";
+      default: return "Unknown";
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A response that is the same for every request, e.g. one of the /json
+ * answers, encoded once: status line, headers and body are kept as the bytes
+ * that go to the socket. A request then only picks a template, respond() makes
+ * a Response that shares its headers and body, and writing it is a single
+ * write of a byte array instead of building the head and copying the body.
+ *
+ * The only headers that depend on the connection are Connection and
+ * Keep-Alive, the template has the bytes for both cases. The kept alive
+ * variant says how long the server waits for the next request, but not how
+ * many requests are left on the connection (the "max" of a built response),
+ * the server still closes it with "Connection: close" after the last one.
+ *
+ * Templates are immutable. Anything they are made from that can change (the
+ * images of /json, a cached file) makes new templates when it does.
+ */
+final class ResponseTemplate {
+  final int status;
+  // unmodifiable, shared by every response of the template
+  final Map<String, String> headers;
+  final byte[] body;
+  // the complete response with "Connection: close"
+  private final byte[] close;
+  // the complete response for a kept alive connection, made for the first idle timeout it is used with
+  private volatile KeepAlive keepAlive;
+
+  private static final class KeepAlive {
+    final int idleTimeout;
+    final byte[] encoded;
+
+    KeepAlive(int idleTimeout, byte[] encoded) {
+      this.idleTimeout = idleTimeout;
+      this.encoded = encoded;
+    }
+  }
+
+  /**
+   * @param response with a byte array body, its headers and body are copied
+   */
+  ResponseTemplate(Response response) {
+    if (response.file != null || response.stream != null || response.events != null)
+      throw new IllegalArgumentException("only responses with a byte array body can be templates");
+    status = response.status;
+    headers = Collections.unmodifiableMap(new LinkedHashMap<>(response.headers));
+    body = response.body;
+    close = encode("Connection: close\r\n");
+  }
+
+  /**
+   * @return a response for one request, it must not be changed
+   */
+  Response respond() {
+    return new Response(this);
+  }
+
+  /**
+   * @return status line, headers and body as they are sent
+   */
+  byte[] encoded(boolean keepAlive, int idleTimeout) {
+    if (!keepAlive)
+      return close;
+    KeepAlive variant = this.keepAlive;
+    if (variant == null || variant.idleTimeout != idleTimeout) {
+      variant = new KeepAlive(idleTimeout,
+          encode("Connection: keep-alive\r\nKeep-Alive: timeout=" + (idleTimeout / 1000) + "\r\n"));
+      this.keepAlive = variant;
+    }
+    return variant.encoded;
+  }
+
+  private byte[] encode(String connectionHeaders) {
+    StringBuilder head = new StringBuilder();
+    head.append("HTTP/1.1 ").append(status).append(" ").append(Response.reason(status)).append("\r\n");
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    }
+    head.append(connectionHeaders);
+    // a 304 has no body, its Content-Length would have to be the one of the full response
+    if (status != 304)
+      head.append("Content-Length: ").append(body.length).append("\r\n");
+    head.append("\r\n");
+    byte[] headBytes = head.toString().getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(headBytes.length + body.length);
+    out.write(headBytes, 0, headBytes.length);
+    out.write(body, 0, body.length);
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,165 @@
+package funHttpServer;
+
+import httpCommon.HttpParser;
+import httpCommon.StaticFiles;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares the precomputed responses of /json and /random (ResponseTemplate)
+ * with building them for every request the way the server did before. Every
+ * variant goes through createResponse() like a request does, gets the
+ * connection headers and is written to a stream that drops the bytes. Every
+ * variant is warmed up first (so the JIT has compiled it) and then run for a
+ * fixed time, the table shows the average time and the bytes allocated per
+ * request.
+ *
+ * - /json built: a key array per request and the JSON concatenated, head built from the header map
+ * - /json template: a random pick from the table of encoded responses
+ * - /random read: www/index.html read from disk for every request
+ * - /random cached: the file's length checked on disk, the body from the content cache, head built
+ * - /random template: the cached, encoded response
+ *
+ * Run it in the directory with www (gradle does).
+ */
+class ResponseTemplateBenchmark {
+  // the images of /json as they were before the templates
+  private static final HashMap<String, String> IMAGES = new HashMap<>() {
+    {
+      put("streets", "https://iili.io/JV1pSV.jpg");
+      put("bread", "https://iili.io/Jj9MWG.jpg");
+    }
+  };
+  private static final Path PAGE = Paths.get("www/index.html");
+
+  // results go here so the JIT cannot drop the work
+  static volatile Object sink;
+
+  /**
+   * Usage: ResponseTemplateBenchmark [millisPerMeasurement]
+   */
+  public static void main(String[] args) throws Exception {
+    long millis = 1000;
+    try {
+      if (args.length > 0)
+        millis = Long.parseLong(args[0]);
+    } catch (NumberFormatException nfe) {
+      System.out.println("Usage: ResponseTemplateBenchmark [millisPerMeasurement]");
+      System.exit(1);
+    }
+
+    WebServer server = new WebServer(0);
+    ContentCache cache = new ContentCache(Paths.get("www"), WebServer.CACHE_BYTES);
+    // the old handlers next to the real ones, so all of them are dispatched alike
+    server.route("oldjson", ResponseTemplateBenchmark::builtJson);
+    server.route("oldrandom", request -> new Response(200, "text/html", Files.readAllBytes(PAGE)));
+    server.route("cachedrandom", request -> cachedPage(cache, request));
+    OutputStream out = OutputStream.nullOutputStream();
+
+    System.out.println("/json built\t\t/json template\t\t/random read\t\t/random cached\t\t/random template"
+        + "   (ns / bytes allocated per request)");
+    String json = measure(millis, () -> serve(server, "/oldjson", out));
+    String jsonTemplate = measure(millis, () -> serve(server, "/json", out));
+    String read = measure(millis, () -> serve(server, "/oldrandom", out));
+    String cached = measure(millis, () -> serve(server, "/cachedrandom", out));
+    String randomTemplate = measure(millis, () -> serve(server, "/random", out));
+    System.out.println(json + "\t\t" + jsonTemplate + "\t\t" + read + "\t\t" + cached + "\t\t" + randomTemplate);
+    System.exit(0);
+  }
+
+  /**
+   * One request from the parsed head to the last byte written
+   */
+  static Object serve(WebServer server, String target, OutputStream out) throws IOException {
+    Request request = request(target);
+    Response response = server.createResponse(request);
+    server.connectionHeaders(response, true, 1);
+    response.writeTo(out);
+    return response;
+  }
+
+  private static final HashMap<String, Request> REQUESTS = new HashMap<>();
+
+  /**
+   * @return the parsed request, the same object every time so parsing is not measured
+   */
+  private static Request request(String target) throws IOException {
+    Request request = REQUESTS.get(target);
+    if (request == null) {
+      HttpParser parser = new HttpParser();
+      ByteBuffer buffer = ByteBuffer.wrap(("GET " + target + " HTTP/1.1\r\nHost: localhost:9000\r\n"
+          + "Accept-Encoding: gzip, deflate, br\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      parser.parse(buffer);
+      request = Request.from(parser);
+      REQUESTS.put(target, request);
+    }
+    return request;
+  }
+
+  /**
+   * /json as it was
+   */
+  static Response builtJson(Request request) {
+    // pick a index from the map
+    int index = ThreadLocalRandom.current().nextInt(IMAGES.size());
+
+    // pull out the information
+    String header = (String) IMAGES.keySet().toArray()[index];
+    String url = IMAGES.get(header);
+
+    // Generate response
+    StringBuilder builder = new StringBuilder();
+    builder.append("{");
+    builder.append("\"header\":\"").append(header).append("\",");
+    builder.append("\"image\":\"").append(url).append("\"");
+    builder.append("}");
+    return Response.json(200, builder.toString());
+  }
+
+  /**
+   * /random with the content cache but without templates
+   */
+  static Response cachedPage(ContentCache cache, Request request) throws IOException {
+    if (cache.covers(PAGE) && Files.size(PAGE) <= WebServer.MAX_CACHED_FILE) {
+      ContentCache.Entry entry = cache.get(PAGE, () -> new ContentCache.Entry(Files.readAllBytes(PAGE),
+          StaticFiles.contentType(PAGE.getFileName().toString()), Files.getLastModifiedTime(PAGE).toMillis()));
+      return entry.respond(request);
+    }
+    return Response.file(PAGE, null);
+  }
+
+  /**
+   * @return average nanoseconds and allocated bytes per call, after the same time of warm up
+   */
+  static String measure(long millis, Callable<Object> task) throws Exception {
+    run(millis, task);
+    return run(millis, task);
+  }
+
+  private static String run(long millis, Callable<Object> task) throws Exception {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long end = System.nanoTime() + millis * 1_000_000;
+    long calls = 0;
+    long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+    long begin = System.nanoTime();
+    long now;
+    do {
+      sink = task.call();
+      calls++;
+      now = System.nanoTime();
+    } while (now < end);
+    long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+    return String.format("%.0f ns / %d B", (double) (now - begin) / calls, allocated / calls);
+  }
+}
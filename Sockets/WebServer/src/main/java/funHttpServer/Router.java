@@ -0,0 +1,59 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the first path segment of a request to its handler with a single hash
+ * lookup, so the order in which endpoints are registered does not matter and
+ * new endpoints do not need changes anywhere else.
+ *
+ * Example: /file/www/root.html is routed to the handler for "file" with
+ * subPath "www/root.html", /multiply?num1=3&num2=4 to the handler for
+ * "multiply" with the query "num1=3&num2=4".
+ */
+class Router {
+  private final Map<String, Handler> routes = new HashMap<>();
+  private Handler fallback = request -> Response.html(400, "I am not sure what you want me to do...");
+
+  /**
+   * Registers (or replaces) the handler for a first path segment, "" is the root page
+   * @return this router so calls can be chained
+   */
+  Router route(String segment, Handler handler) {
+    routes.put(segment.toLowerCase(), handler);
+    return this;
+  }
+
+  /**
+   * Sets the handler for requests no route matches
+   */
+  Router fallback(Handler handler) {
+    fallback = handler;
+    return this;
+  }
+
+  /**
+   * Splits the path of the request once and calls the matching handler
+   */
+  Response dispatch(Request request) throws IOException {
+    if (request.route == null)
+      request.split();
+    Handler handler = routes.get(request.route);
+    if (handler == null)
+      handler = fallback;
+    return handler.handle(request);
+  }
+
+  /**
+   * @return the name of the route the request belongs to for the metrics, e.g.
+   * "/multiply", "/" for the root page and "other" for unknown routes (so
+   * random paths do not make new time series)
+   */
+  String label(Request request) {
+    if (request.route == null)
+      request.split();
+    return routes.containsKey(request.route) ? "/" + request.route : "other";
+  }
+}
@@ -0,0 +1,246 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Live feed of new story lines for /story/stream as server-sent events:
+ *
+ *   id: 42
+ *   data: the 42nd line
+ *
+ * Subscribers do not get a queue of their own. Each one only remembers how far
+ * it is (its cursor, the id of the last line it was sent) and takes the lines
+ * after it from the story whenever its connection can take more, so a slow
+ * client costs no memory, it just falls behind. A client that falls more than
+ * MAX_LAG lines behind skips ahead and gets a "gap" event with the range it
+ * missed, it can read that from /story?from=&limit=. Clients that reconnect
+ * send the Last-Event-ID header and continue where they were.
+ *
+ * Every line is encoded once when it is appended, the last RECENT events are
+ * shared by all subscribers. A comment line is sent when nothing else was sent
+ * for a while, so proxies keep the connection open and dead clients are noticed.
+ */
+class StoryFeed {
+  /**
+   * Longest time in milliseconds a subscriber goes without getting anything
+   */
+  static final long HEARTBEAT = 10_000;
+
+  /**
+   * Lines a subscriber may fall behind before it skips ahead
+   */
+  static final int MAX_LAG = 10_000;
+
+  /**
+   * Number of encoded events kept for all subscribers
+   */
+  static final int RECENT = 1024;
+
+  /**
+   * Most bytes handed out by one poll
+   */
+  static final int MAX_BATCH = 64 * 1024;
+
+  private static final byte[] EMPTY = new byte[0];
+  private static final byte[] PING = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+  // browsers reconnect after 3 seconds if the connection is lost
+  private static final byte[] PREAMBLE = "retry: 3000\n\n".getBytes(StandardCharsets.US_ASCII);
+
+  /**
+   * An encoded event and the index of its line
+   */
+  private static class Event {
+    final int index;
+    final byte[] bytes;
+
+    Event(int index, byte[] bytes) {
+      this.index = index;
+      this.bytes = bytes;
+    }
+  }
+
+  private final StoryStore store;
+  private final AtomicReferenceArray<Event> recent = new AtomicReferenceArray<>(RECENT);
+  // blocking subscribers wait here
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  // NIO subscribers that want to be told about the next line
+  private final Queue<Runnable> listeners = new ConcurrentLinkedQueue<>();
+  final AtomicInteger subscribers = new AtomicInteger();
+
+  StoryFeed(StoryStore store) {
+    this.store = store;
+    store.addListener(this::appended);
+    Thread thread = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(HEARTBEAT / 2);
+        } catch (InterruptedException e) {
+          return;
+        }
+        wake();
+      }
+    }, "story-feed-heartbeat");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @param lastEventId value of the Last-Event-ID header, null for a new subscriber
+   * @return a subscriber that gets the lines after lastEventId, or only new ones
+   */
+  Response.EventSource subscribe(String lastEventId) {
+    int cursor = store.size();
+    if (lastEventId != null) {
+      try {
+        cursor = Math.max(0, Math.min(cursor, Integer.parseInt(lastEventId.trim())));
+      } catch (NumberFormatException e) {
+        // unknown id, start with the new lines
+      }
+    }
+    subscribers.incrementAndGet();
+    return new Subscriber(cursor);
+  }
+
+  /**
+   * Encodes the new line once for all subscribers and wakes them up
+   */
+  private void appended(int index, byte[] line) {
+    recent.set(index % RECENT, new Event(index, encode(index, line)));
+    wake();
+  }
+
+  private void wake() {
+    lock.lock();
+    try {
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    Runnable listener;
+    while ((listener = listeners.poll()) != null) {
+      listener.run();
+    }
+  }
+
+  /**
+   * @return the event of the line with this index
+   */
+  private byte[] event(int index) {
+    Event event = recent.get(index % RECENT);
+    if (event != null && event.index == index)
+      return event.bytes;
+    // older than the shared ones, only a client catching up gets here
+    return encode(index, store.line(index));
+  }
+
+  /**
+   * @return "id: index+1", one "data:" line per line of the text and an empty line
+   */
+  static byte[] encode(int index, byte[] line) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(line.length + 24);
+    out.writeBytes(("id: " + (index + 1) + "\n").getBytes(StandardCharsets.US_ASCII));
+    byte[] data = "data: ".getBytes(StandardCharsets.US_ASCII);
+    int start = 0;
+    for (int i = 0; i <= line.length; i++) {
+      // a line break in the text would end the event, so it starts a new data line
+      if (i == line.length || line[i] == '\n' || line[i] == '\r') {
+        out.writeBytes(data);
+        out.write(line, start, i - start);
+        out.write('\n');
+        if (i + 1 < line.length && line[i] == '\r' && line[i + 1] == '\n')
+          i++;
+        start = i + 1;
+      }
+    }
+    out.write('\n');
+    return out.toByteArray();
+  }
+
+  /**
+   * One client of /story/stream
+   */
+  private class Subscriber implements Response.EventSource {
+    // number of lines that were sent (or skipped)
+    int cursor;
+    boolean started;
+    long lastSent = System.currentTimeMillis();
+
+    Subscriber(int cursor) {
+      this.cursor = cursor;
+    }
+
+    @Override
+    public byte[] poll() {
+      if (!started) {
+        started = true;
+        return sent(PREAMBLE);
+      }
+      int size = store.size();
+      if (cursor >= size) {
+        if (System.currentTimeMillis() - lastSent >= HEARTBEAT / 2)
+          return sent(PING);
+        return EMPTY;
+      }
+
+      ByteArrayOutputStream batch = null;
+      if (size - cursor > MAX_LAG) {
+        // too slow, skip all but the newest line, the data are the indexes (for /story?from=) of the skipped lines
+        batch = new ByteArrayOutputStream();
+        batch.writeBytes(("event: gap\ndata: " + cursor + "-" + (size - 2) + "\n\n").getBytes(StandardCharsets.US_ASCII));
+        cursor = size - 1;
+      }
+      byte[] first = event(cursor++);
+      if (batch == null && (cursor == size || first.length >= MAX_BATCH))
+        return sent(first); // the common case: one new line, the shared bytes are sent as they are
+      if (batch == null)
+        batch = new ByteArrayOutputStream();
+      batch.writeBytes(first);
+      while (cursor < size && batch.size() < MAX_BATCH) {
+        batch.writeBytes(event(cursor++));
+      }
+      return sent(batch.toByteArray());
+    }
+
+    private byte[] sent(byte[] bytes) {
+      lastSent = System.currentTimeMillis();
+      return bytes;
+    }
+
+    private boolean idle() {
+      return cursor >= store.size() && System.currentTimeMillis() - lastSent < HEARTBEAT / 2;
+    }
+
+    @Override
+    public void await() throws InterruptedException {
+      lock.lock();
+      try {
+        if (idle())
+          changed.await(HEARTBEAT / 2, TimeUnit.MILLISECONDS);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void onAvailable(Runnable listener) {
+      listeners.add(listener);
+      // a line may have been appended after the last poll, before the listener was added
+      if (!idle() && listeners.remove(listener))
+        listener.run();
+    }
+
+    @Override
+    public void close() {
+      subscribers.decrementAndGet();
+    }
+  }
+}
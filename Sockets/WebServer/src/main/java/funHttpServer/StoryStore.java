@@ -0,0 +1,294 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The lines of the story for /addline and /story, kept in an append-only log
+ * file so the story survives a restart. The file is memory mapped, an append
+ * is a copy into the mapping; a daemon thread forces the written pages to disk
+ * every SYNC_INTERVAL milliseconds, so many appends share one fsync.
+ *
+ * File layout: "STORYLG1", an 8 byte epoch (random, chosen when the file is
+ * created) and then one record per line: its length as int and its UTF-8
+ * bytes. The rest of the file is zeros, a zero length marks the end. The
+ * length is written after the bytes, so a line is only there once it is
+ * complete.
+ *
+ * The HTML rows of the story are kept up to date with every append (as long as
+ * they are smaller than maxRendered), so /story is served from a cached page
+ * whose ETag contains the version, i.e. the number of lines. Pages of the story
+ * (rows from..from+limit) are read straight from the mapped file.
+ */
+class StoryStore {
+  /**
+   * Told about every appended line
+   */
+  @FunctionalInterface
+  interface Listener {
+    /**
+     * Called while the store is locked, so lines arrive in order. Must be quick.
+     * @param index of the line, the new version is index + 1
+     */
+    void appended(int index, byte[] line);
+  }
+
+  static final String HEADING = "<h1>Current Story</h1>\n";
+
+  /**
+   * Longest time in milliseconds an appended line may wait to be forced to disk
+   */
+  static final long SYNC_INTERVAL = 200;
+
+  private static final byte[] MAGIC = "STORYLG1".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] ROW_END = "<br>\n".getBytes(StandardCharsets.US_ASCII);
+  private static final int HEADER = 16;
+  private static final int INITIAL_SIZE = 1024 * 1024;
+
+  private final FileChannel channel;
+  private final long epoch;
+  // replaced by a larger mapping when the file grows, older ones stay valid
+  private volatile MappedByteBuffer map;
+  // file offset of every line, guarded by this
+  private long[] offsets = new long[1024];
+  private volatile int count;
+  private int end;
+  private boolean dirty;
+  private long lastAppend = System.currentTimeMillis();
+
+  // rendered rows of all lines, null once they are larger than maxRendered
+  private final int maxRendered;
+  private byte[] rows = new byte[4096];
+  private int rowsLength;
+  // the /story page of the current version, built on the first request for it
+  private ContentCache.Entry page;
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Opens the log (creates it if it does not exist) and reads the offsets of all lines
+   * @param maxRendered the /story page is only kept in memory while it is smaller
+   */
+  StoryStore(Path file, int maxRendered) throws IOException {
+    this.maxRendered = maxRendered;
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    boolean created = channel.size() < HEADER;
+    map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_SIZE));
+    if (created) {
+      epoch = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+      map.put(0, MAGIC);
+      map.putLong(MAGIC.length, epoch);
+      map.force();
+    } else {
+      byte[] magic = new byte[MAGIC.length];
+      map.get(0, magic);
+      if (!Arrays.equals(magic, MAGIC))
+        throw new IOException(file + " is not a story log");
+      epoch = map.getLong(MAGIC.length);
+    }
+    recover();
+    startSyncing();
+  }
+
+  /**
+   * Finds all complete lines, a line that was only partly written when the
+   * server stopped is dropped
+   */
+  private void recover() {
+    int position = HEADER;
+    byte[] line = new byte[256];
+    while (position + 4 <= map.capacity()) {
+      int length = map.getInt(position);
+      if (length <= 0 || position + 4L + length > map.capacity())
+        break;
+      if (line.length < length)
+        line = new byte[Math.max(length, line.length * 2)];
+      map.get(position + 4, line, 0, length);
+      addOffset(position);
+      render(line, length);
+      count++;
+      position += 4 + length;
+    }
+    end = position;
+    // anything after the last complete line is garbage of a torn write
+    for (int i = end; i < Math.min(end + 4, map.capacity()); i++)
+      map.put(i, (byte) 0);
+  }
+
+  /**
+   * Appends a line to the story
+   * @return the new version, the number of lines
+   */
+  synchronized int append(String line) throws IOException {
+    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+    int needed = 4 + bytes.length;
+    // a zero length has to fit behind the record to mark the end
+    if ((long) end + needed + 4 > map.capacity())
+      grow((long) end + needed + 4);
+    map.put(end + 4, bytes);
+    map.putInt(end, bytes.length);
+    addOffset(end);
+    end += needed;
+    dirty = true;
+    lastAppend = System.currentTimeMillis();
+    render(bytes, bytes.length);
+    page = null;
+    count++;
+    for (Listener listener : listeners)
+      listener.appended(count - 1, bytes);
+    return count;
+  }
+
+  void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * @return number of lines, also the version of the story
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   * @return time of the last append in milliseconds
+   */
+  synchronized long lastModified() {
+    return lastAppend;
+  }
+
+  /**
+   * @return value for an ETag of content that depends on the first lines of the story
+   */
+  String etag(int lines) {
+    return "\"story-" + Long.toHexString(epoch) + "-" + lines + "\"";
+  }
+
+  /**
+   * @return the cached /story page of the current version, null if the story is too large to keep it in memory
+   */
+  synchronized ContentCache.Entry page() {
+    if (page == null && rows != null) {
+      byte[] heading = HEADING.getBytes(StandardCharsets.UTF_8);
+      byte[] body = Arrays.copyOf(heading, heading.length + rowsLength);
+      System.arraycopy(rows, 0, body, heading.length, rowsLength);
+      page = new ContentCache.Entry(body, "text/html; charset=utf-8", lastAppend, etag(count));
+    }
+    return page;
+  }
+
+  /**
+   * @return the UTF-8 bytes of a line, the index has to be below size()
+   */
+  byte[] line(int index) {
+    long position = positions(index, index + 1)[0];
+    MappedByteBuffer current = map;
+    byte[] bytes = new byte[current.getInt((int) position)];
+    current.get((int) position + 4, bytes);
+    return bytes;
+  }
+
+  /**
+   * Writes the HTML rows of the lines from (inclusive) to (exclusive), the
+   * bytes are copied from the mapped file without making Strings
+   */
+  void writeRows(int from, int to, OutputStream out) throws IOException {
+    long[] positions = positions(from, to);
+    MappedByteBuffer current = map;
+    byte[] buffer = new byte[8192];
+    for (long position : positions) {
+      int length = current.getInt((int) position);
+      int offset = (int) position + 4;
+      while (length > 0) {
+        int n = Math.min(length, buffer.length);
+        current.get(offset, buffer, 0, n);
+        out.write(buffer, 0, n);
+        offset += n;
+        length -= n;
+      }
+      out.write(ROW_END);
+    }
+  }
+
+  private synchronized long[] positions(int from, int to) {
+    from = Math.max(0, Math.min(from, count));
+    to = Math.max(from, Math.min(to, count));
+    return Arrays.copyOfRange(offsets, from, to);
+  }
+
+  private void addOffset(long position) {
+    if (count == offsets.length)
+      offsets = Arrays.copyOf(offsets, offsets.length * 2);
+    offsets[count] = position;
+  }
+
+  /**
+   * Adds the row of a line to the rendered rows
+   */
+  private void render(byte[] line, int length) {
+    if (rows == null)
+      return;
+    int needed = rowsLength + length + ROW_END.length;
+    if (needed > maxRendered) {
+      // from now on /story is streamed from the log
+      rows = null;
+      return;
+    }
+    if (needed > rows.length)
+      rows = Arrays.copyOf(rows, Math.max(needed, rows.length * 2));
+    System.arraycopy(line, 0, rows, rowsLength, length);
+    System.arraycopy(ROW_END, 0, rows, rowsLength + length, ROW_END.length);
+    rowsLength = needed;
+  }
+
+  /**
+   * Maps a larger part of the file, at least twice the current size
+   */
+  private void grow(long needed) throws IOException {
+    long size = Math.max(needed, map.capacity() * 2L);
+    if (size > Integer.MAX_VALUE)
+      throw new IOException("story log is full");
+    // pages of the old mapping that are not on disk yet are written by force() as well
+    map.force();
+    map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+  /**
+   * Forces appended lines to disk if there are any
+   */
+  void sync() {
+    MappedByteBuffer toForce;
+    synchronized (this) {
+      if (!dirty)
+        return;
+      dirty = false;
+      toForce = map;
+    }
+    toForce.force();
+  }
+
+  private void startSyncing() {
+    Thread thread = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(SYNC_INTERVAL);
+        } catch (InterruptedException e) {
+          return;
+        }
+        sync();
+      }
+    }, "story-log-sync");
+    thread.setDaemon(true);
+    thread.start();
+    // the last appends are not lost when the server is stopped with Ctrl-C
+    Runtime.getRuntime().addShutdownHook(new Thread(this::sync));
+  }
+}
@@ -0,0 +1,118 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * /reverse and /palindrome for bodies of any size. The text stays UTF-8 bytes
+ * in a ByteBuffer (usually a memory mapped temp file, see RequestBody.map) and
+ * is walked with two pointers, one from each end, decoding one code point at a
+ * time. No String of the text is ever made, so a body of many megabytes needs
+ * no more heap than a short one.
+ *
+ * Bytes that are not valid UTF-8 are treated as characters of their own.
+ */
+class Utf8 {
+  private Utf8() {
+  }
+
+  /**
+   * Writes the text backwards, code point by code point (so multi-byte
+   * characters stay intact), in pieces of 8 KB
+   */
+  static void writeReversed(ByteBuffer text, OutputStream out) throws IOException {
+    byte[] buffer = new byte[8192];
+    int length = 0;
+    int end = text.limit();
+    while (end > 0) {
+      int start = start(text, end);
+      if (length + (end - start) > buffer.length) {
+        out.write(buffer, 0, length);
+        length = 0;
+      }
+      text.get(start, buffer, length, end - start);
+      length += end - start;
+      end = start;
+    }
+    out.write(buffer, 0, length);
+  }
+
+  /**
+   * @param ignoreCase compare the lower case of the code points
+   * @return true if the text reads the same backwards
+   */
+  static boolean isPalindrome(ByteBuffer text, boolean ignoreCase) {
+    int left = 0;
+    int right = text.limit();
+    while (left < right) {
+      int leftLength = length(text, left, right);
+      int rightStart = start(text, right);
+      if (rightStart <= left)
+        return true; // the same code point in the middle
+      int a = codePoint(text, left, leftLength);
+      int b = codePoint(text, rightStart, right - rightStart);
+      if (ignoreCase) {
+        a = Character.toLowerCase(a);
+        b = Character.toLowerCase(b);
+      }
+      if (a != b)
+        return false;
+      left += leftLength;
+      right = rightStart;
+    }
+    return true;
+  }
+
+  /**
+   * @return index of the first byte of the code point that ends right before end
+   */
+  static int start(ByteBuffer text, int end) {
+    int start = end - 1;
+    // back over at most 3 continuation bytes (10xxxxxx) to the lead byte
+    while (start > 0 && end - start < 4 && (text.get(start) & 0xc0) == 0x80) {
+      start--;
+    }
+    return length(text, start, end) == end - start ? start : end - 1;
+  }
+
+  /**
+   * @return number of bytes of the code point starting at index, 1 for an invalid byte
+   */
+  static int length(ByteBuffer text, int index, int limit) {
+    int lead = text.get(index) & 0xff;
+    int length;
+    if (lead < 0x80)
+      return 1;
+    else if (lead >= 0xc2 && lead <= 0xdf)
+      length = 2;
+    else if (lead >= 0xe0 && lead <= 0xef)
+      length = 3;
+    else if (lead >= 0xf0 && lead <= 0xf4)
+      length = 4;
+    else
+      return 1;
+    if (index + length > limit)
+      return 1;
+    for (int i = 1; i < length; i++) {
+      if ((text.get(index + i) & 0xc0) != 0x80)
+        return 1;
+    }
+    return length;
+  }
+
+  /**
+   * @return the code point of length bytes at index, an invalid byte b becomes
+   * 0x110000 + b so it only equals itself
+   */
+  static int codePoint(ByteBuffer text, int index, int length) {
+    int lead = text.get(index) & 0xff;
+    if (length == 1)
+      return lead < 0x80 ? lead : 0x110000 + lead;
+    int codePoint = lead & (0xff >> (length + 1));
+    for (int i = 1; i < length; i++) {
+      codePoint = (codePoint << 6) | (text.get(index + i) & 0x3f);
+    }
+    return codePoint;
+  }
+}
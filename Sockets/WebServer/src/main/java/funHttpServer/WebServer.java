@@ -4,7 +4,7 @@ localhost:9000/ and show you the root.html webpage from the www/root.html folder
 You can also do some other simple GET requests:
 1) /random shows you a random picture (well random from the set defined)
 2) json shows you the response as JSON for /random instead the html page
-3) /file/filename shows you the raw file (not as HTML)
+3) /file/www/filename shows you the raw file (not as HTML), sent with FileChannel.transferTo
 4) /multiply?num1=3&num2=4 multiplies the two inputs and responses with the result
 5) /github?query=users/amehlhase316/repos (or other GitHub repo owners) will lead to receiving
    JSON which will for now only be printed in the console. See the todo below
@@ -12,65 +12,361 @@ You can also do some other simple GET requests:
 The reading of the request is done "manually", meaning no library that helps making things a
 little easier is used. This is done so you see exactly how to pars the request and
 write a response back
+
+Every endpoint is a Handler registered in registerEndpoints() under the first segment of
+its path, add your own with route("name", handler).
 */
 
 package funHttpServer;
 
+import httpCommon.HttpParser;
+import httpCommon.StaticFiles;
+import httpCommon.ThreadPerTask;
+
 import java.io.*;
+import java.math.BigInteger;
 import java.net.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
-import java.util.Random;
 import java.util.Map;
 import java.util.LinkedHashMap;
-import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
 
 class WebServer {
+  /**
+   * Usage: WebServer [port] [maxConnections] [backlog] [idleTimeoutMillis] [maxRequestsPerConnection] [blocking|nio]
+   */
   public static void main(String args[]) {
-    WebServer server = new WebServer(9000);
+    int port = 9000;
+    int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    int backlog = DEFAULT_BACKLOG;
+    int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    int maxRequests = DEFAULT_MAX_REQUESTS;
+    String engine = "blocking";
+    try {
+      if (args.length > 0)
+        port = Integer.parseInt(args[0]);
+      if (args.length > 1)
+        maxConnections = Integer.parseInt(args[1]);
+      if (args.length > 2)
+        backlog = Integer.parseInt(args[2]);
+      if (args.length > 3)
+        idleTimeout = Integer.parseInt(args[3]);
+      if (args.length > 4)
+        maxRequests = Integer.parseInt(args[4]);
+      if (args.length > 5)
+        engine = args[5];
+    } catch (NumberFormatException nfe) {
+      System.out.println("Usage: WebServer [port] [maxConnections] [backlog] [idleTimeoutMillis] [maxRequestsPerConnection] [blocking|nio]");
+      System.exit(1);
+    }
+    WebServer server = new WebServer(port, maxConnections, backlog, idleTimeout, maxRequests);
+    if (engine.equalsIgnoreCase("nio")) {
+      // same endpoints, served by a selector event loop instead of a thread per connection
+      new NioServer(server).run();
+    } else {
+      server.run();
+    }
   }
 
-  private static List<String> story = new ArrayList<>();
+  /**
+   * Default number of connections that are served at the same time
+   */
+  static final int DEFAULT_MAX_CONNECTIONS = 256;
+
+  /**
+   * Default length of the accept queue the OS keeps for us
+   */
+  static final int DEFAULT_BACKLOG = 50;
+
+  /**
+   * Default time in milliseconds a kept alive connection may be idle before we close it
+   */
+  static final int DEFAULT_IDLE_TIMEOUT = 5000;
+
+  /**
+   * Default number of requests served on one connection before we close it
+   */
+  static final int DEFAULT_MAX_REQUESTS = 100;
+
+  /**
+   * Bytes of www content kept in memory
+   */
+  static final long CACHE_BYTES = 16 * 1024 * 1024;
+
+  /**
+   * Larger files are always streamed from disk
+   */
+  static final long MAX_CACHED_FILE = 1024 * 1024;
+
+  /**
+   * GitHub responses are used this long before GitHub is asked again (change it
+   * with -Dgithub.ttl=seconds), run with -Dgithub.url=http://localhost:9010/ to
+   * use the GitHubStub instead of GitHub
+   */
+  static final Duration GITHUB_TTL = Duration.ofSeconds(Long.getLong("github.ttl", 60));
+
+  /**
+   * Requests per second and burst per client and route (see RateLimiter): the
+   * default for all routes can be changed with -Dratelimit=rate/burst, the one
+   * of a route with e.g. -Dratelimit.github=rate/burst (ratelimit.root for the
+   * root page, ratelimit.other for unknown routes), "off" for no limit
+   */
+  static final String DEFAULT_RATE_LIMIT = System.getProperty("ratelimit", "100/200");
+
+  /**
+   * GitHub itself allows only a few requests per hour without a token
+   */
+  static final String GITHUB_RATE_LIMIT = "1/10";
+
+  /**
+   * Clients on this machine (e.g. the load tests) are not limited unless -Dratelimit.loopback=true
+   */
+  static final boolean RATE_LIMIT_LOOPBACK = Boolean.getBoolean("ratelimit.loopback");
 
   /**
-   * Main thread
+   * The bucket of a client that stopped sending is removed after this long
+   */
+  static final long RATE_LIMIT_IDLE_MILLIS = 60_000;
+
+  /**
+   * Longest time a request waits for GitHub
+   */
+  static final int GITHUB_TIMEOUT_SECONDS = 20;
+
+  /**
+   * Largest start index for /fibonacci, F(100000) has 20899 digits
+   */
+  static final int MAX_FIBONACCI_INDEX = 100_000;
+
+  /**
+   * Most numbers one /fibonacci request returns
+   */
+  static final int MAX_FIBONACCI_COUNT = 1_000;
+
+  /**
+   * The /story page is kept in memory up to this size, larger stories are sent from the log file
+   */
+  static final int MAX_RENDERED_STORY = 4 * 1024 * 1024;
+
+  /**
+   * Lines on a page of /story?from=&limit= if there is no limit, and the largest limit
+   */
+  static final int DEFAULT_STORY_PAGE = 100;
+  static final int MAX_STORY_PAGE = 1000;
+
+  /**
+   * Largest request body accepted (-Dbody.max=bytes), larger ones get a 413
+   */
+  static final long MAX_BODY = Long.getLong("body.max", 64 * 1024 * 1024);
+
+  // opened on first use, shared by all connection threads
+  private StoryStore story;
+  private StoryFeed feed;
+
+  final int port;
+  final int maxConnections;
+  final int backlog;
+  final int idleTimeout;
+  final int maxRequests;
+  private final Router router = new Router();
+  // by first path segment, null for a route without a limit
+  private final Map<String, RateLimiter> rateLimits = new HashMap<>();
+  private final RateLimiter otherRateLimit = rateLimiter("other");
+  final Metrics metrics = new Metrics();
+  // one line per sampled request, -Dlog.sample=N logs every Nth, 0 none
+  final AsyncLog log = new AsyncLog(System.out, Integer.getInteger("log.sample", 1));
+  private final ContentCache cache = new ContentCache(Paths.get("www"), CACHE_BYTES);
+  private final CachedHttpClient github = new CachedHttpClient(
+      URI.create(System.getProperty("github.url", "https://api.github.com/")),
+      GITHUB_TTL, Duration.ofSeconds(GITHUB_TIMEOUT_SECONDS), 256);
+
+  /**
+   * Server with the default settings, call run() to start it
    * @param port to listen on
    */
   public WebServer(int port) {
-    ServerSocket server = null;
-    Socket sock = null;
-    InputStream in = null;
-    OutputStream out = null;
+    this(port, DEFAULT_MAX_CONNECTIONS, DEFAULT_BACKLOG, DEFAULT_IDLE_TIMEOUT, DEFAULT_MAX_REQUESTS);
+  }
+
+  /**
+   * Server with the given settings, call run() to start it
+   * @param port to listen on
+   * @param maxConnections how many connections are served at the same time,
+   *        once reached we stop accepting until one finishes
+   * @param backlog how many not yet accepted connections the OS queues for us
+   * @param idleTimeout milliseconds a kept alive connection may wait for the next request
+   * @param maxRequests requests served on one connection before it is closed
+   */
+  public WebServer(int port, int maxConnections, int backlog, int idleTimeout, int maxRequests) {
+    this.port = port;
+    this.maxConnections = maxConnections;
+    this.backlog = backlog;
+    this.idleTimeout = idleTimeout;
+    this.maxRequests = maxRequests;
+    registerEndpoints();
+  }
+
+  /**
+   * Main thread, only accepts connections and hands every socket to the
+   * connection executor. That way one slow request (e.g. /github) does not
+   * block all other clients.
+   */
+  public void run() {
+    ServerSocketChannel server = null;
+    ExecutorService executor = ThreadPerTask.newExecutor();
+    Semaphore inFlight = new Semaphore(maxConnections);
 
     try {
-      server = new ServerSocket(port);
+      // a blocking channel instead of a plain ServerSocket, so every socket has a
+      // channel that files can be transferred to without copying
+      server = ServerSocketChannel.open();
+      server.bind(new InetSocketAddress(port), backlog);
+      System.out.println("Listening on port " + port + " (max " + maxConnections
+          + " connections, backlog " + backlog + ")");
       while (true) {
-        sock = server.accept();
-        out = sock.getOutputStream();
-        in = sock.getInputStream();
-        byte[] response = createResponse(in);
-        out.write(response);
-        out.flush();
-        in.close();
-        out.close();
-        sock.close();
+        // wait for a free slot before accepting, new clients queue up in the backlog meanwhile
+        inFlight.acquire();
+        SocketChannel sock;
+        try {
+          sock = server.accept();
+        } catch (IOException e) {
+          inFlight.release();
+          throw e;
+        }
+        executor.execute(() -> {
+          try {
+            serve(sock);
+          } finally {
+            inFlight.release();
+          }
+        });
       }
     } catch (IOException e) {
       e.printStackTrace();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     } finally {
-      if (sock != null) {
+      executor.shutdown();
+      if (server != null) {
         try {
           server.close();
         } catch (IOException e) {
-          // TODO Auto-generated catch block
           e.printStackTrace();
         }
       }
     }
   }
 
+  /**
+   * Serves requests on the socket until the client closes the connection, asks
+   * us to close it, stays idle for too long or the request limit is reached.
+   * Pipelined requests are parsed one after the other from the same buffer, so
+   * they are answered in the order they were sent.
+   * @param channel accepted client socket
+   */
+  private void serve(SocketChannel channel) {
+    metrics.opened();
+    try (SocketChannel c = channel;
+         InputStream in = c.socket().getInputStream();
+         OutputStream out = new BufferedOutputStream(new CountingOutputStream(c.socket().getOutputStream(), metrics.bytesSent))) {
+      c.socket().setSoTimeout(idleTimeout);
+      HttpParser parser = new HttpParser();
+      ByteBuffer buffer = parser.newBuffer();
+      InetAddress client = c.socket().getInetAddress();
+      int served = 0;
+      boolean keepAlive = true;
+      while (keepAlive) {
+        Request request;
+        try {
+          if (served == 0 && Http2Connection.preface(in, buffer)) {
+            // HTTP/2 with prior knowledge, the rest of the connection is frames
+            new Http2Connection(this, client, in, buffer, out).serve(null);
+            break;
+          }
+          if (!parser.read(in, buffer))
+            break; // client closed the connection
+          request = Request.from(parser);
+          request.client = client;
+        } catch (HttpParser.HttpParseException e) {
+          metrics.rejected.increment();
+          Response.html(e.status, "<html>" + e.getMessage() + "</html>").header("Connection", "close").writeTo(out, c);
+          break;
+        }
+        served++;
+        if (Http2Connection.upgrade(request)) {
+          // answered on stream 1 after the 101, the connection continues as HTTP/2
+          new Http2Connection(this, client, in, buffer, out).serve(request);
+          break;
+        }
+        keepAlive = request.keepAlive() && served < maxRequests;
+        if (request.bodyDecoder != null) {
+          request.body = new RequestBody.Blocking(in, buffer, request.bodyDecoder);
+          if (request.expectsContinue()) {
+            out.write(Response.CONTINUE);
+            out.flush();
+          }
+        }
+
+        Response response = createResponse(request);
+        // the next request starts after the body, if the handler did not read all of it we cannot find it
+        if (request.body != null && !request.body.complete())
+          keepAlive = false;
+        if (response.events != null) {
+          keepAlive = false; // an event stream only ends with the connection
+          completed(request, response.status);
+        }
+        connectionHeaders(response, keepAlive, served);
+        response.writeTo(out, c);
+        if (response.file != null)
+          metrics.bytesSent.add(response.fileLength); // sent past the counting stream
+        if (response.events == null)
+          completed(request, response.status);
+        // only flush when no pipelined request is waiting, so their responses go out together
+        if (!buffer.hasRemaining() && in.available() == 0)
+          out.flush();
+      }
+      out.flush();
+    } catch (SocketTimeoutException e) {
+      // kept alive connection was idle for too long, just close it
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      metrics.closed();
+    }
+  }
+
+  /**
+   * Tells the client whether the connection stays open after this response
+   * @param served number of requests served on the connection including this one
+   */
+  void connectionHeaders(Response response, boolean keepAlive, int served) {
+    if (response.template != null) {
+      // encoded with both variants of the headers already
+      response.encoded = response.template.encoded(keepAlive, idleTimeout);
+      return;
+    }
+    if (keepAlive) {
+      response.header("Connection", "keep-alive");
+      response.header("Keep-Alive", "timeout=" + (idleTimeout / 1000) + ", max=" + (maxRequests - served));
+    } else {
+      response.header("Connection", "close");
+    }
+  }
+
   /**
    * Used in the "/random" endpoint
    */
@@ -81,7 +377,45 @@ class WebServer {
     }
   };
 
-  private Random random = new Random();
+  /**
+   * The "/json" responses, one for every entry of _images, encoded once and
+   * made again by putImage
+   */
+  private static volatile ResponseTemplate[] _imageResponses = imageResponses();
+
+  /**
+   * The page of the "/random" endpoint
+   */
+  private static final Path RANDOM_PAGE = Paths.get("www/index.html");
+
+  /**
+   * Adds (or replaces) an image of the "/json" endpoint
+   */
+  public static void putImage(String header, String url) {
+    synchronized (_images) {
+      _images.put(header, url);
+      _imageResponses = imageResponses();
+    }
+  }
+
+  private static ResponseTemplate[] imageResponses() {
+    synchronized (_images) {
+      ResponseTemplate[] responses = new ResponseTemplate[_images.size()];
+      int index = 0;
+      for (Map.Entry<String, String> image : _images.entrySet()) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{");
+        builder.append("\"header\":\"").append(image.getKey()).append("\",");
+        builder.append("\"image\":\"").append(image.getValue()).append("\"");
+        builder.append("}");
+        Response response = Response.json(200, builder.toString());
+        // the headers every client gets, the body is too small to be compressed
+        Compression.apply(null, response);
+        responses[index++] = new ResponseTemplate(response);
+      }
+      return responses;
+    }
+  }
 
   /**
    * Reads in socket stream and generates a response
@@ -89,371 +423,557 @@ class WebServer {
    * @return the byte encoded HTTP response
    */
   public byte[] createResponse(InputStream inStream) {
+    try {
+      HttpParser parser = new HttpParser();
+      if (!parser.read(inStream, parser.newBuffer()))
+        return createResponse((Request) null).toBytes();
+      return createResponse(Request.from(parser)).toBytes();
+    } catch (HttpParser.HttpParseException e) {
+      return Response.html(e.status, "<html>" + e.getMessage() + "</html>").toBytes();
+    } catch (IOException e) {
+      e.printStackTrace();
+      return Response.html(500, "<html>ERROR: " + e.getMessage() + "</html>").toBytes();
+    }
+  }
 
-    byte[] response = null;
-    BufferedReader in = null;
+  /**
+   * Generates the response for one request
+   * @param req parsed request, may be null if nothing was received
+   * @return the response, gzip compressed if the client accepts it, written to the socket by the caller
+   */
+  public Response createResponse(Request req) {
+    // the path requested in the GET line, e.g. GET /index.html HTTP/1.1
+    if (req == null || req.path == null)
+      return Response.html(400, "<html>Illegal request: no GET</html>");
+    if (!"GET".equals(req.method) && !"POST".equals(req.method))
+      return Response.html(405, "<html>Illegal request: only GET and POST are supported</html>").header("Allow", "GET, POST");
+    Response limited = rateLimit(req);
+    if (limited != null)
+      return limited;
 
     try {
+      Response response = router.dispatch(req);
+      Compression.apply(req, response);
+      // chunked transfer encoding was added in HTTP/1.1
+      if ("HTTP/1.0".equals(req.version))
+        response.buffer();
+      return response;
+    } catch (HttpParser.HttpParseException e) {
+      // the request body was not what it should be
+      return Response.html(e.status, "<html>" + e.getMessage() + "</html>");
+    } catch (IOException e) {
+      e.printStackTrace();
+      return Response.html(500, "<html>ERROR: " + e.getMessage() + "</html>");
+    }
+  }
+
+  /**
+   * Registers an endpoint, e.g. route("hello", request -> Response.html(200, "hi"))
+   * answers /hello and /hello?name=x
+   * @param segment first segment of the path, "" for the root page
+   */
+  public void route(String segment, Handler handler) {
+    router.route(segment, handler);
+    rateLimits.put(segment.toLowerCase(), rateLimiter(segment.isEmpty() ? "root" : segment.toLowerCase()));
+  }
+
+  /**
+   * @return the limiter with the quota of the route, null if it has no limit
+   */
+  private static RateLimiter rateLimiter(String route) {
+    String quota = System.getProperty("ratelimit." + route, route.equals("github") ? GITHUB_RATE_LIMIT : DEFAULT_RATE_LIMIT);
+    RateLimiter.Quota parsed = RateLimiter.Quota.parse(quota);
+    return parsed == null ? null : new RateLimiter(parsed, RATE_LIMIT_IDLE_MILLIS);
+  }
+
+  /**
+   * Takes a token from the client's bucket for the route
+   * @return 429 if the client used up its quota, null if the request may go on
+   */
+  private Response rateLimit(Request request) {
+    if (request.client == null || (!RATE_LIMIT_LOOPBACK && request.client.isLoopbackAddress()))
+      return null;
+    if (request.route == null)
+      request.split();
+    RateLimiter limiter = rateLimits.getOrDefault(request.route, otherRateLimit);
+    if (limiter == null)
+      return null;
+    long wait = limiter.acquire(request.client, System.nanoTime());
+    if (wait == 0)
+      return null;
+    String seconds = Long.toString(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + 999_999_999)));
+    return Response.html(429, "<html>Too many requests, try again in " + seconds + " seconds</html>")
+        .header("Retry-After", seconds);
+  }
 
-      // Read from socket's input stream. Must use an
-      // InputStreamReader to bridge from streams to a reader
-      in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
+  /**
+   * @return the limiters by route label (see Router.label) for the metrics
+   */
+  private Map<String, RateLimiter> rateLimiters() {
+    Map<String, RateLimiter> limiters = new HashMap<>();
+    for (Map.Entry<String, RateLimiter> limit : rateLimits.entrySet()) {
+      if (limit.getValue() != null)
+        limiters.put("/" + limit.getKey(), limit.getValue());
+    }
+    if (otherRateLimit != null)
+      limiters.put("other", otherRateLimit);
+    return limiters;
+  }
 
-      // Get header and save the request from the GET line:
-      // example GET format: GET /index.html HTTP/1.1
+  /**
+   * Registers all endpoints of the fun web server
+   */
+  private void registerEndpoints() {
+    route("", this::root);
+    route("json", this::json);
+    route("random", this::random);
+    route("file", this::file);
+    route("multiply", this::multiply);
+    route("github", this::github);
+    route("addline", this::addLine);
+    route("story", this::story);
+    route("reverse", this::reverse);
+    route("palindrome", this::palindrome);
+    route("fibonacci", this::fibonacci);
+    route("metrics", this::metrics);
+  }
 
-      String request = null;
+  /**
+   * Counts an answered request for /metrics and logs it if it is sampled
+   * @param status of the response that was sent
+   */
+  void completed(Request request, int status) {
+    long nanos = System.nanoTime() - request.received;
+    metrics.bytesReceived.add(request.headLength + (request.bodyDecoder == null ? 0 : request.bodyDecoder.total()));
+    metrics.record(router.label(request), status, nanos);
+    if (log.sampled())
+      log.log(request.method + " " + request.target + " " + request.version + " " + status + " " + nanos / 1000 + "us");
+  }
 
-      boolean done = false;
-      while (!done) {
-        String line = in.readLine();
+  /**
+   * shows the default directory page, built once and then served from the cache
+   * until a file in www changes
+   */
+  private Response root(Request request) throws IOException {
+    ContentCache.Entry page = cache.get(Paths.get("www"), () -> {
+      File template = new File("www/root.html");
+      // opens the root.html file
+      String html = new String(readFileInBytes(template));
+      // performs a template replacement in the page
+      html = html.replace("${links}", buildFileList());
+      long modified = Math.max(template.lastModified(), new File("www").lastModified());
+      return new ContentCache.Entry(html.getBytes(StandardCharsets.UTF_8), "text/html; charset=utf-8", modified);
+    });
+
+    // Generate response, a 304 if the browser already has this version
+    return page.respond(request);
+  }
 
-        System.out.println("Received: " + line);
+  /**
+   * request counts, latency percentiles per route, bytes and connections in the
+   * Prometheus text format, e.g. for a Prometheus server scraping localhost:9000/metrics
+   */
+  private Response metrics(Request request) {
+    byte[] body = metrics.render(log.dropped.sum(), rateLimiters(), github).getBytes(StandardCharsets.UTF_8);
+    return new Response(200, "text/plain; version=0.0.4; charset=utf-8", body);
+  }
 
-        // find end of header("\n\n")
-        if (line == null || line.equals(""))
-          done = true;
-        // parse GET format ("GET <path> HTTP/1.1")
-        else if (line.startsWith("GET")) {
-          int firstSpace = line.indexOf(" ");
-          int secondSpace = line.indexOf(" ", firstSpace + 1);
+  /**
+   * shows the JSON of a random image and sets the header name for that image
+   */
+  private Response json(Request request) {
+    // pick a index from the table, the responses are encoded already
+    ResponseTemplate[] responses = _imageResponses;
+    return responses[ThreadLocalRandom.current().nextInt(responses.length)].respond();
+  }
 
-          // extract the request, basically everything after the GET up to HTTP/1.1
-          request = line.substring(firstSpace + 2, secondSpace);
-        }
+  /**
+   * opens the random image page
+   */
+  private Response random(Request request) throws IOException {
+    // the index.html as it is on disk, encoded once as long as it does not change
+    return staticFile(RANDOM_PAGE, request);
+  }
+
+  /**
+   * sends the specified file from the www folder (e.g. /file/www/index.html) or shows an error.
+   * Supports Range requests, e.g. "Range: bytes=0-99" for the first 100 bytes
+   */
+  private Response file(Request request) throws IOException {
+    // the path after file/, only files inside www can be requested
+    Path file = StaticFiles.resolve(Paths.get("www"), request.subPath);
+
+    // Generate response
+    if (file != null && Files.isRegularFile(file)) { // success
+      return staticFile(file, request);
+    } else { // failure
+      return Response.html(404, "File not found: " + request.subPath);
+    }
+  }
+
+  /**
+   * Sends a file. Small files directly in www come from the content cache (with
+   * ETag so the browser can revalidate), everything else and Range requests are
+   * streamed from disk.
+   */
+  private Response staticFile(Path file, Request request) throws IOException {
+    if (request.header("range") == null && cache.covers(file)) {
+      // only looked at on disk when it is not cached
+      ContentCache.Entry entry = cache.get(file, () -> Files.size(file) > MAX_CACHED_FILE ? null
+          : new ContentCache.Entry(Files.readAllBytes(file), StaticFiles.contentType(file.getFileName().toString()),
+          Files.getLastModifiedTime(file).toMillis()));
+      if (entry != null)
+        return entry.template(request);
+    }
+    return Response.file(file, request.header("range"));
+  }
+
+  /**
+   * multiplies two numbers, responds with 400 when a number is missing or invalid
+   */
+  private Response multiply(Request request) throws IOException {
+    // extract path parameters
+    Map<String, String> query_pairs = request.params();
+    Integer num1 = null;
+    Integer num2 = null;
+
+    // extract required fields from parameters
+    try {
+      if (!query_pairs.containsKey("num1") || query_pairs.get("num1").isEmpty())
+        throw new IllegalArgumentException("num1 is missing");
+      num1 = Integer.parseInt(query_pairs.get("num1"));
+    } catch (Exception e) {
+      // Handle invalid or missing num1 with appropriate error code
+      return Response.html(400, "<h1>Error: Invalid num1 – " + e.getMessage() + "</h1>");
+    }
+
+    try {
+      if (!query_pairs.containsKey("num2") || query_pairs.get("num2").isEmpty())
+        throw new IllegalArgumentException("num2 is missing");
+      num2 = Integer.parseInt(query_pairs.get("num2"));
+    } catch (Exception e) {
+      // Handle invalid or missing num2 with appropriate error code
+      return Response.html(400, "<h1>Error: Invalid num2 – " + e.getMessage() + "</h1>");
+    }
+
+    // do math
+    Integer result = num1 * num2;
+
+    // Generate response
+    return Response.html(200, "Result is: " + result);
+  }
+
+  /**
+   * pulls the query from the request and runs it with GitHub's REST API
+   */
+  private Response github(Request request) {
+    // check out https://docs.github.com/rest/reference/
+    //
+    // HINT: REST is organized by nesting topics. Figure out the biggest one first,
+    //     then drill down to what you care about
+    // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
+    //     "/repos/OWNERNAME/REPONAME/contributors"
 
+    try {
+      // extract the query parameter
+      String query = request.params().get("query");
+      if (query == null || query.isEmpty())
+        throw new IllegalArgumentException("Missing query parameter");
+
+      // fetch the JSON from GitHub, identical queries share one fetch and its cached result
+      CachedHttpClient.Result result = github.get(query).get(GITHUB_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      if (!result.ok())
+        throw new IOException("GitHub answered with status " + result.status);
+      byte[] json = result.body;
+      if (json.length == 0)
+        throw new IOException("Empty response from GitHub");
+
+      // the JSON is parsed while the response is sent, one repo after the other
+      return Response.stream(200, "text/html; charset=utf-8", out -> writeRepos(json, out));
+
+    } catch (Exception e) {
+      // TODO: Parse the JSON returned by your fetch and create an appropriate
+      // response based on what the assignment document asks for
+      return Response.html(400, "<h1>Error fetching GitHub repos: " + escapeHtml(String.valueOf(e.getMessage())) + "</h1>");
+    }
+  }
+
+  /**
+   * Writes full name, id and owner of every repo in the JSON array as HTML. The
+   * JSON is read once with a pull parser, only the three fields of the current
+   * repo are kept while everything else is skipped.
+   */
+  private static void writeRepos(byte[] json, OutputStream out) throws IOException {
+    Writer html = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    html.write("<h1>GitHub Repos:</h1>");
+    JsonPullParser parser = new JsonPullParser(new ByteArrayInputStream(json));
+    try {
+      JsonPullParser.Token token = parser.next();
+      if (token == JsonPullParser.Token.BEGIN_ARRAY) {
+        while ((token = parser.next()) != JsonPullParser.Token.END_ARRAY) {
+          if (token == JsonPullParser.Token.BEGIN_OBJECT)
+            writeRepo(parser, html);
+          else
+            parser.skip(token);
+        }
+      } else if (token == JsonPullParser.Token.BEGIN_OBJECT) {
+        // a single repo, e.g. query=repos/OWNER/REPO
+        writeRepo(parser, html);
       }
-      System.out.println("FINISHED PARSING HEADER\n");
+    } catch (JsonPullParser.MalformedJsonException e) {
+      // the status line is already sent, so all we can do is say so in the page
+      html.write("<p>Invalid JSON from GitHub: " + escapeHtml(e.getMessage()) + "</p>");
+    }
+    html.flush();
+  }
 
-      // Generate an appropriate response to the user
-      if (request == null) {
-        response = "<html>Illegal request: no GET</html>".getBytes();
-      } else {
-        // create output buffer
-        StringBuilder builder = new StringBuilder();
-        // NOTE: output from buffer is at the end
-
-        if (request.length() == 0) {
-          // shows the default directory page
-
-          // opens the root.html file
-          String page = new String(readFileInBytes(new File("www/root.html")));
-          // performs a template replacement in the page
-          page = page.replace("${links}", buildFileList());
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(page);
-
-        } else if (request.equalsIgnoreCase("json")) {
-          // shows the JSON of a random image and sets the header name for that image
-
-          // pick a index from the map
-          int index = random.nextInt(_images.size());
-
-          // pull out the information
-          String header = (String) _images.keySet().toArray()[index];
-          String url = _images.get(header);
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: application/json; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("{");
-          builder.append("\"header\":\"").append(header).append("\",");
-          builder.append("\"image\":\"").append(url).append("\"");
-          builder.append("}");
-
-        } else if (request.equalsIgnoreCase("random")) {
-          // opens the random image page
-
-          // open the index.html
-          File file = new File("www/index.html");
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(new String(readFileInBytes(file)));
-
-        } else if (request.contains("file/")) {
-          // tries to find the specified file and shows it or shows an error
-
-          // take the path and clean it. try to open the file
-          File file = new File(request.replace("file/", ""));
-
-          // Generate response
-          if (file.exists()) { // success
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Would theoretically be a file but removed this part, you do not have to do anything with it for the assignment");
-          } else { // failure
-            builder.append("HTTP/1.1 404 Not Found\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("File not found: " + file);
+  /**
+   * Writes one repo, the parser is right after the opening { of its object
+   */
+  private static void writeRepo(JsonPullParser parser, Writer html) throws IOException {
+    String fullName = null;
+    String id = null;
+    String owner = null;
+    while (parser.next() == JsonPullParser.Token.NAME) {
+      switch (parser.text()) {
+        case "full_name":
+          fullName = parser.nextValue();
+          break;
+        case "id":
+          id = parser.nextValue();
+          break;
+        case "owner":
+          JsonPullParser.Token token = parser.next();
+          if (token != JsonPullParser.Token.BEGIN_OBJECT) {
+            parser.skip(token);
+            break;
           }
-        } else if (request.contains("multiply?")) {
-          // This multiplies two numbers, there is NO error handling, so when
-          // wrong data is given this just crashes
-
-          builder.setLength(0); // clear any old content
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          // extract path parameters
-          query_pairs = splitQuery(request.replace("multiply?", ""));
-          Integer num1 = null;
-          Integer num2 = null;
-
-          // extract required fields from parameters
-          try {
-            if (!query_pairs.containsKey("num1") || query_pairs.get("num1").isEmpty())
-              throw new IllegalArgumentException("num1 is missing");
-            num1 = Integer.parseInt(query_pairs.get("num1"));
-          } catch (Exception e) {
-            // Handle invalid or missing num1 with appropriate error code
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n\n");
-            builder.append("<h1>Error: Invalid num1 – " + e.getMessage() + "</h1>");
-            return builder.toString().getBytes();
+          while (parser.next() == JsonPullParser.Token.NAME) {
+            if (parser.text().equals("login"))
+              owner = parser.nextValue();
+            else
+              parser.skipValue();
           }
+          break;
+        default:
+          parser.skipValue();
+      }
+    }
+    html.write("Full Name: " + escapeHtml(fullName) + "<br>");
+    html.write("ID: " + escapeHtml(id) + "<br>");
+    html.write("Owner: " + escapeHtml(owner) + "<br><br>");
+  }
 
-          try {
-            if (!query_pairs.containsKey("num2") || query_pairs.get("num2").isEmpty())
-              throw new IllegalArgumentException("num2 is missing");
-            num2 = Integer.parseInt(query_pairs.get("num2"));
-          } catch (Exception e) {
-            // Handle invalid or missing num2 with appropriate error code
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n\n");
-            builder.append("<h1>Error: Invalid num2 – " + e.getMessage() + "</h1>");
-            return builder.toString().getBytes();
-          }
+  /**
+   * @return the text with HTML special characters replaced, "N/A" for null
+   */
+  static String escapeHtml(String text) {
+    if (text == null)
+      return "N/A";
+    StringBuilder builder = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      switch (c) {
+        case '<': builder.append("&lt;"); break;
+        case '>': builder.append("&gt;"); break;
+        case '&': builder.append("&amp;"); break;
+        case '"': builder.append("&quot;"); break;
+        default: builder.append(c);
+      }
+    }
+    return builder.toString();
+  }
 
-          // do math
-          Integer result = num1 * num2;
+  /**
+   * adds ?text=... as a line to the story and shows the updated story
+   */
+  private Response addLine(Request request) throws IOException {
+    String line = request.params().get("text"); // get ?text=...
 
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n\n");
-          builder.append("Result is: " + result);
-          response = builder.toString().getBytes();
+    StoryStore store = story();
+    int lines = store.size();
+    if (line != null && !line.isEmpty()) {
+      lines = store.append(line); // add the line to the story
+    }
 
-        } else if (request.contains("github?")) {
-          // pulls the query from the request and runs it with GitHub's REST API
-          // check out https://docs.github.com/rest/reference/
-          //
-          // HINT: REST is organized by nesting topics. Figure out the biggest one first,
-          //     then drill down to what you care about
-          // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
-          //     "/repos/OWNERNAME/REPONAME/contributors"
+    // Send the updated story straight from the log
+    int end = lines;
+    return Response.stream(200, "text/html; charset=utf-8", out -> {
+      out.write("<h1>Updated Story</h1>\n".getBytes(StandardCharsets.UTF_8));
+      store.writeRows(0, end, out);
+    });
+  }
 
-          builder.setLength(0); // clear old content
+  /**
+   * shows the story, or with ?from=&limit= the lines from..from+limit of it,
+   * /story/stream sends new lines as they are added
+   */
+  private Response story(Request request) throws IOException {
+    StoryStore store = story();
+    if (request.subPath.equals("stream")) {
+      // new lines are pushed to the client as server-sent events
+      return Response.events(feed.subscribe(request.header("last-event-id")));
+    }
+    Map<String, String> query_pairs = request.params();
+    if (!query_pairs.containsKey("from") && !query_pairs.containsKey("limit")) {
+      // the page is rendered while lines are added, so this is only a lookup
+      ContentCache.Entry page = store.page();
+      if (page != null)
+        return page.respond(request).header("X-Story-Version", String.valueOf(store.size()));
+
+      // too large to keep in memory
+      int lines = store.size();
+      return Response.stream(200, "text/html; charset=utf-8", out -> {
+        out.write(StoryStore.HEADING.getBytes(StandardCharsets.UTF_8));
+        store.writeRows(0, lines, out);
+      }).header("X-Story-Version", String.valueOf(lines));
+    }
 
-          try {
-            // extract the query parameter
-            Map<String, String> query_pairs = splitQuery(request.replace("github?", ""));
-            String query = query_pairs.get("query");
-            if (query == null || query.isEmpty())
-              throw new IllegalArgumentException("Missing query parameter");
-
-            // fetch the JSON from GitHub
-            String json = fetchURL("https://api.github.com/" + query);
-            if (json == null || json.isEmpty())
-              throw new IOException("Empty response from GitHub");
-
-            // Simple parsing: split JSON array into individual repo strings
-            String[] repos = json.split("\\},\\{"); // rough split for each repo
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n\n");
-            builder.append("<h1>GitHub Repos:</h1>");
-
-            // iterate over each repo and extract desired fields
-            for (String repo : repos) {
-              // pull full_name
-              String full_name = repo.contains("\"full_name\"") ? repo.split("\"full_name\":\"")[1].split("\"")[0] : "N/A";
-              // pull id
-              String id = repo.contains("\"id\"") ? repo.split("\"id\":")[1].split(",")[0] : "N/A";
-              // pull owner login
-              String owner = repo.contains("\"owner\"") && repo.contains("\"login\"") ? repo.split("\"login\":\"")[1].split("\"")[0] : "N/A";
-
-              // add to HTML response
-              builder.append("Full Name: " + full_name + "<br>");
-              builder.append("ID: " + id + "<br>");
-              builder.append("Owner: " + owner + "<br><br>");
-            }
-
-          } catch (Exception e) {
-            // TODO: Parse the JSON returned by your fetch and create an appropriate
-            // response based on what the assignment document asks for
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n\n");
-            builder.append("<h1>Error fetching GitHub repos: " + e.getMessage() + "</h1>");
-          }
+    int from;
+    int limit;
+    try {
+      from = Integer.parseInt(query_pairs.getOrDefault("from", "0"));
+      limit = Integer.parseInt(query_pairs.getOrDefault("limit", String.valueOf(DEFAULT_STORY_PAGE)));
+    } catch (NumberFormatException e) {
+      return Response.html(400, "<h1>Error: Invalid number format for 'from' or 'limit'</h1>");
+    }
+    if (from < 0 || limit <= 0 || limit > MAX_STORY_PAGE) {
+      return Response.html(400, "<h1>Error: 'from' must be >= 0 and 'limit' between 1 and " + MAX_STORY_PAGE + "</h1>");
+    }
 
-          response = builder.toString().getBytes();
+    int lines = store.size();
+    int to = (int) Math.min(lines, (long) from + limit);
+    ByteArrayOutputStream page = new ByteArrayOutputStream();
+    page.write(StoryStore.HEADING.getBytes(StandardCharsets.UTF_8));
+    store.writeRows(from, to, page);
+    if (to < lines) {
+      page.write(("<a href=\"/story?from=" + to + "&limit=" + limit + "\">next</a>\n").getBytes(StandardCharsets.UTF_8));
+    }
+    // the page only depends on its lines and on whether there is a next page, so
+    // its ETag stays the same once the story is longer than the page
+    String etag = store.etag((int) Math.min(lines, (long) to + 1));
+    return new ContentCache.Entry(page.toByteArray(), "text/html; charset=utf-8", store.lastModified(), etag)
+        .respond(request).header("X-Story-Version", String.valueOf(lines));
+  }
 
-        } else if (request.startsWith("addline")) {
-          // Parse the query parameters
-          Map<String, String> query_pairs = splitQuery(request.replace("addline?", ""));
-          String line = query_pairs.get("text"); // get ?text=...
+  /**
+   * @return the story, opened when it is first used so servers without /story (like the GitHubStub) do not open it
+   */
+  private synchronized StoryStore story() throws IOException {
+    if (story == null) {
+      story = new StoryStore(Paths.get(System.getProperty("story.file", "story.log")), MAX_RENDERED_STORY);
+      feed = new StoryFeed(story);
+    }
+    return story;
+  }
 
-          if (line != null && !line.isEmpty()) {
-            story.add(line); // add the line to the story
-          }
+  /**
+   * reverses ?text=... or the body of a POST, which may be megabytes long: it is
+   * written back as text/plain, read backwards from the mapped body
+   */
+  private Response reverse(Request request) throws IOException {
+    if (request.body != null) {
+      ByteBuffer text = request.body.map();
+      return Response.stream(200, "text/plain; charset=utf-8", out -> Utf8.writeReversed(text, out));
+    }
+    try {
+      String text = request.params().get("text"); // get the ?text=...
 
-          // Build HTML response to show the updated story
-          builder.setLength(0); // clear any old content
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("<h1>Updated Story</h1>\n");
-          for(String s : story){
-            builder.append(s + "<br>\n");
-          }
+      if (text == null || text.isEmpty()) {
+        return Response.html(400, "<h1>Error: No text provided to reverse</h1>");
+      }
+      // Reverse the text
+      String reversed = new StringBuilder(text).reverse().toString();
 
-          return builder.toString().getBytes();
-
-        } else if (request.equals("story")) {
-          // Build HTML response to show the story
-          builder.setLength(0); // clear any old content
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("<h1>Current Story</h1>\n");
-          for (String s : story) {
-            builder.append(s + "<br>\n");
-          }
+      // Build response
+      StringBuilder builder = new StringBuilder();
+      builder.append("<h1>Original:</h1>");
+      builder.append(text + "<br>");
+      builder.append("<h1>Reversed:</h1>");
+      builder.append(reversed);
+      return Response.html(200, builder.toString());
+    } catch (UnsupportedEncodingException e) {
+      // Handle the unlikely exception gracefully
+      return Response.html(500, "<h1>Encoding error occurred</h1>");
+    }
+  }
 
-          return builder.toString().getBytes();
+  /**
+   * checks if ?text=... (or the body of a POST) is a palindrome, ignoring case unless ?ignoreCase=false
+   */
+  private Response palindrome(Request request) throws IOException {
+    Map<String, String> query_pairs = request.params();
+    String text = query_pairs.get("text");
+    String ignoreCaseParam = query_pairs.getOrDefault("ignoreCase", "true");
+    boolean ignoreCase = ignoreCaseParam.equalsIgnoreCase("true");
+
+    if (request.body != null) {
+      // compared from both ends of the mapped body, the text is never a String
+      ByteBuffer body = request.body.map();
+      boolean isPalindrome = Utf8.isPalindrome(body, ignoreCase);
+      StringBuilder builder = new StringBuilder();
+      builder.append("<h1>Palindrome Check</h1>");
+      builder.append("Length: " + body.limit() + " bytes<br>");
+      builder.append("Ignore Case: " + ignoreCase + "<br>");
+      builder.append("Result: " + (isPalindrome ? "Yes, it's a palindrome!" : "No, not a palindrome"));
+      return Response.html(200, builder.toString());
+    }
+    if (text == null || text.isEmpty()) {
+      return Response.html(400, "<h1>Error: Missing 'text' parameter</h1>");
+    }
 
-        } else if (request.startsWith("reverse")) {
-          try {
-            // Parse query parameters
-            Map<String, String> query_pairs = splitQuery(request.replace("reverse?", ""));
-            String text = query_pairs.get("text"); // get the ?text=...
-
-            // Clear builder before building response
-            builder.setLength(0);
-
-            if (text == null || text.isEmpty()) {
-              builder.append("HTTP/1.1 400 Bad Request\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("<h1>Error: No text provided to reverse</h1>");
-            } else {
-              // Reverse the text
-              String reversed = new StringBuilder(text).reverse().toString();
-
-              // Build response
-              builder.append("HTTP/1.1 200 OK\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("<h1>Original:</h1>");
-              builder.append(text + "<br>");
-              builder.append("<h1>Reversed:</h1>");
-              builder.append(reversed);
-            }
-
-            response = builder.toString().getBytes();
-          } catch (UnsupportedEncodingException e) {
-            // Handle the unlikely exception gracefully
-            builder.setLength(0);
-            builder.append("HTTP/1.1 500 Internal Server Error\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("<h1>Encoding error occurred</h1>");
-            response = builder.toString().getBytes();
-          }
-        } else if (request.startsWith("palindrome?")) {
-            // Check if the provided text is a palindrome
-            Map<String, String> query_pairs = splitQuery(request.replace("palindrome?", ""));
-            String text = query_pairs.get("text");
-            String ignoreCaseParam = query_pairs.getOrDefault("ignoreCase", "true");
-
-            builder.setLength(0); // clear old content
-
-            if (text == null || text.isEmpty()) {
-              builder.append("HTTP/1.1 400 Bad Request\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n\n");
-              builder.append("<h1>Error: Missing 'text' parameter</h1>");
-            } else {
-              boolean ignoreCase = ignoreCaseParam.equalsIgnoreCase("true");
-
-              String processed = ignoreCase ? text.toLowerCase() : text;
-              String reversed = new StringBuilder(processed).reverse().toString();
-              boolean isPalindrome = processed.equals(reversed);
-
-              builder.append("HTTP/1.1 200 OK\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n\n");
-              builder.append("<h1>Palindrome Check</h1>");
-              builder.append("Text: " + text + "<br>");
-              builder.append("Ignore Case: " + ignoreCase + "<br>");
-              builder.append("Result: " + (isPalindrome ? "Yes, it's a palindrome!" : "No, not a palindrome"));
-            }
-
-            response = builder.toString().getBytes();
-        } else if (request.startsWith("fibonacci?")) {
-          // Generate a Fibonacci sequence starting from 'start' index for 'count' numbers
-          Map<String, String> query_pairs = splitQuery(request.replace("fibonacci?", ""));
-          builder.setLength(0);
+    String processed = ignoreCase ? text.toLowerCase() : text;
+    String reversed = new StringBuilder(processed).reverse().toString();
+    boolean isPalindrome = processed.equals(reversed);
 
-          try {
-            int start = Integer.parseInt(query_pairs.get("start"));
-            int count = Integer.parseInt(query_pairs.get("count"));
-
-            if (start < 0 || count <= 0) {
-              builder.append("HTTP/1.1 400 Bad Request\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n\n");
-              builder.append("<h1>Error: 'start' must be >= 0 and 'count' must be > 0</h1>");
-            } else {
-              builder.append("HTTP/1.1 200 OK\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n\n");
-              builder.append("<h1>Fibonacci Sequence</h1>");
-              long a = 0, b = 1;
-
-              // Generate up to the 'start' index
-              for (int i = 0; i < start; i++) {
-                long temp = a + b;
-                a = b;
-                b = temp;
-              }
-
-              builder.append("Start index: " + start + "<br>Sequence: ");
-              for (int i = 0; i < count; i++) {
-                builder.append(a + " ");
-                long temp = a + b;
-                a = b;
-                b = temp;
-              }
-            }
-          } catch (NumberFormatException e) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n\n");
-            builder.append("<h1>Error: Invalid number format for 'start' or 'count'</h1>");
-          }
+    StringBuilder builder = new StringBuilder();
+    builder.append("<h1>Palindrome Check</h1>");
+    builder.append("Text: " + text + "<br>");
+    builder.append("Ignore Case: " + ignoreCase + "<br>");
+    builder.append("Result: " + (isPalindrome ? "Yes, it's a palindrome!" : "No, not a palindrome"));
+    return Response.html(200, builder.toString());
+  }
 
-          response = builder.toString().getBytes();
-        } else {
-          // if the request is not recognized at all
+  /**
+   * Generates a Fibonacci sequence starting from 'start' index for 'count' numbers
+   */
+  private Response fibonacci(Request request) throws IOException {
+    Map<String, String> query_pairs = request.params();
 
-          builder.append("HTTP/1.1 400 Bad Request\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("I am not sure what you want me to do...");
-        }
+    try {
+      int start = Integer.parseInt(query_pairs.get("start"));
+      int count = Integer.parseInt(query_pairs.get("count"));
 
-        // Output
-        response = builder.toString().getBytes();
+      if (start < 0 || count <= 0) {
+        return Response.html(400, "<h1>Error: 'start' must be >= 0 and 'count' must be > 0</h1>");
+      }
+      if (start > MAX_FIBONACCI_INDEX || count > MAX_FIBONACCI_COUNT) {
+        return Response.html(400, "<h1>Error: 'start' must be <= " + MAX_FIBONACCI_INDEX
+            + " and 'count' must be <= " + MAX_FIBONACCI_COUNT + "</h1>");
       }
-    } catch (IOException e) {
-      e.printStackTrace();
-      response = ("<html>ERROR: " + e.getMessage() + "</html>").getBytes();
-    }
 
-    return response;
+      // jump to the 'start' index in O(log start) steps
+      BigInteger[] first = Fibonacci.pair(start);
+
+      // the numbers get long, so they are sent while they are computed
+      return Response.stream(200, "text/html; charset=utf-8", out -> {
+        Writer html = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        html.write("<h1>Fibonacci Sequence</h1>");
+        html.write("Start index: " + start + "<br>Sequence: ");
+        BigInteger a = first[0];
+        BigInteger b = first[1];
+        for (int i = 0; i < count; i++) {
+          html.write(a.toString());
+          html.write(' ');
+          BigInteger temp = a.add(b);
+          a = b;
+          b = temp;
+        }
+        html.flush();
+      });
+    } catch (NumberFormatException e) {
+      return Response.html(400, "<h1>Error: Invalid number format for 'start' or 'count'</h1>");
+    }
   }
 
   /**
@@ -468,9 +988,14 @@ class WebServer {
     String[] pairs = query.split("&");
     // ["q=hello+world%2Fme", "bob=5"]
     for (String pair : pairs) {
+      if (pair.isEmpty())
+        continue;
+      // a parameter without "=" gets an empty value
       int idx = pair.indexOf("=");
+      if (idx < 0)
+        idx = pair.length();
       query_pairs.put(URLDecoder.decode(pair.substring(0, idx), "UTF-8"),
-          URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+          URLDecoder.decode(pair.substring(Math.min(idx + 1, pair.length())), "UTF-8"));
     }
     // {{"q", "hello world/me"}, {"bob","5"}}
     return query_pairs;
@@ -522,42 +1047,4 @@ class WebServer {
 
     return result;
   }
-
-  /**
-   *
-   * a method to make a web request. Note that this method will block execution
-   * for up to 20 seconds while the request is being satisfied. Better to use a
-   * non-blocking request.
-   *
-   * @param aUrl the String indicating the query url for the OMDb api search
-   * @return the String result of the http request.
-   *
-   **/
-  public String fetchURL(String aUrl) {
-    StringBuilder sb = new StringBuilder();
-    URLConnection conn = null;
-    InputStreamReader in = null;
-    try {
-      URL url = new URL(aUrl);
-      conn = url.openConnection();
-      if (conn != null)
-        conn.setReadTimeout(20 * 1000); // timeout in 20 seconds
-      if (conn != null && conn.getInputStream() != null) {
-        in = new InputStreamReader(conn.getInputStream(), Charset.defaultCharset());
-        BufferedReader br = new BufferedReader(in);
-        if (br != null) {
-          int ch;
-          // read the next character until end of reader
-          while ((ch = br.read()) != -1) {
-            sb.append((char) ch);
-          }
-          br.close();
-        }
-      }
-      in.close();
-    } catch (Exception ex) {
-      System.out.println("Exception in url request:" + ex.getMessage());
-    }
-    return sb.toString();
-  }
 }
@@ -0,0 +1,442 @@
+package httpCommon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parser for the head of an HTTP/1.x request (request line and headers), shared
+ * by the web servers in this project. It works on the bytes in a ByteBuffer and
+ * only remembers where the method, target, version and every header name and
+ * value start and end, so parsing itself creates no objects. Strings are only
+ * made when asked for; header values can also be read as slices of the buffer.
+ *
+ * The head may arrive in pieces: parse() returns false until the empty line that
+ * ends it is in the buffer, bytes looked at before are not looked at again. All
+ * positions are relative to the start of the request, so the buffer may be
+ * compacted (or copied to a larger one) between two calls.
+ *
+ * Any method is accepted, it is up to the server what it answers. Lines longer
+ * than maxLine, more than maxHeaders headers or a head longer than maxHead
+ * bytes are rejected with a HttpParseException that carries the status code for
+ * the error response (414 or 431), a malformed head gives 400.
+ *
+ * Usage:
+ *   HttpParser parser = new HttpParser();
+ *   ByteBuffer buffer = parser.newBuffer();
+ *   while (parser.read(socketInputStream, buffer)) {
+ *     if (parser.isMethod("GET")) ... parser.target() ... parser.headerValue("host")
+ *   }
+ */
+public class HttpParser {
+  public static final int DEFAULT_MAX_LINE = 8 * 1024;
+  public static final int DEFAULT_MAX_HEADERS = 100;
+  public static final int DEFAULT_MAX_HEAD = 16 * 1024;
+
+  // returned by method() and version() without making a new String
+  private static final String[] METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE", "CONNECT"};
+  private static final String[] VERSIONS = {"HTTP/1.1", "HTTP/1.0"};
+
+  /**
+   * Thrown for a request head we cannot or will not parse
+   */
+  public static class HttpParseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Status code for the error response
+     */
+    public final int status;
+
+    public HttpParseException(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  private final int maxLine;
+  private final int maxHeaders;
+  private final int maxHead;
+
+  // everything below is relative to the start of the request
+  private int scanned;
+  private int lineStart;
+  private boolean requestLineDone;
+  private int methodStart;
+  private int methodEnd;
+  private int targetStart;
+  private int targetEnd;
+  private int versionStart;
+  private int versionEnd;
+  // start and end of name and value of every header, 4 ints per header
+  private int[] headers = new int[4 * 16];
+  private int headerCount;
+
+  // set when a head is complete, the accessors read from here
+  private ByteBuffer buffer;
+  private int base;
+
+  public HttpParser() {
+    this(DEFAULT_MAX_LINE, DEFAULT_MAX_HEADERS, DEFAULT_MAX_HEAD);
+  }
+
+  /**
+   * @param maxLine longest request line or header line in bytes
+   * @param maxHeaders most headers in one request
+   * @param maxHead longest head (request line and all headers) in bytes
+   */
+  public HttpParser(int maxLine, int maxHeaders, int maxHead) {
+    this.maxLine = maxLine;
+    this.maxHeaders = maxHeaders;
+    this.maxHead = maxHead;
+  }
+
+  /**
+   * @return an empty buffer large enough for any head this parser accepts, for read()
+   */
+  public ByteBuffer newBuffer() {
+    return ByteBuffer.allocate(2 * maxHead).flip();
+  }
+
+  /**
+   * Forgets the current request, parse() does this by itself after a complete head
+   */
+  public void reset() {
+    scanned = 0;
+    lineStart = 0;
+    requestLineDone = false;
+    headerCount = 0;
+    buffer = null;
+  }
+
+  /**
+   * Parses the head of the request that starts at the buffer's position. When
+   * it is complete the position is moved right behind it (to the body or the
+   * next pipelined request), otherwise the buffer is not changed.
+   * @return true if the head is complete, false if more bytes are needed
+   */
+  public boolean parse(ByteBuffer buffer) throws HttpParseException {
+    if (this.buffer != null)
+      reset(); // the previous request is done
+    int start = buffer.position();
+    int limit = buffer.limit();
+    for (int i = start + scanned; i < limit; i++) {
+      if (buffer.get(i) != '\n')
+        continue;
+      int from = start + lineStart;
+      int to = (i > from && buffer.get(i - 1) == '\r') ? i - 1 : i;
+      lineStart = i + 1 - start;
+      if (lineStart > maxHead)
+        throw new HttpParseException(431, "Request header too large");
+      if (to - from > maxLine)
+        throw new HttpParseException(requestLineDone ? 431 : 414, requestLineDone ? "Header line too long" : "Request line too long");
+
+      if (!requestLineDone) {
+        // empty lines before the request line are allowed
+        if (to > from)
+          requestLine(buffer, from, to, start);
+      } else if (to == from) {
+        this.buffer = buffer;
+        base = start;
+        buffer.position(i + 1);
+        return true;
+      } else {
+        header(buffer, from, to, start);
+      }
+    }
+    scanned = limit - start;
+    if (limit - (start + lineStart) > maxLine)
+      throw new HttpParseException(requestLineDone ? 431 : 414, requestLineDone ? "Header line too long" : "Request line too long");
+    if (scanned > maxHead)
+      throw new HttpParseException(431, "Request header too large");
+    return false;
+  }
+
+  /**
+   * Reads from the stream until the head of the next request is in the buffer
+   * and parses it. The buffer holds the unparsed bytes between its position and
+   * limit, after the call that is what follows the head (a body or pipelined
+   * requests), pass it to the next call as it is.
+   * @param buffer array backed, e.g. from newBuffer()
+   * @return true if a head was parsed, false if the stream ended before it was complete
+   */
+  public boolean read(InputStream in, ByteBuffer buffer) throws IOException {
+    while (!parse(buffer)) {
+      if (buffer.limit() == buffer.capacity()) {
+        if (buffer.position() == 0)
+          throw new HttpParseException(431, "Request header too large");
+        // the positions are relative to the start of the request, moving it is fine
+        buffer.compact().flip();
+      }
+      int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.limit(), buffer.capacity() - buffer.limit());
+      if (read < 0)
+        return false;
+      buffer.limit(buffer.limit() + read);
+    }
+    return true;
+  }
+
+  private void requestLine(ByteBuffer buffer, int from, int to, int start) throws HttpParseException {
+    int firstSpace = indexOf(buffer, (byte) ' ', from, to);
+    int lastSpace = lastIndexOf(buffer, (byte) ' ', from, to);
+    if (firstSpace <= from || lastSpace <= firstSpace + 1 || lastSpace == to - 1)
+      throw new HttpParseException(400, "Malformed request line");
+    for (int i = from; i < firstSpace; i++) {
+      if (!isTokenChar(buffer.get(i)))
+        throw new HttpParseException(400, "Malformed method");
+    }
+    for (int i = firstSpace + 1; i < lastSpace; i++) {
+      if (buffer.get(i) == ' ')
+        throw new HttpParseException(400, "Malformed request target");
+    }
+    if (to - lastSpace - 1 != 8 || !regionMatches(buffer, lastSpace + 1, "HTTP/1.", false))
+      throw new HttpParseException(400, "Unsupported HTTP version");
+    methodStart = from - start;
+    methodEnd = firstSpace - start;
+    targetStart = firstSpace + 1 - start;
+    targetEnd = lastSpace - start;
+    versionStart = lastSpace + 1 - start;
+    versionEnd = to - start;
+    requestLineDone = true;
+  }
+
+  private void header(ByteBuffer buffer, int from, int to, int start) throws HttpParseException {
+    if (headerCount == maxHeaders)
+      throw new HttpParseException(431, "Too many headers");
+    byte first = buffer.get(from);
+    if (first == ' ' || first == '\t')
+      throw new HttpParseException(400, "Folded header lines are not supported");
+    int colon = indexOf(buffer, (byte) ':', from, to);
+    if (colon <= from)
+      throw new HttpParseException(400, "Malformed header");
+    for (int i = from; i < colon; i++) {
+      if (!isTokenChar(buffer.get(i)))
+        throw new HttpParseException(400, "Malformed header name");
+    }
+    int valueStart = colon + 1;
+    int valueEnd = to;
+    while (valueStart < valueEnd && isWhitespace(buffer.get(valueStart)))
+      valueStart++;
+    while (valueEnd > valueStart && isWhitespace(buffer.get(valueEnd - 1)))
+      valueEnd--;
+
+    if (headers.length < 4 * (headerCount + 1)) {
+      int[] larger = new int[headers.length * 2];
+      System.arraycopy(headers, 0, larger, 0, headers.length);
+      headers = larger;
+    }
+    int i = 4 * headerCount++;
+    headers[i] = from - start;
+    headers[i + 1] = colon - start;
+    headers[i + 2] = valueStart - start;
+    headers[i + 3] = valueEnd - start;
+  }
+
+  /**
+   * @return number of bytes of the head, including empty lines before the request line
+   */
+  public int length() {
+    return lineStart;
+  }
+
+  /**
+   * @return the method, e.g. "GET"
+   */
+  public String method() {
+    for (String method : METHODS) {
+      if (methodEnd - methodStart == method.length() && regionMatches(buffer, base + methodStart, method, false))
+        return method;
+    }
+    return string(methodStart, methodEnd);
+  }
+
+  /**
+   * @return true if the method is the given one, makes no String
+   */
+  public boolean isMethod(String method) {
+    return methodEnd - methodStart == method.length() && regionMatches(buffer, base + methodStart, method, false);
+  }
+
+  /**
+   * @return the request target as sent, e.g. "/index.html?x=1"
+   */
+  public String target() {
+    return string(targetStart, targetEnd);
+  }
+
+  /**
+   * @return "HTTP/1.1" or "HTTP/1.0"
+   */
+  public String version() {
+    for (String version : VERSIONS) {
+      if (regionMatches(buffer, base + versionStart, version, false))
+        return version;
+    }
+    return string(versionStart, versionEnd);
+  }
+
+  public int headerCount() {
+    return headerCount;
+  }
+
+  /**
+   * @return name of the i-th header as sent
+   */
+  public String headerName(int i) {
+    return string(headers[4 * i], headers[4 * i + 1]);
+  }
+
+  /**
+   * @return value of the i-th header without surrounding white space
+   */
+  public String headerValue(int i) {
+    return string(headers[4 * i + 2], headers[4 * i + 3]);
+  }
+
+  /**
+   * @return the value of the i-th header as a read-only view of the buffer, no bytes are copied
+   */
+  public ByteBuffer headerSlice(int i) {
+    int from = base + headers[4 * i + 2];
+    return buffer.slice(from, base + headers[4 * i + 3] - from).asReadOnlyBuffer();
+  }
+
+  /**
+   * @param name header name, case does not matter
+   * @return index of the first header with this name or -1
+   */
+  public int header(String name) {
+    for (int i = 0; i < headerCount; i++) {
+      if (headers[4 * i + 1] - headers[4 * i] == name.length() && regionMatches(buffer, base + headers[4 * i], name, true))
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * @param name header name, case does not matter
+   * @return the value of the first header with this name or null
+   */
+  public String headerValue(String name) {
+    int i = header(name);
+    return i < 0 ? null : headerValue(i);
+  }
+
+  /**
+   * Looks for a token in a comma separated header value, e.g. "close" in
+   * "Connection: close" or "chunked" in "Transfer-Encoding: gzip, chunked"
+   * @return true if one of the headers with this name contains the token (case does not matter)
+   */
+  public boolean hasToken(String name, String token) {
+    for (int i = 0; i < headerCount; i++) {
+      int h = 4 * i;
+      if (headers[h + 1] - headers[h] != name.length() || !regionMatches(buffer, base + headers[h], name, true))
+        continue;
+      int from = base + headers[h + 2];
+      int end = base + headers[h + 3];
+      while (from < end) {
+        int comma = indexOf(buffer, (byte) ',', from, end);
+        int to = comma < 0 ? end : comma;
+        int s = from;
+        int e = to;
+        while (s < e && isWhitespace(buffer.get(s)))
+          s++;
+        while (e > s && isWhitespace(buffer.get(e - 1)))
+          e--;
+        if (e - s == token.length() && regionMatches(buffer, s, token, true))
+          return true;
+        from = to + 1;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the value of the Content-Length header, -1 if there is none
+   * @throws HttpParseException if it is not a number or there are different ones
+   */
+  public long contentLength() throws HttpParseException {
+    long length = -1;
+    for (int i = 0; i < headerCount; i++) {
+      int h = 4 * i;
+      if (headers[h + 1] - headers[h] != 14 || !regionMatches(buffer, base + headers[h], "content-length", true))
+        continue;
+      int from = base + headers[h + 2];
+      int to = base + headers[h + 3];
+      if (from == to || to - from > 18)
+        throw new HttpParseException(400, "Invalid Content-Length");
+      long value = 0;
+      for (int j = from; j < to; j++) {
+        byte b = buffer.get(j);
+        if (b < '0' || b > '9')
+          throw new HttpParseException(400, "Invalid Content-Length");
+        value = value * 10 + (b - '0');
+      }
+      if (length >= 0 && length != value)
+        throw new HttpParseException(400, "Conflicting Content-Length headers");
+      length = value;
+    }
+    return length;
+  }
+
+  private String string(int from, int to) {
+    byte[] bytes = new byte[to - from];
+    buffer.get(base + from, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int indexOf(ByteBuffer buffer, byte b, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (buffer.get(i) == b)
+        return i;
+    }
+    return -1;
+  }
+
+  private static int lastIndexOf(ByteBuffer buffer, byte b, int from, int to) {
+    for (int i = to - 1; i >= from; i--) {
+      if (buffer.get(i) == b)
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * @return true if the bytes at index are the characters of text (which has to be ASCII)
+   */
+  private static boolean regionMatches(ByteBuffer buffer, int index, String text, boolean ignoreCase) {
+    if (index + text.length() > buffer.limit())
+      return false;
+    for (int i = 0; i < text.length(); i++) {
+      int b = buffer.get(index + i);
+      int c = text.charAt(i);
+      if (b != c && !(ignoreCase && toLower(b) == toLower(c)))
+        return false;
+    }
+    return true;
+  }
+
+  private static int toLower(int c) {
+    return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t';
+  }
+
+  /**
+   * @return true for the characters allowed in methods and header names (RFC 9110 tchar)
+   */
+  private static boolean isTokenChar(byte b) {
+    if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9'))
+      return true;
+    switch (b) {
+      case '!': case '#': case '$': case '%': case '&': case '\'': case '*': case '+':
+      case '-': case '.': case '^': case '_': case '`': case '|': case '~':
+        return true;
+      default:
+        return false;
+    }
+  }
+}
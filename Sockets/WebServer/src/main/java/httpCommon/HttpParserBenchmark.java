@@ -0,0 +1,133 @@
+package httpCommon;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Compares HttpParser with the readLine parsing the servers used before. Both
+ * parse the same requests from memory and look at the method, the target and
+ * two headers, like a server routing the request does. Every variant is warmed
+ * up first (so the JIT has compiled it) and then run for a fixed time, the table
+ * shows the average time and the bytes allocated per request.
+ *
+ * - readLine: BufferedReader on the bytes, a String per line, a map of the headers
+ * - HttpParser: parses in place, only the target becomes a String
+ * - HttpParser slices: header values read from the buffer, no String at all
+ */
+public class HttpParserBenchmark {
+  private static final String SMALL = "GET /multiply?num1=3&num2=4 HTTP/1.1\r\n"
+      + "Host: localhost:9000\r\n"
+      + "Connection: keep-alive\r\n"
+      + "\r\n";
+
+  // what a browser sends
+  private static final String BROWSER = "GET /file/www/root.html HTTP/1.1\r\n"
+      + "Host: localhost:9000\r\n"
+      + "Connection: keep-alive\r\n"
+      + "sec-ch-ua: \"Chromium\";v=\"118\", \"Google Chrome\";v=\"118\", \"Not=A?Brand\";v=\"99\"\r\n"
+      + "sec-ch-ua-mobile: ?0\r\n"
+      + "sec-ch-ua-platform: \"Linux\"\r\n"
+      + "Upgrade-Insecure-Requests: 1\r\n"
+      + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/118.0.0.0 Safari/537.36\r\n"
+      + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,image/apng,*/*;q=0.8\r\n"
+      + "Sec-Fetch-Site: none\r\n"
+      + "Sec-Fetch-Mode: navigate\r\n"
+      + "Sec-Fetch-User: ?1\r\n"
+      + "Sec-Fetch-Dest: document\r\n"
+      + "Accept-Encoding: gzip, deflate, br\r\n"
+      + "Accept-Language: en-US,en;q=0.9\r\n"
+      + "If-None-Match: \"5f2a-18b3c\"\r\n"
+      + "\r\n";
+
+  // results go here so the JIT cannot drop the parsing
+  static volatile Object sink;
+
+  /**
+   * Usage: HttpParserBenchmark [millisPerMeasurement]
+   */
+  public static void main(String[] args) throws Exception {
+    long millis = 1000;
+    try {
+      if (args.length > 0)
+        millis = Long.parseLong(args[0]);
+    } catch (NumberFormatException nfe) {
+      System.out.println("Usage: HttpParserBenchmark [millisPerMeasurement]");
+      System.exit(1);
+    }
+
+    System.out.println("request\t\treadLine\t\tHttpParser\t\tHttpParser slices   (ns / bytes allocated per request)");
+    for (String name : new String[] {"small", "browser"}) {
+      byte[] request = (name.equals("small") ? SMALL : BROWSER).getBytes(StandardCharsets.US_ASCII);
+      HttpParser parser = new HttpParser();
+      ByteBuffer buffer = ByteBuffer.wrap(request);
+      String readLine = measure(millis, () -> readLine(request));
+      String parsed = measure(millis, () -> parse(parser, buffer, false));
+      String slices = measure(millis, () -> parse(parser, buffer, true));
+      System.out.println(name + "\t\t" + readLine + "\t\t" + parsed + "\t\t" + slices);
+    }
+  }
+
+  /**
+   * The way the servers read requests before
+   */
+  static Object readLine(byte[] request) throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(request), "UTF-8"));
+    String line = in.readLine();
+    int firstSpace = line.indexOf(" ");
+    int secondSpace = line.indexOf(" ", firstSpace + 1);
+    String method = line.substring(0, firstSpace);
+    String path = line.substring(firstSpace + 2, secondSpace);
+    Map<String, String> headers = new HashMap<>();
+    while ((line = in.readLine()) != null && !line.isEmpty()) {
+      int colon = line.indexOf(":");
+      if (colon > 0)
+        headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+    }
+    boolean close = "close".equalsIgnoreCase(headers.get("connection"));
+    return method.equals("GET") && !close ? path : headers.get("if-none-match");
+  }
+
+  static Object parse(HttpParser parser, ByteBuffer buffer, boolean slices) throws IOException {
+    buffer.position(0);
+    parser.parse(buffer);
+    boolean close = parser.hasToken("connection", "close");
+    if (slices) {
+      int etag = parser.header("if-none-match");
+      return parser.isMethod("GET") && !close ? parser.headerCount() : etag < 0 ? null : parser.headerSlice(etag);
+    }
+    return parser.isMethod("GET") && !close ? parser.target() : parser.headerValue("if-none-match");
+  }
+
+  /**
+   * @return average nanoseconds and allocated bytes per call, after the same time of warm up
+   */
+  static String measure(long millis, Callable<Object> task) throws Exception {
+    run(millis, task);
+    return run(millis, task);
+  }
+
+  private static String run(long millis, Callable<Object> task) throws Exception {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long end = System.nanoTime() + millis * 1_000_000;
+    long calls = 0;
+    long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+    long begin = System.nanoTime();
+    long now;
+    do {
+      sink = task.call();
+      calls++;
+      now = System.nanoTime();
+    } while (now < end);
+    long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+    return String.format("%.0f ns / %d B", (double) (now - begin) / calls, allocated / calls);
+  }
+}
@@ -0,0 +1,156 @@
+package httpCommon;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Helpers for serving files as they are on disk, shared by the web servers in
+ * this project: content types, byte ranges and sending a file to a socket.
+ *
+ * Files are sent with FileChannel.transferTo, on most systems the OS then copies
+ * the file straight from the page cache to the socket (sendfile) and the file
+ * never has to be read into the Java heap.
+ */
+public class StaticFiles {
+
+  private StaticFiles() {
+  }
+
+  /**
+   * @param fileName name of the file, only the extension is looked at
+   * @return the Content-Type for the file
+   */
+  public static String contentType(String fileName) {
+    String name = fileName.toLowerCase(Locale.ROOT);
+    int dot = name.lastIndexOf('.');
+    String extension = dot < 0 ? "" : name.substring(dot + 1);
+    switch (extension) {
+      case "html":
+      case "htm": return "text/html; charset=utf-8";
+      case "css": return "text/css; charset=utf-8";
+      case "js": return "text/javascript; charset=utf-8";
+      case "json": return "application/json; charset=utf-8";
+      case "txt":
+      case "md":
+      case "java":
+      case "gradle": return "text/plain; charset=utf-8";
+      case "xml": return "application/xml";
+      case "png": return "image/png";
+      case "jpg":
+      case "jpeg": return "image/jpeg";
+      case "gif": return "image/gif";
+      case "svg": return "image/svg+xml";
+      case "ico": return "image/x-icon";
+      case "pdf": return "application/pdf";
+      case "mp4": return "video/mp4";
+      case "mp3": return "audio/mpeg";
+      default: return "application/octet-stream";
+    }
+  }
+
+  /**
+   * Checks that the requested file lies inside the document root, so requests
+   * like /file/../../etc/passwd cannot leave it
+   * @param root document root
+   * @param requested path from the request, relative to the working directory
+   * @return the normalized path or null if it is outside the root
+   */
+  public static Path resolve(Path root, String requested) {
+    try {
+      Path base = root.toAbsolutePath().normalize();
+      Path file = Path.of(requested).toAbsolutePath().normalize();
+      return file.startsWith(base) ? file : null;
+    } catch (InvalidPathException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Sends count bytes of the file starting at position to the channel. The
+   * channel has to be in blocking mode.
+   */
+  public static void transfer(FileChannel file, long position, long count, WritableByteChannel target)
+      throws IOException {
+    while (count > 0) {
+      long sent = file.transferTo(position, count, target);
+      if (sent <= 0 && position >= file.size())
+        throw new IOException("file is shorter than expected");
+      position += sent;
+      count -= sent;
+    }
+  }
+
+  /**
+   * One byte range of a file, from the Range header of a request
+   */
+  public static class Range {
+    /**
+     * Returned by parse() if the range lies completely outside the file
+     */
+    public static final Range UNSATISFIABLE = new Range(-1, -1);
+
+    public final long start;
+    // inclusive, like in the header
+    public final long end;
+
+    Range(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    public long length() {
+      return end - start + 1;
+    }
+
+    /**
+     * @return value for the Content-Range header of a 206 response
+     */
+    public String contentRange(long fileLength) {
+      return "bytes " + start + "-" + end + "/" + fileLength;
+    }
+
+    /**
+     * Parses a single range: "bytes=0-499", "bytes=500-" or "bytes=-500".
+     * Lists of ranges are not supported, in that case the whole file is sent
+     * which is allowed by the HTTP spec.
+     * @param header value of the Range header, may be null
+     * @param fileLength length of the file in bytes
+     * @return the range, null to send the whole file or UNSATISFIABLE (416)
+     */
+    public static Range parse(String header, long fileLength) {
+      if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0)
+        return null;
+      String spec = header.substring(6).trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0)
+        return null;
+      try {
+        long start;
+        long end;
+        if (dash == 0) {
+          // suffix range, the last n bytes
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix <= 0)
+            return UNSATISFIABLE;
+          start = Math.max(0, fileLength - suffix);
+          end = fileLength - 1;
+        } else {
+          start = Long.parseLong(spec.substring(0, dash));
+          end = dash == spec.length() - 1 ? fileLength - 1 : Long.parseLong(spec.substring(dash + 1));
+          end = Math.min(end, fileLength - 1);
+          if (end < start)
+            return start >= fileLength ? UNSATISFIABLE : null;
+        }
+        if (start >= fileLength)
+          return UNSATISFIABLE;
+        return new Range(start, end);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package httpCommon;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The executor the web servers in this project run their connections (and
+ * HTTP/2 streams) on.
+ */
+public class ThreadPerTask {
+
+  private ThreadPerTask() {
+  }
+
+  /**
+   * Uses one virtual thread per task when the JVM supports it (Java 21+),
+   * otherwise falls back to a cached pool of platform threads. The callers
+   * limit how many tasks run at the same time.
+   */
+  public static ExecutorService newExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+}
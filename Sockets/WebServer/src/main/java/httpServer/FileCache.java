@@ -0,0 +1,288 @@
+package httpServer;
+
+import httpCommon.StaticFiles;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers what the server found out about the files it was asked for:
+ * whether they exist, directory or file, length, modification time and the
+ * headers made from them (Content-Type, ETag, Last-Modified), and the HTML
+ * listing of directories. A request for a file that was requested before then
+ * needs no stat call, only the open of the file it sends.
+ *
+ * Entries are kept up to date with a WatchService: the directory a cached path
+ * is in (and a cached directory itself) is registered the first time, every
+ * event in it removes the entry of the changed file and of the directory,
+ * since its listing changed as well. A missing file is cached too, creating it
+ * removes the entry. At most maxEntries are kept, the least recently used go
+ * first. Without a WatchService nothing is cached.
+ */
+class FileCache {
+    static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    /**
+     * What is known about one path
+     */
+    static class Entry {
+        final Path path;
+        final boolean exists;
+        final boolean directory;
+        final long length;
+        // modification time in milliseconds
+        final long lastModified;
+        final String contentType;
+        final String etag;
+        final String lastModifiedHeader;
+        // HTML listing of a directory, made on first use
+        private volatile byte[] listing;
+
+        Entry(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            exists = attributes != null;
+            directory = exists && attributes.isDirectory();
+            length = exists ? attributes.size() : 0;
+            lastModified = exists ? attributes.lastModifiedTime().toMillis() : 0;
+            contentType = directory ? "text/html; charset=utf-8" : StaticFiles.contentType(path.getFileName() == null
+                    ? "" : path.getFileName().toString());
+            etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+            lastModifiedHeader = HTTP_DATE.format(Instant.ofEpochMilli(lastModified));
+        }
+
+        /**
+         * @return true if the file has not changed since the client's copy (If-Modified-Since), to the second
+         */
+        boolean notModifiedSince(String ifModifiedSince) {
+            try {
+                return lastModified / 1000 <= Instant.from(HTTP_DATE.parse(ifModifiedSince)).getEpochSecond();
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+    }
+
+    private final int maxEntries;
+    // access ordered, so the first entry is the least recently used one
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // directories registered with the watcher
+    private final Map<Path, WatchKey> watched = new HashMap<>();
+    // incremented on every invalidation, a stat that raced with one is not stored
+    private long invalidations;
+    private WatchService watcher;
+
+    /**
+     * @param maxEntries upper limit for the number of cached paths
+     */
+    FileCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        startWatching();
+    }
+
+    /**
+     * Returns what is known about the path, from the cache or with a stat call
+     * @param path absolute and normalized, e.g. from StaticFiles.resolve
+     */
+    Entry get(Path path) throws IOException {
+        long before;
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null)
+                return entry;
+            before = invalidations;
+        }
+        // watch first, a change after this point removes what we store below
+        boolean cacheable = watch(path.getParent());
+        Entry entry = new Entry(path, stat(path));
+        if (cacheable)
+            store(entry, before);
+        return entry;
+    }
+
+    /**
+     * Returns the HTML listing of a directory with a link, the length and the
+     * modification time of every entry. The entries of the directory are cached
+     * on the way, they are likely to be requested next.
+     * @param urlPath path of the directory in the request, ends with /
+     */
+    byte[] listing(Entry directory, String urlPath) throws IOException {
+        byte[] listing = directory.listing;
+        if (listing != null)
+            return listing;
+
+        long before;
+        synchronized (this) {
+            before = invalidations;
+        }
+        boolean cacheable = watch(directory.path);
+        Map<String, Entry> children = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.path)) {
+            for (Path child : stream) {
+                Entry entry = new Entry(child, stat(child));
+                if (entry.exists)
+                    children.put(child.getFileName().toString(), entry);
+            }
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            invalidate(directory.path);
+            throw e;
+        }
+
+        StringBuilder html = new StringBuilder(256 + children.size() * 128);
+        String title = "Index of " + escape(urlPath);
+        html.append("<html><head><meta charset=\"utf-8\"><title>").append(title).append("</title></head><body>\n");
+        html.append("<h1>").append(title).append("</h1>\n<table>\n");
+        if (!urlPath.equals("/"))
+            html.append("<tr><td><a href=\"../\">../</a></td><td></td><td></td></tr>\n");
+        for (Map.Entry<String, Entry> child : children.entrySet()) {
+            Entry entry = child.getValue();
+            String name = child.getKey() + (entry.directory ? "/" : "");
+            html.append("<tr><td><a href=\"").append(encode(name)).append("\">").append(escape(name))
+                    .append("</a></td><td>").append(entry.directory ? "-" : Long.toString(entry.length))
+                    .append("</td><td>").append(entry.lastModifiedHeader).append("</td></tr>\n");
+        }
+        html.append("</table>\n</body></html>\n");
+        listing = html.toString().getBytes(StandardCharsets.UTF_8);
+
+        if (cacheable) {
+            synchronized (this) {
+                if (before == invalidations) {
+                    directory.listing = listing;
+                    for (Entry entry : children.values()) {
+                        store(entry, before);
+                    }
+                }
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * Removes the entry of the path and of its directory
+     */
+    synchronized void invalidate(Path path) {
+        invalidations++;
+        entries.remove(path);
+        if (path.getParent() != null)
+            entries.remove(path.getParent());
+    }
+
+    private synchronized void store(Entry entry, long before) {
+        if (before != invalidations)
+            return;
+        entries.put(entry.path, entry);
+        Iterator<Path> it = entries.keySet().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * @return the attributes of the path, null if it does not exist
+     */
+    private static BasicFileAttributes stat(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Registers the directory with the watcher
+     * @return true if it is watched, so entries in it can be cached
+     */
+    private boolean watch(Path directory) {
+        if (directory == null)
+            return false;
+        synchronized (this) {
+            if (watcher == null)
+                return false;
+            if (watched.containsKey(directory))
+                return true;
+            try {
+                watched.put(directory, directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+                return true;
+            } catch (IOException e) {
+                // not a directory (any more), nothing in it is cached
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Starts a daemon thread that invalidates entries when files in a watched directory change
+     */
+    private void startWatching() {
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            System.out.println("Cannot watch files, file cache disabled: " + e.getMessage());
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        invalidateAll(); // events were lost, start over
+                    else
+                        invalidate(directory.resolve((Path) event.context()));
+                }
+                if (!key.reset()) {
+                    // directory is gone, watch it again if it comes back
+                    synchronized (this) {
+                        watched.remove(directory);
+                    }
+                    invalidateAll();
+                }
+            }
+        }, "file-cache-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private synchronized void invalidateAll() {
+        invalidations++;
+        entries.clear();
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Percent-encodes a name or path for a link or a Location header, the / stay
+     */
+    static String encode(String name) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8).replace("+", "%20").replace("%2F", "/");
+    }
+}
@@ -1,116 +1,325 @@
 package httpServer;
 
+import httpCommon.HttpParser;
+import httpCommon.StaticFiles;
+import httpCommon.ThreadPerTask;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
+/**
+ * Static file server for the directory it is started in, the baseline the
+ * other servers in this project are measured against. Connections are served
+ * by a fixed pool of threads or, with 0 threads, by a virtual thread each
+ * (Java 21+, a cached pool before). They are kept alive and pipelined requests
+ * are answered in order.
+ *
+ * Files are sent with transferTo, so a file of gigabytes needs no more memory
+ * than a small one. What the server knows about a path (exists, length,
+ * modification time, headers, directory listing) is kept in a FileCache, a
+ * repeated request does not stat the file again.
+ */
 class WebServer {
 
+    /**
+     * Milliseconds a kept-alive connection may wait for the next request
+     */
+    static final int IDLE_TIMEOUT = 5000;
+    /**
+     * Connections served at the same time with virtual threads, with a pool
+     * the number of its threads
+     */
+    static final int MAX_CONNECTIONS = 10000;
+    static final int BACKLOG = 1024;
+
+    private final Path root = Paths.get("").toAbsolutePath().normalize();
+    private final FileCache cache = new FileCache(100_000);
+
     // 
     public static void main(String args[]) {
-        if (args.length != 1) {
-            System.out.println("Usage: WebServer <port>");
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: WebServer <port> [threads]");
+            System.out.println("  threads: size of the thread pool, 0 (default) for a virtual thread per connection");
             System.exit(1);
         }
         
-        WebServer server = new WebServer(Integer.parseInt(args[0]));
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        WebServer server = new WebServer(Integer.parseInt(args[0]), threads);
     }
 
     public WebServer(int port) {
-        
-        ServerSocket    server = null;
-        Socket          sock = null;
-        InputStream     in = null;
-        OutputStream    out = null;
-
-        //*** Open the server socket on the specified port
-        //*** Loop forever accepting socket requests
-        //***   Get the response bytes from createResponse
-        //***   Write the bytes to the socket's output stream
-        //***   close streams and socket appropriatels
+        this(port, 0);
     }
 
+    /**
+     * Accepts connections until the server socket fails
+     * @param threads size of the thread pool, 0 for a virtual thread per connection
+     */
+    public WebServer(int port, int threads) {
 
-    public byte[] createResponse(InputStream inStream) {
-
-        byte[] response = null;
-        BufferedReader in = null;
+        ExecutorService executor = threads > 0 ? Executors.newFixedThreadPool(threads) : ThreadPerTask.newExecutor();
+        // wait for a free slot before accepting, new clients queue up in the backlog meanwhile
+        Semaphore inFlight = new Semaphore(threads > 0 ? threads : MAX_CONNECTIONS);
 
-        try {
-
-            // Read from socket's input stream.  Must use an
-            // InputStreamReader to bridge from streams to a reader
-            in = new BufferedReader(
-                        new InputStreamReader(inStream, "UTF-8"));
-
-            // Get header and save the filename from the GET line:
-            //    example GET format: GET /index.html HTTP/1.1
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            // a channel instead of a plain ServerSocket, so files can be transferred to the sockets
+            server.bind(new InetSocketAddress(port), BACKLOG);
+            System.out.println("Serving " + root + " on port " + port
+                    + (threads > 0 ? " with " + threads + " threads" : ""));
+            while (true) {
+                inFlight.acquire();
+                SocketChannel sock;
+                try {
+                    sock = server.accept();
+                } catch (IOException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                executor.execute(() -> {
+                    try {
+                        serve(sock);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+    }
 
-            String filename = null;
+    /**
+     * Answers requests on the connection until the client closes it, asks us to
+     * close it or stays idle for IDLE_TIMEOUT. Pipelined requests are parsed one
+     * after the other from the same buffer.
+     * @param channel blocking channel of an accepted socket
+     */
+    private void serve(SocketChannel channel) {
+        try (SocketChannel c = channel) {
+            Socket socket = c.socket();
+            socket.setSoTimeout(IDLE_TIMEOUT);
+            // the head and the file are two writes, the file must not wait for an ACK of the head
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
 
-            boolean done = false;
-            while (!done) {
-                String line = in.readLine();
+            HttpParser parser = new HttpParser();
+            ByteBuffer buffer = parser.newBuffer();
+            boolean open = true;
+            while (open) {
+                try {
+                    if (!parser.read(in, buffer))
+                        return;
+                } catch (HttpParser.HttpParseException e) {
+                    error(out, e.status, e.getMessage(), false, false);
+                    return;
+                }
+                open = respond(parser, c, out);
+            }
+        } catch (SocketTimeoutException e) {
+            // idle for too long
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
 
-System.out.println("Received: " + line);
-                if (line == null || line.equals(""))
-                    done = true;
+    /**
+     * Answers the request just parsed and sends the requested file with a
+     * proper status line and headers. The file is sent straight from disk with
+     * FileChannel.transferTo (sendfile), so it is never copied into the heap and
+     * large files need no more memory than small ones. Range requests like
+     * "Range: bytes=0-99" get a 206 with just that part of the file, a client
+     * that has the current version (If-None-Match, If-Modified-Since) a 304.
+     * A directory gets its index.html or a listing of its files.
+     * @return true if the connection can take the next request
+     */
+    private boolean respond(HttpParser parser, SocketChannel channel, OutputStream out) throws IOException {
+        boolean head = parser.isMethod("HEAD");
+        if (!head && !parser.isMethod("GET")) {
+            error(out, 405, "Method not allowed: " + parser.method(), false, false);
+            return false;
+        }
+        boolean keepAlive = parser.version().equals("HTTP/1.1")
+                ? !parser.hasToken("connection", "close") : parser.hasToken("connection", "keep-alive");
+        // a GET with a body is not expected, close instead of skipping it
+        if (parser.contentLength() > 0 || parser.header("transfer-encoding") >= 0)
+            keepAlive = false;
 
-                else if (line.startsWith("GET")) {
-                    int firstSpace = line.indexOf(" ");
-                    int secondSpace = line.indexOf(" ", firstSpace+1);
+        String target = parser.target();
+        int query = target.indexOf('?');
+        String urlPath = decode(query < 0 ? target : target.substring(0, query));
+        // a decoded %0d%0a would end up in the Location header, no file name needs control characters
+        if (hasControlCharacters(urlPath)) {
+            error(out, 400, "Bad path", head, false);
+            return false;
+        }
+        // skip the leading / (our docroot is the current dir)
+        String filename = urlPath.startsWith("/") ? urlPath.substring(1) : urlPath;
+        Path file = urlPath.startsWith("/") ? StaticFiles.resolve(root, filename) : null;
+        FileCache.Entry entry = file == null ? null : cache.get(file);
+        if (entry == null || !entry.exists) {
+            error(out, 404, "File not found: " + filename, head, keepAlive);
+            return keepAlive;
+        }
 
-                    // skipt the leading / (our docroot is the current dir)
-                    filename = line.substring(firstSpace+2, secondSpace);
+        if (entry.directory) {
+            if (!urlPath.endsWith("/")) {
+                // links in the listing are relative to the directory
+                out.write(head(301, "text/html; charset=utf-8", 0, keepAlive,
+                        "Location: " + FileCache.encode(urlPath) + "/\r\n"));
+                return keepAlive;
+            }
+            FileCache.Entry index = cache.get(file.resolve("index.html"));
+            if (!index.exists || index.directory) {
+                byte[] listing = cache.listing(entry, urlPath);
+                if (notModified(parser, entry)) {
+                    out.write(head(304, null, -1, keepAlive, validators(entry)));
+                } else {
+                    out.write(head(200, entry.contentType, listing.length, keepAlive, validators(entry)));
+                    if (!head)
+                        out.write(listing);
                 }
-
+                return keepAlive;
             }
-System.out.println("FINISHED\n");
+            entry = index;
+        }
 
+        if (notModified(parser, entry)) {
+            out.write(head(304, null, -1, keepAlive, validators(entry)));
+            return keepAlive;
+        }
 
-            // Generate an appropriate response to the user
-            if (filename == null) {
-                response =
-                    "<html>Illegal request: no GET</html>".getBytes();
+        FileChannel fileChannel;
+        try {
+            fileChannel = FileChannel.open(entry.path);
+        } catch (NoSuchFileException e) {
+            // deleted after it was cached, the watcher will notice as well
+            cache.invalidate(entry.path);
+            error(out, 404, "File not found: " + filename, head, keepAlive);
+            return keepAlive;
+        }
+        try (FileChannel f = fileChannel) {
+            long length = f.size();
+            if (length != entry.length)
+                cache.invalidate(entry.path);
+            StaticFiles.Range part = StaticFiles.Range.parse(parser.headerValue("range"), length);
+            if (part == StaticFiles.Range.UNSATISFIABLE) {
+                out.write(head(416, entry.contentType, 0, keepAlive, "Content-Range: bytes */" + length + "\r\n"));
+            } else if (part == null) {
+                out.write(head(200, entry.contentType, length, keepAlive, validators(entry)));
+                if (!head)
+                    StaticFiles.transfer(f, 0, length, channel);
             } else {
-            
-                File file = new File(filename);
-                if (!file.exists()) {
-                    response = ("<html>File not found: " +
-                                filename + "</html>").getBytes();
-                } else {
-                    response = readFileInBytes(file);
-                }
+                out.write(head(206, entry.contentType, part.length(), keepAlive,
+                        "Content-Range: " + part.contentRange(length) + "\r\n" + validators(entry)));
+                if (!head)
+                    StaticFiles.transfer(f, part.start, part.length(), channel);
             }
         }
-        catch (IOException e) {
-            e.printStackTrace();
-            response = ("<html>ERROR: " +
-                        e.getMessage() + "</html>").getBytes();
+        return keepAlive;
+    }
+
+    /**
+     * @return true if the client's copy is current, If-None-Match wins over If-Modified-Since
+     */
+    private static boolean notModified(HttpParser parser, FileCache.Entry entry) {
+        String ifNoneMatch = parser.headerValue("if-none-match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || tag.equals(entry.etag) || tag.equals("W/" + entry.etag))
+                    return true;
+            }
+            return false;
         }
+        String ifModifiedSince = parser.headerValue("if-modified-since");
+        return ifModifiedSince != null && entry.notModifiedSince(ifModifiedSince);
+    }
 
-        return response;
+    private static String validators(FileCache.Entry entry) {
+        return "ETag: " + entry.etag + "\r\nLast-Modified: " + entry.lastModifiedHeader + "\r\n";
     }
 
-    /** Read bytes from a file and return them in the byte array.
-        We read in blocks of 512 bytes for efficiency.
-    */
-    public static byte[] readFileInBytes(File f)
-        throws IOException {
+    private static void error(OutputStream out, int status, String message, boolean head, boolean keepAlive)
+            throws IOException {
+        byte[] body = ("<html>" + message.replace("&", "&amp;").replace("<", "&lt;") + "</html>")
+                .getBytes(StandardCharsets.UTF_8);
+        out.write(head(status, "text/html; charset=utf-8", body.length, keepAlive, ""));
+        if (!head)
+            out.write(body);
+    }
 
-        FileInputStream file = new FileInputStream(f);
-        ByteArrayOutputStream data = new ByteArrayOutputStream(file.available());
+    /**
+     * @param contentType null for none
+     * @param contentLength -1 for none (304)
+     * @param extra more header lines, each ending with \r\n
+     * @return status line and headers of a response
+     */
+    private static byte[] head(int status, String contentType, long contentLength, boolean keepAlive,
+                               String extra) {
+        StringBuilder builder = new StringBuilder(256);
+        builder.append("HTTP/1.1 ").append(status).append(" ").append(reason(status)).append("\r\n");
+        if (contentType != null)
+            builder.append("Content-Type: ").append(contentType).append("\r\n");
+        if (contentLength >= 0)
+            builder.append("Content-Length: ").append(contentLength).append("\r\n");
+        builder.append("Accept-Ranges: bytes\r\n");
+        builder.append(extra);
+        builder.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+        builder.append("\r\n");
+        return builder.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
 
-        byte buffer[] = new byte[512];
-        int numRead = file.read(buffer);
-        while (numRead > 0) {
-            data.write(buffer, 0, numRead);
-            numRead = file.read(buffer);
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 414: return "URI Too Long";
+            case 416: return "Range Not Satisfiable";
+            case 431: return "Request Header Fields Too Large";
+            default: return "Internal Server Error";
         }
-        file.close();
+    }
 
-        byte[] result =  data.toByteArray();
-        data.close();
+    private static boolean hasControlCharacters(String path) {
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c < 0x20 || c == 0x7f)
+                return true;
+        }
+        return false;
+    }
 
-        return result;
+    /**
+     * Decodes %xx escapes of the path, a + stays a +
+     */
+    private static String decode(String path) {
+        if (path.indexOf('%') < 0)
+            return path;
+        try {
+            return URLDecoder.decode(path.replace("+", "%2B"), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return path;
+        }
     }
 }